@@ -0,0 +1,96 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.w3c.dom.Element;
+
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Callback that remembers the "If-None-Match" header of a request, so that
+ * the servlet can answer "304 Not Modified" if the client already has the
+ * response.
+ *
+ * <p>{@link XmlaServlet} registers this callback if its
+ * {@link XmlaServlet#PARAM_DISCOVER_ETAGS DiscoverETags} init parameter is
+ * true.
+ */
+public class ConditionalRequestCallback implements XmlaRequestCallback {
+    /** Name of the HTTP request header that holds entity tags. */
+    public static final String IF_NONE_MATCH = "If-None-Match";
+
+    /** Name of the HTTP response header that holds the entity tag. */
+    public static final String ETAG = "ETag";
+
+    public void init(ServletConfig servletConfig) throws ServletException {
+    }
+
+    public boolean processHttpHeader(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Map<String, Object> context) throws Exception
+    {
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            context.put(XmlaConstants.CONTEXT_IF_NONE_MATCH, ifNoneMatch);
+        }
+        return true;
+    }
+
+    public void preAction(
+        HttpServletRequest request,
+        Element[] requestSoapParts,
+        Map<String, Object> context) throws Exception
+    {
+    }
+
+    public String generateSessionId(Map<String, Object> context) {
+        return null;
+    }
+
+    public void postAction(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        byte[][] responseSoapParts,
+        Map<String, Object> context) throws Exception
+    {
+    }
+
+    /**
+     * Returns whether the value of an "If-None-Match" header matches an
+     * entity tag. The value is "*" or a comma-separated list of tags; weak
+     * tags ("W/" prefix) match using the weak comparison of RFC 7232.
+     *
+     * @param ifNoneMatch Value of header, or null
+     * @param etag Entity tag, in double quotes
+     * @return Whether the client already has the entity
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+// End ConditionalRequestCallback.java
@@ -0,0 +1,749 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of serialized responses in files on local disk, which survives a
+ * restart of the server. It is the second level below a
+ * {@link ResultCache}; see {@link ResultCache#setSecondLevel}.
+ *
+ * <p>Responses are appended to memory-mapped segment files in a directory.
+ * Each record holds the key, the response, when it was stored, and the
+ * newest schema load date the cache knew of; and a checksum, so that a
+ * record that was torn by a crash is ignored. The index, from key to
+ * record, is held in memory, and is rebuilt from the files by
+ * {@link #open()}.
+ *
+ * <p>When a response is replaced, its old record is dead space. A
+ * background thread compacts segments that are mostly dead, by copying
+ * their live records to the end of the newest segment and deleting them.
+ * When the files are larger than the budget, the oldest segment is
+ * deleted.
+ *
+ * <p>{@link #clear(Date)} deletes all segments, and starts a new segment
+ * with a record of the schema load date that caused it. Records that are
+ * older than that date are ignored.
+ *
+ * <p>A schema may have changed while the server was down. A response
+ * that was loaded from the files is served at once; but when
+ * {@link #checkLoadDate} reports a schema that is newer than the one the
+ * response was computed from, the response is dropped. So responses from
+ * before a restart survive only if the server reports the same load date
+ * for an unchanged schema after the restart, as
+ * {@link XmlaHandler.XmlaExtraImpl} does when given a file in which to
+ * keep its dates (see {@link XmlaHandler.XmlaExtraImpl#setLoadDateFile}).
+ */
+public class DiskResultCache {
+    private static final Logger LOGGER =
+        Logger.getLogger(DiskResultCache.class);
+
+    private static final int SEGMENT_MAGIC = 0x584d4c43; // "XMLC"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    private static final int RECORD_MAGIC = 0x52454331; // "REC1"
+
+    /**
+     * Size of the fixed part of a record: magic, key length, body length,
+     * creation time and schema load date. It is followed by the key, the
+     * body, and a CRC32 checksum of everything before it.
+     */
+    private static final int RECORD_HEADER_SIZE = 28;
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 4;
+
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final long COMPACTION_PERIOD_MILLIS = 60000;
+
+    private static final Pattern SEGMENT_NAME =
+        Pattern.compile("segment-([0-9]+)\\.dat");
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentSize;
+    private final long maxAgeMillis;
+
+    /**
+     * Guards {@link #index}, {@link #segments}, {@link #active},
+     * {@link #nextSegmentId}, {@link #invalidatedBefore},
+     * {@link #clearCount} and {@link #loadedValidFrom}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Location> index =
+        new HashMap<String, Location>();
+
+    /** Segments, oldest first; the last is {@link #active}. */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment active;
+    private int nextSegmentId;
+
+    /** Records whose schema load date is older than this are ignored. */
+    private long invalidatedBefore;
+
+    /** Number of times the cache has been cleared. */
+    private long clearCount;
+
+    /**
+     * Records loaded from the files are served only if their schema load
+     * date is at least this; 0 until a schema has been reported.
+     */
+    private long loadedValidFrom;
+
+    private ScheduledExecutorService compactor;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    /**
+     * Creates a DiskResultCache. Call {@link #open()} before using it.
+     *
+     * @param directory Directory of segment files; created if it does not
+     *   exist
+     * @param maxBytes Maximum total size of segment files
+     * @param maxAgeSeconds Time, in seconds, after which a response is not
+     *   served; 0 means no limit
+     */
+    public DiskResultCache(File directory, long maxBytes, int maxAgeSeconds) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize =
+            (int) Math.max(
+                MIN_SEGMENT_SIZE,
+                Math.min(MAX_SEGMENT_SIZE, maxBytes / 4));
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    }
+
+    /**
+     * Loads the responses in the directory, and starts the thread that
+     * compacts segments.
+     *
+     * @throws IOException on error
+     */
+    public void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(
+                "Cannot create cache directory '" + directory + "'");
+        }
+        lock.lock();
+        try {
+            load();
+            if (active == null
+                || active.position + RECORD_OVERHEAD > active.capacity)
+            {
+                addSegment();
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+        LOGGER.info(
+            "Loaded " + index.size() + " cached response(s) from '"
+            + directory + "'");
+        compactor =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("xmla-cache-compactor"));
+        compactor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Throwable t) {
+                        // Keep the compactor alive.
+                        LOGGER.error("Error while compacting cache", t);
+                    }
+                }
+            },
+            COMPACTION_PERIOD_MILLIS,
+            COMPACTION_PERIOD_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the compactor, and writes changes to disk.
+     */
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a response, or null if it is not in the cache.
+     *
+     * @param key Key of request
+     * @return Serialized response, or null
+     */
+    public byte[] get(String key) {
+        Location location;
+        lock.lock();
+        try {
+            location = index.get(key);
+            if (location != null
+                && (isExpired(location.createdMillis)
+                    || location.loaded
+                    && location.loadMillis < loadedValidFrom))
+            {
+                index.remove(key);
+                location.segment.liveBytes -= location.recordLength;
+                location = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (location == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        // Records are never overwritten, and the mapping outlives the file
+        // if the segment is deleted, so the record can be read without the
+        // lock.
+        final byte[] bytes = new byte[location.bodyLength];
+        final ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.bodyOffset);
+        buffer.get(bytes);
+        hitCount.incrementAndGet();
+        return bytes;
+    }
+
+    /**
+     * Returns the number of times the cache has been cleared. Call before
+     * computing a response, and pass to {@link #put}.
+     */
+    public long getClearCount() {
+        lock.lock();
+        try {
+            return clearCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a response. Does nothing if it does not fit in a segment, if
+     * the cache has been cleared since {@code clearCount} was read, or if
+     * the schema it was computed from is older than the last invalidation.
+     *
+     * @param key Key of request
+     * @param bytes Serialized response
+     * @param loadDate Newest load date of a schema when the response was
+     *   computed, or null if not known
+     * @param clearCount Value of {@link #getClearCount()} before the
+     *   response was computed
+     */
+    public void put(
+        String key,
+        byte[] bytes,
+        Date loadDate,
+        long clearCount)
+    {
+        final long loadMillis = loadDate == null ? 0 : loadDate.getTime();
+        final byte[] record =
+            record(key, bytes, System.currentTimeMillis(), loadMillis);
+        if (record.length > segmentSize - SEGMENT_HEADER_SIZE) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (clearCount != this.clearCount
+                || loadMillis < invalidatedBefore)
+            {
+                return;
+            }
+            append(key, record, bytes.length, false);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write response to disk cache", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the load date of a schema, the first time that this process
+     * sees it. Responses loaded from the files that were computed from an
+     * older schema will not be served.
+     *
+     * @param loadDate Load date of a schema
+     */
+    public void checkLoadDate(Date loadDate) {
+        lock.lock();
+        try {
+            loadedValidFrom = Math.max(loadedValidFrom, loadDate.getTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all responses, deleting their files.
+     *
+     * @param loadDate Schema load date; responses computed from older
+     *   schemas will not be stored
+     */
+    public void clear(Date loadDate) {
+        lock.lock();
+        try {
+            ++clearCount;
+            index.clear();
+            for (Segment segment : segments) {
+                delete(segment);
+            }
+            segments.clear();
+            active = null;
+            if (loadDate != null) {
+                invalidatedBefore =
+                    Math.max(invalidatedBefore, loadDate.getTime());
+            }
+            addSegment();
+            final byte[] record =
+                record("", new byte[0], System.currentTimeMillis(),
+                    invalidatedBefore);
+            active.write(record);
+        } catch (IOException e) {
+            LOGGER.warn("Could not clear disk cache", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of segments that are mostly dead to the
+     * newest segment, and deletes those segments. Called periodically by a
+     * background thread.
+     */
+    void compact() throws IOException {
+        final List<Segment> candidates = new ArrayList<Segment>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment != active
+                    && segment.liveBytes * 2 < segment.position)
+                {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : candidates) {
+            lock.lock();
+            try {
+                if (!segments.remove(segment)) {
+                    // Deleted by eviction or clear.
+                    continue;
+                }
+                // The segment's mapping stays valid after its file is
+                // deleted, so readers, and the copying below, can use it.
+                delete(segment);
+                final List<Map.Entry<String, Location>> live =
+                    new ArrayList<Map.Entry<String, Location>>();
+                for (Map.Entry<String, Location> e : index.entrySet()) {
+                    if (e.getValue().segment == segment) {
+                        live.add(e);
+                    }
+                }
+                for (Map.Entry<String, Location> e : live) {
+                    final Location location = e.getValue();
+                    final byte[] record = new byte[location.recordLength];
+                    final ByteBuffer buffer = segment.buffer.duplicate();
+                    buffer.position(location.recordOffset);
+                    buffer.get(record);
+                    append(
+                        e.getKey(), record, location.bodyLength,
+                        location.loaded);
+                }
+                compactionCount.incrementAndGet();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                        "Compacted cache segment " + segment.file
+                        + "; moved " + live.size() + " response(s)");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of responses in the cache.
+     */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size of the segment files, in bytes.
+     */
+    public long getFileBytes() {
+        lock.lock();
+        try {
+            return (long) segments.size() * segmentSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total size of the records of the responses in the cache,
+     * in bytes.
+     */
+    public long getLiveBytes() {
+        lock.lock();
+        try {
+            long n = 0;
+            for (Segment segment : segments) {
+                n += segment.liveBytes;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of segments that have been compacted.
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    private boolean isExpired(long createdMillis) {
+        return maxAgeMillis > 0
+            && System.currentTimeMillis() - createdMillis >= maxAgeMillis;
+    }
+
+    /**
+     * Builds a record.
+     */
+    private static byte[] record(
+        String key,
+        byte[] body,
+        long createdMillis,
+        long loadMillis)
+    {
+        final byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] record =
+            new byte[RECORD_OVERHEAD + keyBytes.length + body.length];
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(body.length);
+        buffer.putLong(createdMillis);
+        buffer.putLong(loadMillis);
+        buffer.put(keyBytes);
+        buffer.put(body);
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length - 4);
+        buffer.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it
+     * is full, and indexes it; caller must hold the lock.
+     */
+    private void append(
+        String key,
+        byte[] record,
+        int bodyLength,
+        boolean loaded)
+        throws IOException
+    {
+        if (active.position + record.length > active.capacity) {
+            addSegment();
+            evict();
+        }
+        final int offset = active.write(record);
+        final ByteBuffer header = ByteBuffer.wrap(record);
+        final Location previous =
+            index.put(
+                key,
+                new Location(
+                    active, offset, record.length, bodyLength,
+                    header.getLong(12), header.getLong(20), loaded));
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.recordLength;
+        }
+        active.liveBytes += record.length;
+    }
+
+    /**
+     * Deletes the oldest segments while the files are larger than the
+     * budget; caller must hold the lock.
+     */
+    private void evict() {
+        while ((long) segments.size() * segmentSize > maxBytes
+            && segments.size() > 1)
+        {
+            final Segment segment = segments.remove(0);
+            for (Iterator<Location> iterator = index.values().iterator();
+                 iterator.hasNext();)
+            {
+                if (iterator.next().segment == segment) {
+                    iterator.remove();
+                }
+            }
+            delete(segment);
+        }
+    }
+
+    /**
+     * Creates a segment file and makes it the active segment; caller must
+     * hold the lock.
+     */
+    private void addSegment() throws IOException {
+        final File file =
+            new File(
+                directory,
+                "segment-" + String.format("%06d", nextSegmentId++) + ".dat");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            active = new Segment(file, map(raf));
+        } finally {
+            raf.close();
+        }
+        active.buffer.putInt(0, SEGMENT_MAGIC);
+        active.buffer.putInt(4, VERSION);
+        active.position = SEGMENT_HEADER_SIZE;
+        segments.add(active);
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile raf)
+        throws IOException
+    {
+        return raf.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    private static void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            LOGGER.warn("Could not delete cache segment " + segment.file);
+        }
+    }
+
+    /**
+     * Reads the segment files, building the index; caller must hold the
+     * lock.
+     */
+    private void load() throws IOException {
+        final SortedMap<Integer, File> files = new TreeMap<Integer, File>();
+        final File[] list = directory.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                final Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    files.put(Integer.valueOf(matcher.group(1)), file);
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> e : files.entrySet()) {
+            nextSegmentId = e.getKey() + 1;
+            final File file = e.getValue();
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            final Segment segment;
+            try {
+                if (raf.length() < SEGMENT_HEADER_SIZE
+                    || raf.length() > Integer.MAX_VALUE)
+                {
+                    segment = null;
+                } else {
+                    segment = new Segment(file, map(raf));
+                }
+            } finally {
+                raf.close();
+            }
+            if (segment == null
+                || segment.buffer.getInt(0) != SEGMENT_MAGIC
+                || segment.buffer.getInt(4) != VERSION)
+            {
+                LOGGER.warn("Ignoring invalid cache segment " + file);
+                if (!file.delete()) {
+                    LOGGER.warn("Could not delete cache segment " + file);
+                }
+                continue;
+            }
+            segments.add(segment);
+            active = segment;
+            load(segment);
+        }
+    }
+
+    /**
+     * Reads the records of a segment, up to the first that is incomplete.
+     */
+    private void load(Segment segment) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        final CRC32 crc = new CRC32();
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_OVERHEAD <= segment.capacity
+            && buffer.getInt(offset) == RECORD_MAGIC)
+        {
+            final int keyLength = buffer.getInt(offset + 4);
+            final int bodyLength = buffer.getInt(offset + 8);
+            if (keyLength < 0
+                || bodyLength < 0
+                || (long) offset + RECORD_OVERHEAD + keyLength + bodyLength
+                    > segment.capacity)
+            {
+                break;
+            }
+            final int length = RECORD_OVERHEAD + keyLength + bodyLength;
+            final byte[] record = new byte[length];
+            buffer.position(offset);
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length - 4);
+            if ((int) crc.getValue() != buffer.getInt(offset + length - 4)) {
+                break;
+            }
+            final long createdMillis = buffer.getLong(offset + 12);
+            final long loadMillis = buffer.getLong(offset + 20);
+            if (keyLength == 0) {
+                // Record of a clear.
+                invalidatedBefore = Math.max(invalidatedBefore, loadMillis);
+            } else if (loadMillis >= invalidatedBefore
+                && !isExpired(createdMillis))
+            {
+                final String key;
+                try {
+                    key =
+                        new String(
+                            record, RECORD_HEADER_SIZE, keyLength, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+                final Location previous =
+                    index.put(
+                        key,
+                        new Location(
+                            segment, offset, length, bodyLength,
+                            createdMillis, loadMillis, true));
+                if (previous != null) {
+                    previous.segment.liveBytes -= previous.recordLength;
+                }
+                segment.liveBytes += length;
+            }
+            offset += length;
+        }
+        segment.position = offset;
+    }
+
+    /**
+     * Memory-mapped segment file.
+     */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        /** Offset at which the next record will be written. */
+        int position;
+        /** Total length of the records that are in the index. */
+        long liveBytes;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        /** Appends a record, and returns its offset. */
+        int write(byte[] record) {
+            final int offset = position;
+            final ByteBuffer b = buffer.duplicate();
+            b.position(offset);
+            b.put(record);
+            position += record.length;
+            return offset;
+        }
+    }
+
+    /**
+     * Where a response is stored.
+     */
+    private static class Location {
+        final Segment segment;
+        final int recordOffset;
+        final int recordLength;
+        final int bodyOffset;
+        final int bodyLength;
+        final long createdMillis;
+        /** Newest schema load date when the response was computed. */
+        final long loadMillis;
+        /** Whether read from the files, rather than stored by this process. */
+        final boolean loaded;
+
+        Location(
+            Segment segment,
+            int recordOffset,
+            int recordLength,
+            int bodyLength,
+            long createdMillis,
+            long loadMillis,
+            boolean loaded)
+        {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.bodyOffset =
+                recordOffset + recordLength - 4 - bodyLength;
+            this.bodyLength = bodyLength;
+            this.createdMillis = createdMillis;
+            this.loadMillis = loadMillis;
+            this.loaded = loaded;
+        }
+    }
+}
+
+// End DiskResultCache.java
@@ -0,0 +1,163 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.olap4j.xmla.server.impl.Util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical requests that arrive while one of them is being processed
+ * share its response, rather than each running the same query.
+ *
+ * <p>Requests are identical if they have the same key (see
+ * {@link XmlaHandler}). The first request with a key is the leader of a
+ * "flight"; it processes the request as usual, buffering the response.
+ * Requests with the same key that arrive before it finishes are followers:
+ * they wait, and write a copy of the leader's response. If the leader
+ * fails, the followers process their requests themselves.
+ */
+public class RequestCoalescer implements XmlaConstants {
+    /** How often a waiting follower checks whether it has been aborted. */
+    private static final long WAIT_PERIOD_MILLIS = 100;
+
+    private final ConcurrentMap<String, Call> calls =
+        new ConcurrentHashMap<String, Call>();
+    private final AtomicLong leaderCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Joins the flight of requests with a given key, starting one if there
+     * is none.
+     *
+     * <p>If the caller is the leader ({@link Flight#isLeader()}), it must
+     * process the request then call {@link Flight#complete(String)}, even
+     * if processing fails. Otherwise it calls {@link Flight#await}.
+     *
+     * @param key Key of request
+     * @return Caller's place in the flight
+     */
+    public Flight join(String key) {
+        final Call call = new Call(key);
+        final Call existing = calls.putIfAbsent(key, call);
+        if (existing == null) {
+            leaderCount.incrementAndGet();
+            return new Flight(call, true);
+        }
+        return new Flight(existing, false);
+    }
+
+    /**
+     * Returns the number of requests that were processed as the leader of a
+     * flight.
+     */
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    /**
+     * Returns the number of requests that received a copy of another
+     * request's response instead of being processed.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of flights whose leader is being processed.
+     */
+    public int getInFlightCount() {
+        return calls.size();
+    }
+
+    /**
+     * A request's place in a flight.
+     */
+    public class Flight {
+        private final Call call;
+        private final boolean leader;
+
+        private Flight(Call call, boolean leader) {
+            this.call = call;
+            this.leader = leader;
+        }
+
+        /**
+         * Returns whether this request is the one that is processed.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by the leader when it has finished. Removes the flight, so
+         * that later requests start a new one, and releases the followers.
+         *
+         * @param result Serialized response, or null if processing failed
+         */
+        public void complete(String result) {
+            assert leader;
+            call.result = result;
+            calls.remove(call.key, call);
+            call.done.countDown();
+        }
+
+        /**
+         * Called by a follower to wait for the leader.
+         *
+         * @param activeRequest The follower's request, whose timeout and
+         *   cancellation are honored while waiting
+         * @return Leader's serialized response, or null if the leader failed
+         *   and the follower must process its request itself
+         * @throws XmlaException if the follower is aborted while waiting
+         */
+        public String await(RequestRegistry.ActiveRequest activeRequest)
+            throws XmlaException
+        {
+            assert !leader;
+            try {
+                while (!call.done.await(
+                           WAIT_PERIOD_MILLIS, TimeUnit.MILLISECONDS))
+                {
+                    activeRequest.checkActive();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XmlaException(
+                    SERVER_FAULT_FC,
+                    USM_UNKNOWN_CODE,
+                    USM_UNKNOWN_FAULT_FS,
+                    Util.newError(e, "Interrupted while waiting for request"));
+            }
+            final String result = call.result;
+            if (result != null) {
+                coalescedCount.incrementAndGet();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Processing of the leader of a flight, and its outcome.
+     */
+    private static class Call {
+        final String key;
+        final CountDownLatch done = new CountDownLatch(1);
+        /** Serialized response; set before {@link #done} is released. */
+        volatile String result;
+
+        Call(String key) {
+            this.key = key;
+        }
+    }
+}
+
+// End RequestCoalescer.java
@@ -0,0 +1,302 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.olap4j.OlapStatement;
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of the requests that an {@link XmlaHandler} is processing.
+ *
+ * <p>A request that has a deadline is aborted by a watchdog thread when the
+ * deadline passes, and the requests of a session are aborted by a Cancel
+ * command. When a request is aborted, its running statement, if any, is
+ * canceled, and the loops that write its response stop at the next row or
+ * cell (they call {@link ActiveRequest#checkActive()}).
+ *
+ * <p>The watchdog thread is started when the first request with a deadline
+ * is registered.
+ */
+public class RequestRegistry implements XmlaConstants {
+    private static final Logger LOGGER =
+        Logger.getLogger(RequestRegistry.class);
+
+    /** How often the watchdog looks for requests past their deadline. */
+    private static final long WATCHDOG_PERIOD_MILLIS = 250;
+
+    private final ConcurrentMap<XmlaRequest, ActiveRequest> activeRequests =
+        new ConcurrentHashMap<XmlaRequest, ActiveRequest>();
+
+    private final AtomicReference<ScheduledExecutorService> watchdog =
+        new AtomicReference<ScheduledExecutorService>();
+
+    /**
+     * Registers a request at the start of its processing.
+     *
+     * @param request Request
+     * @param timeoutMillis Time allowed, in milliseconds, or 0 for no limit
+     * @return Handle to the request; pass to {@link #unregister} when done
+     */
+    public ActiveRequest register(XmlaRequest request, long timeoutMillis) {
+        final ActiveRequest activeRequest =
+            new ActiveRequest(request, timeoutMillis);
+        activeRequests.put(request, activeRequest);
+        if (timeoutMillis > 0 && watchdog.get() == null) {
+            startWatchdog();
+        }
+        return activeRequest;
+    }
+
+    /**
+     * Removes a request from the registry at the end of its processing.
+     */
+    public void unregister(ActiveRequest activeRequest) {
+        activeRequests.remove(activeRequest.request);
+    }
+
+    /**
+     * Returns the handle of a request that is being processed, or null.
+     */
+    public ActiveRequest get(XmlaRequest request) {
+        return activeRequests.get(request);
+    }
+
+    /**
+     * Returns the requests that are being processed.
+     */
+    public Collection<ActiveRequest> getActiveRequests() {
+        return Collections.unmodifiableCollection(activeRequests.values());
+    }
+
+    /**
+     * Cancels the requests of a session.
+     *
+     * @param sessionId Session id
+     * @param except Request not to cancel (typically the one asking), or
+     *   null
+     * @return Number of requests canceled
+     */
+    public int cancel(String sessionId, ActiveRequest except) {
+        int count = 0;
+        for (ActiveRequest activeRequest : activeRequests.values()) {
+            if (activeRequest != except
+                && sessionId.equals(activeRequest.request.getSessionId())
+                && activeRequest.abort(Status.CANCELED))
+            {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops the watchdog thread.
+     */
+    public void shutdown() {
+        final ScheduledExecutorService executor = watchdog.getAndSet(null);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void startWatchdog() {
+        final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("xmla-watchdog"));
+        if (!watchdog.compareAndSet(null, executor)) {
+            // Another thread started one first.
+            executor.shutdown();
+            return;
+        }
+        executor.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    checkDeadlines();
+                }
+            },
+            WATCHDOG_PERIOD_MILLIS,
+            WATCHDOG_PERIOD_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    private void checkDeadlines() {
+        final long now = System.nanoTime();
+        for (ActiveRequest activeRequest : activeRequests.values()) {
+            try {
+                if (activeRequest.deadlineNanos != 0
+                    && now - activeRequest.deadlineNanos >= 0
+                    && activeRequest.abort(Status.TIMED_OUT))
+                {
+                    LOGGER.warn(
+                        "XML/A request timed out after "
+                        + activeRequest.timeoutMillis + " ms");
+                }
+            } catch (Throwable t) {
+                // Keep the watchdog alive.
+                LOGGER.error("Error while aborting XML/A request", t);
+            }
+        }
+    }
+
+    /**
+     * State of a request.
+     */
+    public enum Status {
+        RUNNING,
+        TIMED_OUT,
+        CANCELED
+    }
+
+    /**
+     * Handle to a request that is being processed.
+     */
+    public static class ActiveRequest {
+        private final XmlaRequest request;
+        private final long timeoutMillis;
+        /** Value of {@link System#nanoTime()} at deadline; 0 if none. */
+        private final long deadlineNanos;
+        private final AtomicInteger status =
+            new AtomicInteger(Status.RUNNING.ordinal());
+        private volatile OlapStatement statement;
+
+        ActiveRequest(XmlaRequest request, long timeoutMillis) {
+            this.request = request;
+            this.timeoutMillis = timeoutMillis;
+            if (timeoutMillis > 0) {
+                final long deadline =
+                    System.nanoTime() + timeoutMillis * 1000000L;
+                this.deadlineNanos = deadline == 0 ? 1 : deadline;
+            } else {
+                this.deadlineNanos = 0;
+            }
+        }
+
+        /**
+         * Returns the request.
+         */
+        public XmlaRequest getRequest() {
+            return request;
+        }
+
+        /**
+         * Returns the status of the request.
+         */
+        public Status getStatus() {
+            return Status.values()[status.get()];
+        }
+
+        /**
+         * Returns whether the request has been aborted.
+         */
+        public boolean isAborted() {
+            return status.get() != Status.RUNNING.ordinal();
+        }
+
+        /**
+         * Records the statement that the request is executing, so that it
+         * can be canceled. If the request has already been aborted, cancels
+         * the statement at once.
+         */
+        public void setStatement(OlapStatement statement) {
+            this.statement = statement;
+            if (statement != null && isAborted()) {
+                cancel(statement);
+            }
+        }
+
+        /**
+         * Aborts the request, canceling its statement if it is running one.
+         *
+         * @param reason {@link Status#TIMED_OUT} or {@link Status#CANCELED}
+         * @return false if the request had already been aborted
+         */
+        public boolean abort(Status reason) {
+            assert reason != Status.RUNNING;
+            if (!status.compareAndSet(
+                    Status.RUNNING.ordinal(), reason.ordinal()))
+            {
+                return false;
+            }
+            final OlapStatement statement = this.statement;
+            if (statement != null) {
+                cancel(statement);
+            }
+            return true;
+        }
+
+        /**
+         * Throws if the request has been aborted. Loops that write the
+         * response call this for each row or cell.
+         *
+         * @throws XmlaException if the request has been aborted
+         */
+        public void checkActive() throws XmlaException {
+            if (status.get() != Status.RUNNING.ordinal()) {
+                throw newAbortException(null);
+            }
+        }
+
+        /**
+         * If the request has been aborted, returns the fault to report
+         * instead of an exception that happened as a result (say, a
+         * statement that failed because it was canceled). Otherwise returns
+         * the exception unchanged.
+         */
+        public XmlaException translate(XmlaException e) {
+            if (isAborted()
+                && !HSB_TIMEOUT_CODE.equals(e.getCode())
+                && !HSB_CANCELED_CODE.equals(e.getCode()))
+            {
+                return newAbortException(e);
+            }
+            return e;
+        }
+
+        /**
+         * Creates the fault for an aborted request.
+         */
+        public XmlaException newAbortException(Throwable cause) {
+            final boolean canceled =
+                status.get() == Status.CANCELED.ordinal();
+            final RuntimeException e =
+                new RuntimeException(
+                    canceled
+                        ? "XML/A request was canceled"
+                        : "XML/A request exceeded timeout of "
+                          + timeoutMillis + " ms");
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            return new XmlaException(
+                SERVER_FAULT_FC,
+                canceled ? HSB_CANCELED_CODE : HSB_TIMEOUT_CODE,
+                canceled ? HSB_CANCELED_FAULT_FS : HSB_TIMEOUT_FAULT_FS,
+                e);
+        }
+
+        private static void cancel(OlapStatement statement) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                LOGGER.warn("Error while canceling statement", e);
+            }
+        }
+    }
+}
+
+// End RequestRegistry.java
@@ -0,0 +1,617 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Schema;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of serialized responses, bounded by their total size in bytes.
+ * When it is full, the least recently used responses are evicted.
+ *
+ * <p>The cache is cleared when the schema of a catalog is reloaded. Since a
+ * response that is served from the cache needs no connection, the cache
+ * cannot check the schema on every request; instead, requests that do use
+ * a connection report the load date of its schema by calling
+ * {@link #checkSchema}, and a response older than the maximum age is
+ * never served.
+ *
+ * <p>A response is stored only if the cache was not cleared while it was
+ * being computed (see {@link #getEpoch()}).
+ *
+ * <p>Responses are stored outside the Java heap, in a {@link SlabArena}, so
+ * that a large cache does not lengthen garbage collection. The size of the
+ * cache is the size of the arena; since responses occupy whole blocks,
+ * some of it is lost to fragmentation (see {@link #getFragmentation()}).
+ * An evicted response's blocks are reused once no request is writing it.
+ *
+ * <p>A {@link DiskResultCache} may be attached as a second level. Responses
+ * are stored in both levels; a response that is not in memory is looked
+ * for on disk, and if found, is brought back into memory.
+ *
+ * <p>If refresh is enabled (see {@link #setRefresh}), a reloaded schema
+ * does not clear the memory level; instead, its responses become stale,
+ * as does a response older than the soft time-to-live. A stale response
+ * is still served, and the first request that sees it submits a task to
+ * recompute it in the background; when that finishes, the new response
+ * replaces the old one in a single step. The maximum age still applies.
+ */
+public class ResultCache {
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class);
+
+    private final long maxBytes;
+    private final long maxAgeNanos;
+
+    /** Executor that recomputes stale responses; null if refresh is off. */
+    private Executor refreshExecutor;
+    private long softTtlNanos;
+
+    /**
+     * Guards {@link #map}, {@link #arena}, {@link #totalBytes},
+     * {@link #epoch} and the reader counts of entries.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final SlabArena arena;
+    private final LinkedHashMap<String, Entry> map =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalBytes;
+    private long epoch;
+
+    /** Load date of each schema, keyed by catalog and schema name. */
+    private final ConcurrentMap<String, Date> schemaLoadDates =
+        new ConcurrentHashMap<String, Date>();
+
+    /** Second level of the cache; null if none. */
+    private DiskResultCache secondLevel;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Creates a ResultCache.
+     *
+     * @param maxBytes Maximum total size of responses
+     * @param maxAgeSeconds Time, in seconds, after which a response is not
+     *   served; 0 means no limit
+     */
+    public ResultCache(long maxBytes, int maxAgeSeconds) {
+        this.maxBytes = maxBytes;
+        this.arena = new SlabArena(maxBytes);
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    }
+
+    /**
+     * Attaches a second level, or detaches it if null. Call before the cache
+     * is used.
+     *
+     * @param secondLevel Disk cache, already opened; or null
+     */
+    public void setSecondLevel(DiskResultCache secondLevel) {
+        this.secondLevel = secondLevel;
+    }
+
+    /**
+     * Returns the second level of the cache, or null.
+     */
+    public DiskResultCache getSecondLevel() {
+        return secondLevel;
+    }
+
+    /**
+     * Enables refresh of stale responses, or disables it if the executor is
+     * null. Call before the cache is used.
+     *
+     * @param executor Executor that recomputes responses, or null
+     * @param softTtlSeconds Time, in seconds, after which a response is
+     *   stale; 0 means that only a schema reload makes responses stale
+     */
+    public void setRefresh(Executor executor, int softTtlSeconds) {
+        this.refreshExecutor = executor;
+        this.softTtlNanos = TimeUnit.SECONDS.toNanos(softTtlSeconds);
+    }
+
+    /**
+     * Writes a response to a stream, if it is in the cache.
+     *
+     * <p>The response is copied straight from the cache's memory to the
+     * stream; the lock is not held while writing.
+     *
+     * @param key Key of request
+     * @param out Output stream
+     * @return Whether the response was in the cache
+     * @throws IOException on error writing
+     */
+    public boolean write(String key, OutputStream out) throws IOException {
+        return write(key, out, null);
+    }
+
+    /**
+     * Writes a response to a stream, if it is in the cache, and if the
+     * response is stale, submits a task to recompute it.
+     *
+     * @param key Key of request
+     * @param out Output stream
+     * @param recompute Computes the response again; or null
+     * @return Whether the response was in the cache
+     * @throws IOException on error writing
+     */
+    public boolean write(
+        String key,
+        OutputStream out,
+        Callable<byte[]> recompute)
+        throws IOException
+    {
+        Entry entry;
+        final long epoch;
+        boolean refresh = false;
+        lock.lock();
+        try {
+            epoch = this.epoch;
+            entry = map.get(key);
+            if (entry != null
+                && maxAgeNanos > 0
+                && System.nanoTime() - entry.createdNanos >= maxAgeNanos)
+            {
+                remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                ++entry.readerCount;
+                if (recompute != null
+                    && refreshExecutor != null
+                    && isStale(entry))
+                {
+                    staleHitCount.incrementAndGet();
+                    if (!entry.refreshing) {
+                        entry.refreshing = true;
+                        refresh = true;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (refresh) {
+            refresh(key, entry, recompute);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            final byte[] bytes =
+                secondLevel == null ? null : secondLevel.get(key);
+            if (bytes == null) {
+                return false;
+            }
+            put(key, bytes, epoch, false);
+            out.write(bytes);
+            return true;
+        }
+        hitCount.incrementAndGet();
+        try {
+            arena.write(entry.blocks, entry.length, out);
+        } finally {
+            lock.lock();
+            try {
+                if (--entry.readerCount == 0 && entry.removed) {
+                    arena.free(entry.blocks);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether an entry should be recomputed; caller must hold the
+     * lock.
+     */
+    private boolean isStale(Entry entry) {
+        return entry.epoch != epoch
+            || softTtlNanos > 0
+            && System.nanoTime() - entry.createdNanos >= softTtlNanos;
+    }
+
+    /**
+     * Submits a task to recompute a stale entry. The entry remains in the
+     * cache, and is served, until {@link #put} replaces it.
+     */
+    private void refresh(
+        final String key,
+        final Entry entry,
+        final Callable<byte[]> recompute)
+    {
+        try {
+            refreshExecutor.execute(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            final long epoch = getEpoch();
+                            put(key, recompute.call(), epoch);
+                            refreshCount.incrementAndGet();
+                        } catch (Throwable e) {
+                            LOGGER.warn("Could not refresh cached response", e);
+                        } finally {
+                            endRefresh(entry);
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Refresh queue is full; will retry", e);
+            endRefresh(entry);
+        }
+    }
+
+    /**
+     * Lets the next request that sees an entry refresh it again, if it is
+     * still in the cache and stale.
+     */
+    private void endRefresh(Entry entry) {
+        lock.lock();
+        try {
+            entry.refreshing = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times the cache has been cleared. Call before
+     * computing a response, and pass to {@link #put}.
+     */
+    public long getEpoch() {
+        lock.lock();
+        try {
+            return epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a response, replacing any previous response with the same key.
+     * Does nothing if the cache has been cleared (or, with refresh, a
+     * schema reloaded) since the response started to be computed, or if
+     * the response is larger than a tenth of the cache.
+     *
+     * @param key Key of request
+     * @param bytes Serialized response
+     * @param epoch Value of {@link #getEpoch()} before the response was
+     *   computed
+     */
+    public void put(String key, byte[] bytes, long epoch) {
+        put(key, bytes, epoch, true);
+    }
+
+    /**
+     * Returns the size of the largest response that {@link #put} will
+     * store, in bytes; a tenth of the cache.
+     */
+    public int getMaxEntryBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / 10);
+    }
+
+    /**
+     * Stores a response in memory and, if {@code persist}, in the second
+     * level.
+     */
+    private void put(String key, byte[] bytes, long epoch, boolean persist) {
+        if (bytes.length > getMaxEntryBytes()) {
+            return;
+        }
+        final int blockCount = SlabArena.blockCount(bytes.length);
+        int[] blocks;
+        final Date loadDate;
+        final long clearCount;
+        lock.lock();
+        try {
+            if (epoch != this.epoch) {
+                return;
+            }
+            // Evict least recently used responses until there is room.
+            // Blocks of a response that is being written are freed only
+            // when the writer finishes, so there may never be room.
+            final Iterator<Entry> iterator = map.values().iterator();
+            while ((blocks = arena.allocate(blockCount)) == null
+                && iterator.hasNext())
+            {
+                final Entry entry = iterator.next();
+                iterator.remove();
+                totalBytes -= entry.length;
+                release(entry);
+                evictionCount.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (blocks == null) {
+            return;
+        }
+        // Copy outside the lock. The blocks belong to no entry yet, so
+        // nobody else can see them.
+        arena.put(blocks, bytes);
+        lock.lock();
+        try {
+            if (epoch != this.epoch) {
+                arena.free(blocks);
+                return;
+            }
+            remove(key);
+            map.put(
+                key,
+                new Entry(blocks, bytes.length, System.nanoTime(), epoch));
+            totalBytes += bytes.length;
+            if (!persist || secondLevel == null) {
+                return;
+            }
+            // Clears of the second level happen under this lock, so the
+            // second level has not been cleared since the response was
+            // computed; if it is cleared before the write below, the write
+            // does nothing.
+            loadDate = getNewestLoadDate();
+            clearCount = secondLevel.getClearCount();
+        } finally {
+            lock.unlock();
+        }
+        // Write to disk outside the lock, so that requests are not held up.
+        secondLevel.put(key, bytes, loadDate, clearCount);
+    }
+
+    /**
+     * Removes all responses, from both levels.
+     */
+    public void clear() {
+        clear(getNewestLoadDate());
+    }
+
+    /**
+     * Makes all responses in memory stale because of a schema load, and
+     * removes those on disk, which are never refreshed.
+     */
+    private void invalidate(Date loadDate) {
+        lock.lock();
+        try {
+            ++epoch;
+            if (secondLevel != null) {
+                secondLevel.clear(loadDate);
+            }
+        } finally {
+            lock.unlock();
+        }
+        invalidationCount.incrementAndGet();
+    }
+
+    /**
+     * Removes all responses because of a schema load.
+     */
+    private void clear(Date loadDate) {
+        lock.lock();
+        try {
+            for (Entry entry : map.values()) {
+                release(entry);
+            }
+            map.clear();
+            totalBytes = 0;
+            ++epoch;
+            if (secondLevel != null) {
+                secondLevel.clear(loadDate);
+            }
+        } finally {
+            lock.unlock();
+        }
+        invalidationCount.incrementAndGet();
+    }
+
+    /**
+     * Records the load date of the schema of a connection, and clears the
+     * cache if the schema has been reloaded since it was last seen.
+     *
+     * @param connection Connection
+     * @param extra Extra API, which knows when schemas were loaded
+     */
+    public void checkSchema(
+        OlapConnection connection,
+        XmlaHandler.XmlaExtra extra)
+    {
+        final Date loadDate;
+        final String key;
+        try {
+            final Schema schema = connection.getOlapSchema();
+            loadDate = extra.getSchemaLoadDate(schema);
+            key = connection.getCatalog() + '\0' + schema.getName();
+        } catch (OlapException e) {
+            LOGGER.warn("Could not find load date of schema", e);
+            return;
+        }
+        if (loadDate == null) {
+            return;
+        }
+        final Date previous = schemaLoadDates.put(key, loadDate);
+        if (previous == null && secondLevel != null) {
+            // Responses on disk from before a restart may have been
+            // computed from an older version of this schema.
+            secondLevel.checkLoadDate(loadDate);
+        }
+        if (previous != null && !previous.equals(loadDate)) {
+            if (refreshExecutor != null) {
+                LOGGER.debug("Schema reloaded; result cache is stale");
+                invalidate(loadDate);
+            } else {
+                LOGGER.debug("Schema reloaded; clearing result cache");
+                clear(loadDate);
+            }
+        }
+    }
+
+    /**
+     * Returns the newest load date of the schemas that have been seen, or
+     * null.
+     */
+    private Date getNewestLoadDate() {
+        Date newest = null;
+        for (Date date : schemaLoadDates.values()) {
+            if (newest == null || date.after(newest)) {
+                newest = date;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Returns the total size of the responses in the cache, in bytes.
+     */
+    public long getSizeBytes() {
+        lock.lock();
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of memory, outside the heap, that the
+     * cache has allocated. It grows, in slabs, up to the size of the cache,
+     * and does not shrink.
+     */
+    public long getAllocatedBytes() {
+        lock.lock();
+        try {
+            return arena.getAllocatedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fraction of the blocks in use that is wasted because
+     * responses do not fill their last block, between 0 and 1. Includes
+     * blocks of evicted responses that are still being written.
+     */
+    public double getFragmentation() {
+        lock.lock();
+        try {
+            final long usedBytes = arena.getUsedBytes();
+            return usedBytes == 0
+                ? 0d
+                : (double) (usedBytes - totalBytes) / usedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of responses in the cache.
+     */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return map.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of responses evicted to make room for others.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of times the cache has been cleared, or with
+     * refresh, made stale.
+     */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    /**
+     * Returns the number of times a stale response has been served.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    /**
+     * Returns the number of stale responses that have been recomputed.
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /** Removes an entry; caller must hold the lock. */
+    private void remove(String key) {
+        final Entry entry = map.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.length;
+            release(entry);
+        }
+    }
+
+    /**
+     * Frees the blocks of an entry that has been removed from the map, or
+     * marks it to be freed by its last reader; caller must hold the lock.
+     */
+    private void release(Entry entry) {
+        entry.removed = true;
+        if (entry.readerCount == 0) {
+            arena.free(entry.blocks);
+        }
+    }
+
+    /**
+     * Serialized response, where it is stored, and when.
+     */
+    private static class Entry {
+        final int[] blocks;
+        final int length;
+        final long createdNanos;
+        /** Value of the cache's epoch when the response was computed. */
+        final long epoch;
+        /** Number of requests writing the response. */
+        int readerCount;
+        /** Whether removed from the cache; blocks are freed when unread. */
+        boolean removed;
+        /** Whether a task is recomputing the response. */
+        boolean refreshing;
+
+        Entry(int[] blocks, int length, long createdNanos, long epoch) {
+            this.blocks = blocks;
+            this.length = length;
+            this.createdNanos = createdNanos;
+            this.epoch = epoch;
+        }
+    }
+}
+
+// End ResultCache.java
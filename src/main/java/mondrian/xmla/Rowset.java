@@ -41,6 +41,7 @@ abstract class Rowset implements XmlaConstants {
         new HashMap<String, String>();
     protected final XmlaRequest request;
     protected final XmlaHandler handler;
+    private final RequestRegistry.ActiveRequest activeRequest;
     private final RowsetDefinition.Column[] restrictedColumns;
     protected final boolean deep;
 
@@ -61,6 +62,7 @@ abstract class Rowset implements XmlaConstants {
         this.properties = request.getProperties();
         this.request = request;
         this.handler = handler;
+        this.activeRequest = handler.getRequestRegistry().get(request);
         ArrayList<RowsetDefinition.Column> list =
             new ArrayList<RowsetDefinition.Column>();
         for (Map.Entry<String, Object> restrictionEntry
@@ -198,11 +200,21 @@ abstract class Rowset implements XmlaConstants {
         final SaxWriter writer = response.getWriter();
         writer.startSequence(null, "row");
         for (Row row : rows) {
+            checkActive();
             emit(row, response);
         }
         writer.endSequence();
     }
 
+    /**
+     * Throws if the request has timed out or been canceled.
+     */
+    private void checkActive() {
+        if (activeRequest != null) {
+            activeRequest.checkActive();
+        }
+    }
+
     /**
      * Gathers the set of rows which match a given set of the criteria.
      */
@@ -218,6 +230,7 @@ abstract class Rowset implements XmlaConstants {
             if (needConnection() && connection == null) {
                 connection = handler.getConnection(request, extraProperties);
                 ourConnection = true;
+                handler.checkSchema(connection);
             }
             request1 =
                 handler.connectionFactory.startRequest(request, connection);
@@ -265,6 +278,7 @@ abstract class Rowset implements XmlaConstants {
         List<Row> rows)
         throws XmlaException
     {
+        checkActive();
         return rows.add(row);
     }
 
@@ -331,7 +345,7 @@ abstract class Rowset implements XmlaConstants {
                 }
                 writer.endSequence();
             } else {
-                writer.textElement(column.name, value);
+                XmlaHandler.textElement(writer, column.name, value);
             }
         }
         writer.endElement();
@@ -10,6 +10,8 @@
 */
 package mondrian.xmla;
 
+import mondrian.xmla.impl.DefaultSaxWriter;
+
 import org.olap4j.xmla.server.impl.Composite;
 import org.olap4j.xmla.server.impl.Util;
 
@@ -32,6 +34,7 @@ import java.sql.SQLException;
 import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static org.olap4j.xmla.server.impl.Util.filter;
 
@@ -1077,6 +1080,20 @@ public enum RowsetDefinition {
     private static final String dateModified = "2005-01-25T17:35:32";
     private final String description;
 
+    /**
+     * Number of indentation levels for which the XML schema of the rowset
+     * is cached; see {@link #writeRowsetXmlSchema(SaxWriter)}.
+     */
+    private static final int XML_SCHEMA_CACHE_DEPTH = 8;
+
+    /**
+     * XML schema of the rowset, as written by a {@link DefaultSaxWriter}
+     * at each indentation level, and last, as written by a compact writer;
+     * elements are null until first needed.
+     */
+    private final AtomicReferenceArray<String> xmlSchemas =
+        new AtomicReferenceArray<String>(XML_SCHEMA_CACHE_DEPTH + 1);
+
     static final String UUID_PATTERN =
         "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-"
         + "[0-9a-fA-F]{12}";
@@ -1163,10 +1180,35 @@ public enum RowsetDefinition {
      * definition output. The default assumes a flat set of elements, but
      * for example, SchemaRowsets has a element with child elements.
      *
+     * <p>The schema never changes, so the text that a
+     * {@link DefaultSaxWriter} would produce is generated once for each
+     * indentation level, and copied to a writer that produces the same
+     * text.
+     *
      * @param writer SAX writer
      * @see XmlaHandler#writeDatasetXmlSchema(SaxWriter, mondrian.xmla.XmlaHandler.SetType)
      */
     void writeRowsetXmlSchema(SaxWriter writer) {
+        final int indent = writer.getIndent();
+        if (indent >= 0 && indent < XML_SCHEMA_CACHE_DEPTH) {
+            // A compact schema is the same at every indentation level.
+            final boolean compact = writer.isCompact();
+            final int i = compact ? XML_SCHEMA_CACHE_DEPTH : indent;
+            String xml = xmlSchemas.get(i);
+            if (xml == null) {
+                final StringBuilder buf = new StringBuilder();
+                writeRowsetXmlSchemaImpl(
+                    new DefaultSaxWriter(buf, indent, compact));
+                xml = buf.toString();
+                xmlSchemas.set(i, xml);
+            }
+            writer.verbatim(xml);
+            return;
+        }
+        writeRowsetXmlSchemaImpl(writer);
+    }
+
+    private void writeRowsetXmlSchemaImpl(SaxWriter writer) {
         writeRowsetXmlSchemaTop(writer);
         writeRowsetXmlSchemaRowDef(writer);
         writeRowsetXmlSchemaBottom(writer);
@@ -1676,6 +1718,10 @@ public enum RowsetDefinition {
             super(DISCOVER_SCHEMA_ROWSETS, request, handler);
         }
 
+        protected boolean needConnection() {
+            return false;
+        }
+
         public void populateImpl(
             XmlaResponse response, OlapConnection connection, List<Row> rows)
             throws XmlaException
@@ -1898,6 +1944,10 @@ public enum RowsetDefinition {
                 Column.OPTIONAL,
                 "The value of the element.\n" + "Example: 01");
 
+        protected boolean needConnection() {
+            return false;
+        }
+
         public void populateImpl(
             XmlaResponse response, OlapConnection connection, List<Row> rows)
             throws XmlaException
@@ -2000,6 +2050,10 @@ public enum RowsetDefinition {
                 "A list of all the keywords reserved by a provider.\n"
                 + "Example: AND");
 
+        protected boolean needConnection() {
+            return false;
+        }
+
         public void populateImpl(
             XmlaResponse response, OlapConnection connection, List<Row> rows)
             throws XmlaException
@@ -2080,6 +2134,10 @@ public enum RowsetDefinition {
             "The maximum number of characters in the literal. If there is no "
             + "maximum or the maximum is unknown, the value is ?1.");
 
+        protected boolean needConnection() {
+            return false;
+        }
+
         public void populateImpl(
             XmlaResponse response, OlapConnection connection, List<Row> rows)
             throws XmlaException
@@ -6368,6 +6426,14 @@ TODO: see above
             return request.isDrillThrough();
         }
 
+        public boolean isCancel() {
+            return request.isCancel();
+        }
+
+        public List<XmlaRequest> getBatchRequests() {
+            return request.getBatchRequests();
+        }
+
         public String getUsername() {
             return request.getUsername();
         }
@@ -28,6 +28,32 @@ public interface SaxWriter {
 
     public void startElement(String name, Object... attrs);
 
+    /**
+     * Starts an element with one attribute whose value is a string.
+     *
+     * <p>Equivalent to {@code startElement(name, attr, value)} with
+     * variable arguments, but allocates no array.
+     *
+     * @param name Element name
+     * @param attr Attribute name
+     * @param value Attribute value; if null, the attribute is omitted from
+     *   XML
+     */
+    public void startElement(String name, String attr, String value);
+
+    /**
+     * Starts an element with one attribute whose value is an integer.
+     *
+     * <p>Equivalent to {@code startElement(name, attr, value)} with
+     * variable arguments, but neither allocates an array nor boxes the
+     * value; the digits are written straight to the output.
+     *
+     * @param name Element name
+     * @param attr Attribute name
+     * @param value Attribute value
+     */
+    public void startElement(String name, String attr, int value);
+
     public void endElement();
 
     public void element(String name, Object... attrs);
@@ -74,6 +100,35 @@ public interface SaxWriter {
      */
     public void textElement(String name, Object data);
 
+    /**
+     * Generates a text-only element whose content is an integer. The digits
+     * are written straight to the output, without boxing the value or
+     * converting it to a string.
+     *
+     * @param name Name of element
+     * @param data Content of element
+     */
+    public void textElement(String name, long data);
+
+    /**
+     * Generates a text-only element whose content is a floating-point
+     * number, formatted as {@link Double#toString(double)} would. Does not
+     * box the value.
+     *
+     * @param name Name of element
+     * @param data Content of element
+     */
+    public void textElement(String name, double data);
+
+    /**
+     * Generates a text-only element whose content is a sequence of
+     * characters.
+     *
+     * @param name Name of element
+     * @param data Text content of element
+     */
+    public void textElement(String name, CharSequence data);
+
     public void completeBeforeElement(String tagName);
 
     /**
@@ -86,6 +141,28 @@ public interface SaxWriter {
      * Flushes any unwritten output.
      */
     public void flush();
+
+    /**
+     * Ends all elements that have been started and not ended, as if
+     * processing had finished normally, and flushes. Call when processing
+     * has failed part-way, so that the output is well-formed.
+     */
+    public void endOpenElements();
+
+    /**
+     * Returns whether this writer omits line breaks and indentation, so
+     * that text written verbatim to it should too.
+     */
+    public boolean isCompact();
+
+    /**
+     * Returns the current indent, that is, the number of elements that have
+     * been started and not ended plus any initial indent; or -1 if the
+     * writer's output is not XML laid out as {@code DefaultSaxWriter} lays
+     * it out, so that XML rendered by one cannot be written verbatim to
+     * it.
+     */
+    public int getIndent();
 }
 
 // End SaxWriter.java
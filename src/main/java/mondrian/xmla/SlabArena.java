@@ -0,0 +1,200 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Memory outside the Java heap, in direct {@link ByteBuffer} slabs, divided
+ * into fixed-size blocks.
+ *
+ * <p>A value is stored in as many blocks as it needs, which need not be
+ * contiguous. Slabs are allocated when first needed, up to the budget, and
+ * are never released; freed blocks are reused.
+ *
+ * <p>This class is not thread-safe: the caller must serialize calls to
+ * {@link #allocate}, {@link #free} and {@link #put}. {@link #write} may be
+ * called concurrently with the other methods, provided that the caller
+ * does not free blocks while they are being written.
+ */
+public class SlabArena {
+    /** Size of a block, in bytes. */
+    public static final int BLOCK_SIZE = 1024;
+
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;
+
+    /** Size of the buffer through which blocks are copied to a stream. */
+    private static final int TRANSFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER =
+        new ThreadLocal<byte[]>() {
+            protected byte[] initialValue() {
+                return new byte[TRANSFER_SIZE];
+            }
+        };
+
+    private final int blocksPerSlab;
+    private final ByteBuffer[] slabs;
+    private int slabCount;
+
+    /** Ids of free blocks, in slabs that have been allocated. */
+    private final int[] freeBlocks;
+    private int freeCount;
+
+    /**
+     * Creates a SlabArena.
+     *
+     * @param maxBytes Maximum number of bytes of memory to allocate; rounded
+     *   down to a whole number of slabs, but at least one block
+     */
+    public SlabArena(long maxBytes) {
+        final long blockCount = Math.max(1, maxBytes / BLOCK_SIZE);
+        this.blocksPerSlab =
+            (int) Math.min(blockCount, MAX_SLAB_SIZE / BLOCK_SIZE);
+        final long count = blockCount / blocksPerSlab;
+        if (count * blocksPerSlab > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                "Arena too large: " + maxBytes + " bytes");
+        }
+        this.slabs = new ByteBuffer[(int) count];
+        this.freeBlocks = new int[(int) count * blocksPerSlab];
+    }
+
+    /**
+     * Returns the number of blocks needed to hold a given number of bytes.
+     */
+    public static int blockCount(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Allocates blocks.
+     *
+     * @param count Number of blocks
+     * @return Ids of blocks, or null if there are not enough free blocks
+     */
+    public int[] allocate(int count) {
+        while (freeCount < count && slabCount < slabs.length) {
+            addSlab();
+        }
+        if (freeCount < count) {
+            return null;
+        }
+        final int[] blocks = new int[count];
+        freeCount -= count;
+        System.arraycopy(freeBlocks, freeCount, blocks, 0, count);
+        return blocks;
+    }
+
+    /**
+     * Returns blocks to the arena.
+     *
+     * @param blocks Ids of blocks, as returned by {@link #allocate}
+     */
+    public void free(int[] blocks) {
+        System.arraycopy(blocks, 0, freeBlocks, freeCount, blocks.length);
+        freeCount += blocks.length;
+    }
+
+    /**
+     * Copies bytes into blocks.
+     *
+     * @param blocks Blocks, enough to hold the bytes
+     * @param bytes Bytes
+     */
+    public void put(int[] blocks, byte[] bytes) {
+        int offset = 0;
+        for (int block : blocks) {
+            final int n = Math.min(BLOCK_SIZE, bytes.length - offset);
+            final ByteBuffer buffer = slice(block);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes the contents of blocks to a stream.
+     *
+     * <p>The bytes are not copied onto the heap as a whole; they pass
+     * through a small per-thread transfer buffer, because
+     * {@link OutputStream} only accepts arrays.
+     *
+     * @param blocks Blocks
+     * @param length Number of bytes to write
+     * @param out Output stream
+     * @throws IOException on error
+     */
+    public void write(int[] blocks, int length, OutputStream out)
+        throws IOException
+    {
+        final byte[] transfer = TRANSFER_BUFFER.get();
+        int pending = 0;
+        int remaining = length;
+        for (int block : blocks) {
+            final int n = Math.min(BLOCK_SIZE, remaining);
+            if (pending + n > transfer.length) {
+                out.write(transfer, 0, pending);
+                pending = 0;
+            }
+            slice(block).get(transfer, pending, n);
+            pending += n;
+            remaining -= n;
+        }
+        if (pending > 0) {
+            out.write(transfer, 0, pending);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of memory allocated for slabs.
+     */
+    public long getAllocatedBytes() {
+        return (long) slabCount * blocksPerSlab * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the number of bytes in blocks that are in use.
+     */
+    public long getUsedBytes() {
+        return ((long) slabCount * blocksPerSlab - freeCount) * BLOCK_SIZE;
+    }
+
+    /**
+     * Returns the maximum number of bytes the arena can hold.
+     */
+    public long getCapacityBytes() {
+        return (long) freeBlocks.length * BLOCK_SIZE;
+    }
+
+    private void addSlab() {
+        final int slab = slabCount++;
+        slabs[slab] = ByteBuffer.allocateDirect(blocksPerSlab * BLOCK_SIZE);
+        // Push in reverse, so that blocks are handed out in order.
+        for (int i = blocksPerSlab - 1; i >= 0; --i) {
+            freeBlocks[freeCount++] = slab * blocksPerSlab + i;
+        }
+    }
+
+    /**
+     * Returns a buffer over a block, with its own position, so that
+     * threads do not disturb each other.
+     */
+    private ByteBuffer slice(int block) {
+        final ByteBuffer buffer = slabs[block / blocksPerSlab].duplicate();
+        final int start = (block % blocksPerSlab) * BLOCK_SIZE;
+        buffer.limit(start + BLOCK_SIZE);
+        buffer.position(start);
+        return buffer;
+    }
+}
+
+// End SlabArena.java
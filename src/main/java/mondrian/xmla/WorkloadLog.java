@@ -0,0 +1,531 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.olap4j.metadata.XmlaConstants.Method;
+
+/**
+ * Log of a sample of the requests a server has processed, which a server
+ * replays when it starts, to warm its caches, connection pools, and the
+ * caches of the OLAP engine.
+ *
+ * <p>Each line of the file holds a count and a request: its method,
+ * response MIME type and encoding, role, and the statement or the request
+ * type and restrictions, properties, and whether the response was compact.
+ * User names and passwords are not recorded, so requests are replayed with
+ * the role alone. Cancel, Batch and drill-through requests are not
+ * recorded.
+ *
+ * <p>Lines are buffered, and written to the file when the buffer is full
+ * and when the log is closed, so that recording a request rarely waits for
+ * the disk; if the server stops abruptly, the last few lines may be lost.
+ *
+ * <p>{@link #load(int)} reads the file, adds up the counts of identical
+ * requests, rewrites the file with one line per distinct request, and
+ * returns the most frequent.
+ */
+public class WorkloadLog {
+    private static final Logger LOGGER = Logger.getLogger(WorkloadLog.class);
+
+    /** Recording stops when the file reaches this size. */
+    private static final long MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    /** Number of distinct requests kept when the file is rewritten. */
+    private static final int MAX_DISTINCT_REQUESTS = 10000;
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final double sampleRate;
+
+    /** Guards {@link #out} and {@link #size}. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private OutputStream out;
+    /** Size of the file, in bytes, including lines not yet written. */
+    private long size;
+    private boolean closed;
+
+    /**
+     * Creates a WorkloadLog.
+     *
+     * @param file File
+     * @param samplePercent Percentage of requests to record
+     */
+    public WorkloadLog(File file, int samplePercent) {
+        this.file = file;
+        this.sampleRate = samplePercent / 100d;
+    }
+
+    /**
+     * Records a request, if it is in the sample.
+     *
+     * @param request Request, which has been processed successfully
+     * @param responseMimeType MIME type of the response
+     * @param encoding Character encoding of the response
+     * @param compact Whether the response was written without line breaks
+     *   and indentation
+     */
+    public void record(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+    {
+        if (request instanceof Sample
+            || sampleRate <= 0
+            || (sampleRate < 1 && Math.random() >= sampleRate))
+        {
+            return;
+        }
+        final byte[] line;
+        try {
+            final String s =
+                format(request, responseMimeType, encoding, compact);
+            if (s == null) {
+                return;
+            }
+            line = ("1\t" + s + '\n').getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        lock.lock();
+        try {
+            if (closed || size >= MAX_FILE_SIZE) {
+                return;
+            }
+            if (out == null) {
+                size = file.length();
+                out =
+                    new BufferedOutputStream(
+                        new FileOutputStream(file, true), BUFFER_SIZE);
+            }
+            out.write(line);
+            size += line.length;
+            if (size >= MAX_FILE_SIZE) {
+                LOGGER.info(
+                    "Workload log '" + file + "' is full; stopped recording"
+                    + " until the next restart");
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not write to workload log '" + file + "'", e);
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the file. Later requests are not recorded.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error while closing workload log '" + file + "'", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the file, and returns the most frequent requests, most frequent
+     * first. Rewrites the file with one line per distinct request. Call
+     * before recording starts.
+     *
+     * @param count Maximum number of requests to return
+     * @return Requests
+     * @throws IOException on error
+     */
+    public List<Sample> load(int count) throws IOException {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        if (file.exists()) {
+            final BufferedReader reader =
+                new BufferedReader(
+                    new InputStreamReader(
+                        new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int tab = line.indexOf('\t');
+                    if (tab <= 0) {
+                        continue;
+                    }
+                    final long n;
+                    try {
+                        n = Long.parseLong(line.substring(0, tab));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    final String request = line.substring(tab + 1);
+                    final Long previous = counts.get(request);
+                    counts.put(request, previous == null ? n : previous + n);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        final List<Map.Entry<String, Long>> list =
+            new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        Collections.sort(
+            list,
+            new Comparator<Map.Entry<String, Long>>() {
+                public int compare(
+                    Map.Entry<String, Long> e0,
+                    Map.Entry<String, Long> e1)
+                {
+                    return e1.getValue().compareTo(e0.getValue());
+                }
+            });
+        if (list.size() > MAX_DISTINCT_REQUESTS) {
+            list.subList(MAX_DISTINCT_REQUESTS, list.size()).clear();
+        }
+
+        // Rewrite the file, so that it does not grow without limit.
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Writer w =
+            new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+        try {
+            for (Map.Entry<String, Long> e : list) {
+                w.write(String.valueOf(e.getValue()));
+                w.write('\t');
+                w.write(e.getKey());
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)
+            && !(file.delete() && tmp.renameTo(file)))
+        {
+            throw new IOException(
+                "Could not replace workload log '" + file + "'");
+        }
+
+        final List<Sample> samples = new ArrayList<Sample>();
+        for (Map.Entry<String, Long> e : list) {
+            if (samples.size() >= count) {
+                break;
+            }
+            final Sample sample = parse(e.getKey());
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Processes requests in the background, discarding their responses.
+     * Failures are logged and ignored.
+     *
+     * @param handler Handler
+     * @param samples Requests
+     * @param executor Executor on which to process the requests
+     * @param compact Whether responses are written without line breaks and
+     *   indentation, for requests logged before that was recorded; other
+     *   requests are replayed as they were processed, so that they warm
+     *   the same cache entries
+     * @param timeoutMillis Time to wait for the requests to finish, or 0 to
+     *   return at once
+     * @return Number of requests that succeeded before this method returned
+     */
+    public static int replay(
+        final XmlaHandler handler,
+        List<Sample> samples,
+        ExecutorService executor,
+        final boolean compact,
+        long timeoutMillis)
+    {
+        final AtomicInteger successCount = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(samples.size());
+        for (final Sample sample : samples) {
+            executor.execute(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            handler.processAndDiscard(
+                                sample,
+                                sample.responseMimeType,
+                                sample.encoding,
+                                sample.compact != null
+                                    ? sample.compact
+                                    : compact);
+                            successCount.incrementAndGet();
+                        } catch (Throwable t) {
+                            LOGGER.debug("Warm-up request failed", t);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+        }
+        if (timeoutMillis > 0) {
+            try {
+                if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    LOGGER.info(
+                        "Warm-up did not finish in " + timeoutMillis
+                        + " ms; continuing in the background");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return successCount.get();
+    }
+
+    /**
+     * Formats a request as a line, or returns null if it is not to be
+     * recorded.
+     */
+    private static String format(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+        throws UnsupportedEncodingException
+    {
+        final Method method = request.getMethod();
+        switch (method) {
+        case EXECUTE:
+            if (request.isCancel()
+                || request.getBatchRequests() != null
+                || request.isDrillThrough())
+            {
+                return null;
+            }
+            break;
+        case DISCOVER:
+            break;
+        default:
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        buf.append(method.name())
+            .append('\t').append(encode(responseMimeType.name()))
+            .append('\t').append(encode(encoding))
+            .append('\t').append(encode(request.getRoleName()))
+            .append('\t').append(
+                encode(method == Method.EXECUTE
+                    ? request.getStatement()
+                    : request.getRequestType()))
+            .append('\t');
+        final Map<String, Object> restrictions =
+            method == Method.DISCOVER
+                ? new TreeMap<String, Object>(request.getRestrictions())
+                : Collections.<String, Object>emptyMap();
+        int i = 0;
+        for (Map.Entry<String, Object> e : restrictions.entrySet()) {
+            if (i++ > 0) {
+                buf.append('&');
+            }
+            buf.append(encode(e.getKey())).append('=');
+            if (e.getValue() instanceof List) {
+                int j = 0;
+                for (Object value : (List) e.getValue()) {
+                    if (j++ > 0) {
+                        buf.append(',');
+                    }
+                    buf.append(encode(String.valueOf(value)));
+                }
+            } else {
+                buf.append(encode(String.valueOf(e.getValue())));
+            }
+        }
+        buf.append('\t');
+        i = 0;
+        for (Map.Entry<String, String> e
+            : new TreeMap<String, String>(request.getProperties()).entrySet())
+        {
+            if (i++ > 0) {
+                buf.append('&');
+            }
+            buf.append(encode(e.getKey())).append('=')
+                .append(encode(e.getValue()));
+        }
+        buf.append('\t').append(compact);
+        return buf.toString();
+    }
+
+    /**
+     * Parses a line written by {@link #format}, or returns null if it is
+     * not valid. Lines written before the compact flag was recorded have
+     * seven fields.
+     */
+    private static Sample parse(String line) {
+        final String[] fields = line.split("\t", -1);
+        if (fields.length != 7 && fields.length != 8) {
+            return null;
+        }
+        try {
+            final Method method = Method.valueOf(fields[0]);
+            final Enumeration.ResponseMimeType responseMimeType =
+                Enumeration.ResponseMimeType.valueOf(decode(fields[1]));
+            final Map<String, Object> restrictions =
+                new HashMap<String, Object>();
+            for (String pair : split(fields[5], '&')) {
+                final int eq = pair.indexOf('=');
+                final List<String> values = new ArrayList<String>();
+                for (String value : split(pair.substring(eq + 1), ',')) {
+                    values.add(decode(value));
+                }
+                restrictions.put(decode(pair.substring(0, eq)), values);
+            }
+            final Map<String, String> properties =
+                new HashMap<String, String>();
+            for (String pair : split(fields[6], '&')) {
+                final int eq = pair.indexOf('=');
+                properties.put(
+                    decode(pair.substring(0, eq)),
+                    decode(pair.substring(eq + 1)));
+            }
+            return new Sample(
+                method,
+                responseMimeType,
+                decode(fields[2]),
+                decode(fields[3]),
+                decode(fields[4]),
+                restrictions,
+                properties,
+                fields.length == 8 ? Boolean.valueOf(fields[7]) : null);
+        } catch (RuntimeException e) {
+            LOGGER.debug("Ignoring invalid workload log entry: " + line, e);
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Splits a string; an empty string has no parts. */
+    private static String[] split(String s, char c) {
+        return s.length() == 0
+            ? new String[0]
+            : s.split(String.valueOf(c), -1);
+    }
+
+    /** Encodes a string so that it contains no tab, comma, '=' or '&'. */
+    private static String encode(String s)
+        throws UnsupportedEncodingException
+    {
+        return s == null ? "" : URLEncoder.encode(s, ENCODING);
+    }
+
+    /** Decodes a string; the empty string decodes to null. */
+    private static String decode(String s)
+        throws UnsupportedEncodingException
+    {
+        return s.length() == 0 ? null : URLDecoder.decode(s, ENCODING);
+    }
+
+    /**
+     * Request read from the log.
+     */
+    public static class Sample implements XmlaRequest {
+        private final Method method;
+        private final Enumeration.ResponseMimeType responseMimeType;
+        private final String encoding;
+        private final String roleName;
+        private final String statementOrRequestType;
+        private final Map<String, Object> restrictions;
+        private final Map<String, String> properties;
+        private final Boolean compact;
+
+        Sample(
+            Method method,
+            Enumeration.ResponseMimeType responseMimeType,
+            String encoding,
+            String roleName,
+            String statementOrRequestType,
+            Map<String, Object> restrictions,
+            Map<String, String> properties,
+            Boolean compact)
+        {
+            this.method = method;
+            this.responseMimeType = responseMimeType;
+            this.encoding = encoding;
+            this.roleName = roleName;
+            this.statementOrRequestType = statementOrRequestType;
+            this.restrictions = Collections.unmodifiableMap(restrictions);
+            this.properties = Collections.unmodifiableMap(properties);
+            this.compact = compact;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        public Map<String, Object> getRestrictions() {
+            return restrictions;
+        }
+
+        public String getStatement() {
+            return method == Method.EXECUTE ? statementOrRequestType : null;
+        }
+
+        public String getRoleName() {
+            return roleName;
+        }
+
+        public String getRequestType() {
+            return method == Method.DISCOVER ? statementOrRequestType : null;
+        }
+
+        public boolean isDrillThrough() {
+            return false;
+        }
+
+        public boolean isCancel() {
+            return false;
+        }
+
+        public List<XmlaRequest> getBatchRequests() {
+            return null;
+        }
+
+        public String getUsername() {
+            return null;
+        }
+
+        public String getPassword() {
+            return null;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public String toString() {
+            return method + " " + statementOrRequestType;
+        }
+    }
+}
+
+// End WorkloadLog.java
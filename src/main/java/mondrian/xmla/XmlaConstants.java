@@ -44,6 +44,11 @@ public interface XmlaConstants {
     public static final String NS_SQL = "urn:schemas-microsoft-com:xml-sql";
     public static final String NS_XMLA_EX =
         "urn:schemas-microsoft-com:xml-analysis:exception";
+    public static final String NS_XMLA_ENGINE =
+        "http://schemas.microsoft.com/analysisservices/2003/engine";
+    public static final String NS_XMLA_MULTIPLE_RESULTS =
+        "http://schemas.microsoft.com/analysisservices/2003/"
+        + "xmla-multipleresults";
 
     public static final String NS_SOAP_SECEXT =
         "http://schemas.xmlsoap.org/ws/2002/04/secext";
@@ -86,6 +91,19 @@ public interface XmlaConstants {
     public static final String CONTEXT_XMLA_SESSION_STATE_END =
         "SessionStateEnd";
 
+    // context key by which a callback that needs to see or modify the whole
+    // response body in postAction asks the servlet not to stream it; value
+    // is Boolean.TRUE
+    public static final String CONTEXT_BUFFER_RESPONSE = "buffer_response";
+
+    // context key for the value of the request's "If-None-Match" HTTP
+    // header, if any; value is a String
+    public static final String CONTEXT_IF_NONE_MATCH = "if_none_match";
+
+    // context key for whether the response body is to be written with line
+    // breaks and indentation, if the request asked; value is a Boolean
+    public static final String CONTEXT_PRETTY_PRINT = "pretty_print";
+
     /*************************************************************************
     *
     * The following are XMLA exception fault codes used as faultcode entries
@@ -130,6 +148,14 @@ public interface XmlaConstants {
     public static final String USM_REQUEST_INPUT_FAULT_FS =
             "Request input Exception occurred";
 
+    public static final String USM_REQUEST_TOO_LARGE_CODE = "00USMA03";
+    public static final String USM_REQUEST_TOO_LARGE_FAULT_FS =
+            "Request content exceeds maximum size";
+
+    public static final String USM_CONTENT_ENCODING_CODE = "00USMA04";
+    public static final String USM_CONTENT_ENCODING_FAULT_FS =
+            "Request content encoding not supported";
+
     public static final String USM_DOM_FACTORY_CODE = "00USMB01";
     public static final String USM_DOM_FACTORY_FAULT_FS =
         "DocumentBuilder cannot be created which satisfies the configuration "
@@ -241,6 +267,10 @@ public interface XmlaConstants {
     public static final String HSB_BAD_NON_NULLABLE_COLUMN_FAULT_FS =
             "XMLA SOAP non-nullable column";
 
+    public static final String HSB_BUSY_CODE = "00HSBB17";
+    public static final String HSB_BUSY_FAULT_FS =
+            "Server busy: too many requests waiting to be processed";
+
 
     public static final String HSB_CONNECTION_DATA_SOURCE_CODE = "00HSBC01";
     public static final String HSB_CONNECTION_DATA_SOURCE_FAULT_FS =
@@ -258,6 +288,14 @@ public interface XmlaConstants {
     public static final String HSB_EXECUTE_QUERY_FAULT_FS =
         "XMLA MDX execute failed";
 
+    public static final String HSB_TIMEOUT_CODE = "00HSBD03";
+    public static final String HSB_TIMEOUT_FAULT_FS =
+        "XMLA request timed out";
+
+    public static final String HSB_CANCELED_CODE = "00HSBD04";
+    public static final String HSB_CANCELED_FAULT_FS =
+        "XMLA request canceled";
+
     public static final String HSB_DISCOVER_FORMAT_CODE = "00HSBE01";
     public static final String HSB_DISCOVER_FORMAT_FAULT_FS =
             "XMLA Discover format error";
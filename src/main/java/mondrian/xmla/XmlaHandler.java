@@ -11,6 +11,7 @@
 package mondrian.xmla;
 
 import mondrian.xmla.impl.DefaultSaxWriter;
+import mondrian.xmla.impl.DefaultXmlaResponse;
 
 import org.olap4j.xmla.server.impl.CompositeList;
 import org.olap4j.xmla.server.impl.Util;
@@ -25,13 +26,15 @@ import org.olap4j.metadata.Property.StandardMemberProperty;
 
 import org.xml.sax.SAXException;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.*;
 
 import static mondrian.xmla.XmlaConstants.*;
 import static org.olap4j.metadata.XmlaConstants.*;
@@ -64,6 +67,45 @@ public class XmlaHandler {
 
     final ConnectionFactory connectionFactory;
     private final String prefix;
+    private final RequestRegistry requestRegistry = new RequestRegistry();
+    private int defaultTimeout;
+    private int maxTimeout;
+    private ExecutorService batchExecutor;
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+    private boolean coalesceRequests;
+    private ResultCache resultCache;
+    private ResultCache discoverCache;
+    private WorkloadLog workloadLog;
+
+    /**
+     * Serialized responses of Discover requests for rowsets that do not
+     * depend on a connection, keyed by {@link #getStaticKey}.
+     */
+    private final ConcurrentMap<String, byte[]> staticResponses =
+        new ConcurrentHashMap<String, byte[]>();
+
+    /** Maximum number of entries in {@link #staticResponses}. */
+    private static final int MAX_STATIC_RESPONSES = 1000;
+
+    /**
+     * Maximum length, in characters, of a response that the leader of
+     * coalesced requests shares with the others. A longer response is
+     * streamed to the leader's client, and the others process their own
+     * requests.
+     */
+    private static final int MAX_SHARED_RESPONSE_CHARS = 4 * 1024 * 1024;
+
+    /**
+     * Rowsets whose contents are the same for every connection and user,
+     * and can be rendered once.
+     */
+    private static final Set<RowsetDefinition> STATIC_ROWSETS =
+        EnumSet.of(
+            RowsetDefinition.DISCOVER_SCHEMA_ROWSETS,
+            RowsetDefinition.DISCOVER_ENUMERATORS,
+            RowsetDefinition.DISCOVER_PROPERTIES,
+            RowsetDefinition.DISCOVER_KEYWORDS,
+            RowsetDefinition.DISCOVER_LITERALS);
 
     /**
      * Returns a new OlapConnection opened with the credentials specified in the
@@ -147,13 +189,22 @@ public class XmlaHandler {
     }
 
     private static final String EMPTY_ROW_SET_XML_SCHEMA =
-        computeEmptyXsd(SetType.ROW_SET);
+        computeEmptyXsd(SetType.ROW_SET, false);
 
     private static final String MD_DATA_SET_XML_SCHEMA =
-        computeXsd(SetType.MD_DATA_SET);
+        computeXsd(SetType.MD_DATA_SET, false);
 
     private static final String EMPTY_MD_DATA_SET_XML_SCHEMA =
-        computeEmptyXsd(SetType.MD_DATA_SET);
+        computeEmptyXsd(SetType.MD_DATA_SET, false);
+
+    private static final String COMPACT_EMPTY_ROW_SET_XML_SCHEMA =
+        computeEmptyXsd(SetType.ROW_SET, true);
+
+    private static final String COMPACT_MD_DATA_SET_XML_SCHEMA =
+        computeXsd(SetType.MD_DATA_SET, true);
+
+    private static final String COMPACT_EMPTY_MD_DATA_SET_XML_SCHEMA =
+        computeEmptyXsd(SetType.MD_DATA_SET, true);
 
     private static final String NS_XML_SQL =
         "urn:schemas-microsoft-com:xml-sql";
@@ -573,22 +624,48 @@ public class XmlaHandler {
 
 
 
-    private static String computeXsd(SetType setType) {
+    private static String computeXsd(SetType setType, boolean compact) {
         final StringWriter sw = new StringWriter();
-        SaxWriter writer = new DefaultSaxWriter(new PrintWriter(sw), 3);
+        SaxWriter writer =
+            new DefaultSaxWriter(new PrintWriter(sw), 3, compact);
         writeDatasetXmlSchema(writer, setType);
         writer.flush();
         return sw.toString();
     }
 
-    private static String computeEmptyXsd(SetType setType) {
+    private static String computeEmptyXsd(SetType setType, boolean compact) {
         final StringWriter sw = new StringWriter();
-        SaxWriter writer = new DefaultSaxWriter(new PrintWriter(sw), 3);
+        SaxWriter writer =
+            new DefaultSaxWriter(new PrintWriter(sw), 3, compact);
         writeEmptyDatasetXmlSchema(writer, setType);
         writer.flush();
         return sw.toString();
     }
 
+    /**
+     * Writes a text-only element whose content is a value of unknown type.
+     * Integers and doubles are written by the typed overloads of
+     * {@link SaxWriter#textElement}, which neither box nor format them as
+     * strings; other values are converted by {@code toString()}.
+     *
+     * @param writer Writer
+     * @param name Name of element
+     * @param value Value
+     */
+    static void textElement(SaxWriter writer, String name, Object value) {
+        if (value instanceof Integer
+            || value instanceof Long
+            || value instanceof Short
+            || value instanceof Byte)
+        {
+            writer.textElement(name, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            writer.textElement(name, ((Double) value).doubleValue());
+        } else {
+            writer.textElement(name, value);
+        }
+    }
+
     private static interface QueryResult {
         void unparse(SaxWriter res) throws SAXException, OlapException;
         void close() throws SQLException;
@@ -612,9 +689,196 @@ public class XmlaHandler {
         this.prefix = prefix;
     }
 
+    /**
+     * Returns the registry of the requests that this handler is processing.
+     */
+    public RequestRegistry getRequestRegistry() {
+        return requestRegistry;
+    }
+
+    /**
+     * Sets the timeout, in seconds, of requests that do not specify the
+     * {@link PropertyDefinition#Timeout Timeout} property. 0 means no
+     * timeout. A request whose Timeout is 0 has no timeout either, whatever
+     * the default.
+     */
+    public void setDefaultTimeout(int defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    /**
+     * Sets the largest timeout, in seconds, that a request may ask for.
+     * 0 means no limit.
+     */
+    public void setMaxTimeout(int maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Sets the executor that runs the commands of a Batch in parallel. If
+     * null (the default), they run one after another in the thread that
+     * processes the request.
+     */
+    public void setBatchExecutor(ExecutorService batchExecutor) {
+        this.batchExecutor = batchExecutor;
+    }
+
+    /**
+     * Returns the table of requests whose responses are shared by identical
+     * requests, and its statistics.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Sets whether identical requests that arrive while one of them is
+     * being processed receive a copy of its response instead of being
+     * processed. Default is false.
+     *
+     * <p>Each response that may be shared is buffered in memory before it
+     * is written, so it is not streamed to the client.
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Returns the cache of Execute responses, or null if there is none.
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the cache of Execute responses. If not null, the serialized
+     * response of each MDX statement is cached, and an identical statement
+     * (with the same catalog, role and format properties) is answered from
+     * the cache, without a connection.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Returns the cache of Discover responses, or null if there is none.
+     */
+    public ResultCache getDiscoverCache() {
+        return discoverCache;
+    }
+
+    /**
+     * Sets the cache of Discover responses. If not null, the serialized
+     * response of each metadata rowset (MDSCHEMA_xxx and DBSCHEMA_xxx) is
+     * cached, keyed by rowset, restrictions, properties and role.
+     */
+    public void setDiscoverCache(ResultCache discoverCache) {
+        this.discoverCache = discoverCache;
+    }
+
+    /**
+     * Sets the log in which a sample of successful requests is recorded,
+     * to be replayed when the server restarts; or null.
+     */
+    public void setWorkloadLog(WorkloadLog workloadLog) {
+        this.workloadLog = workloadLog;
+    }
+
+    /**
+     * Removes all responses from the result and Discover caches; for
+     * example, after a schema has been changed.
+     */
+    public void clearCaches() {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+        if (discoverCache != null) {
+            discoverCache.clear();
+        }
+    }
+
+    /**
+     * Tells the caches the load date of the schema of a connection, so
+     * that they are cleared if the schema has been reloaded.
+     */
+    void checkSchema(OlapConnection connection) {
+        if (resultCache != null || discoverCache != null) {
+            final XmlaExtra extra = connectionFactory.getExtra();
+            if (resultCache != null) {
+                resultCache.checkSchema(connection, extra);
+            }
+            if (discoverCache != null) {
+                discoverCache.checkSchema(connection, extra);
+            }
+        }
+    }
+
+    /**
+     * Returns the time, in milliseconds, that a request is allowed to run,
+     * or 0 if unlimited.
+     *
+     * <p>A request's {@code Timeout} property overrides the default timeout;
+     * a {@code Timeout} of 0 asks for no timeout. Either is capped by the
+     * maximum timeout, if there is one.
+     */
+    private long getTimeoutMillis(XmlaRequest request) {
+        int timeout = defaultTimeout;
+        final String timeoutString =
+            request.getProperties().get(PropertyDefinition.Timeout.name());
+        if (timeoutString != null && timeoutString.length() > 0) {
+            try {
+                final int requestTimeout =
+                    Integer.parseInt(timeoutString.trim());
+                if (requestTimeout >= 0) {
+                    // As in XMLA, 0 means no timeout (up to MaxTimeout).
+                    timeout = requestTimeout;
+                }
+            } catch (NumberFormatException e) {
+                throw new XmlaException(
+                    CLIENT_FAULT_FC,
+                    HSB_BAD_PROPERTIES_CODE,
+                    HSB_BAD_PROPERTIES_FAULT_FS,
+                    Util.newError(
+                        e, "Invalid Timeout property: " + timeoutString));
+            }
+        }
+        if (maxTimeout > 0 && (timeout <= 0 || timeout > maxTimeout)) {
+            timeout = maxTimeout;
+        }
+        return timeout > 0 ? timeout * 1000L : 0;
+    }
+
+    /**
+     * Processes a request and discards the response; used to warm the
+     * caches.
+     *
+     * @param request Request
+     * @param responseMimeType MIME type of the response
+     * @param encoding Character encoding of the response
+     * @param compact Whether the response is written without line breaks
+     *   and indentation
+     * @throws XmlaException on error
+     */
+    void processAndDiscard(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+        throws XmlaException
+    {
+        process(
+            request,
+            new DefaultXmlaResponse(
+                new NullOutputStream(), encoding, responseMimeType, false,
+                compact));
+    }
+
     /**
      * Processes a request.
      *
+     * <p>If the request runs for longer than its timeout, cancels its
+     * statement and fails with {@link XmlaConstants#HSB_TIMEOUT_CODE}.
+     *
      * @param request  XML request, for example, "<SOAP-ENV:Envelope ...>".
      * @param response Destination for response
      * @throws XmlaException on error
@@ -622,28 +886,657 @@ public class XmlaHandler {
     public void process(XmlaRequest request, XmlaResponse response)
         throws XmlaException
     {
-        Method method = request.getMethod();
         long start = System.currentTimeMillis();
+        final String staticKey =
+            response instanceof DefaultXmlaResponse
+                ? getStaticKey(
+                    request,
+                    ((DefaultXmlaResponse) response).getResponseMimeType(),
+                    ((DefaultXmlaResponse) response).getEncoding(),
+                    ((DefaultXmlaResponse) response).isCompact())
+                : null;
+        final ResultCache cache =
+            request.getMethod() == Method.DISCOVER
+                ? discoverCache
+                : resultCache;
+        final String cacheKey =
+            staticKey == null
+            && cache != null
+            && response instanceof DefaultXmlaResponse
+                ? getCacheKey(
+                    request,
+                    ((DefaultXmlaResponse) response).getResponseMimeType(),
+                    ((DefaultXmlaResponse) response).getEncoding(),
+                    ((DefaultXmlaResponse) response).isCompact())
+                : null;
+        if (staticKey != null) {
+            processStatic(request, (DefaultXmlaResponse) response, staticKey);
+        } else if (cacheKey != null) {
+            processCached(
+                request, (DefaultXmlaResponse) response, cache, cacheKey);
+        } else {
+            processUncached(request, response);
+        }
+        if (workloadLog != null && response instanceof DefaultXmlaResponse) {
+            final DefaultXmlaResponse defaultResponse =
+                (DefaultXmlaResponse) response;
+            workloadLog.record(
+                request,
+                defaultResponse.getResponseMimeType(),
+                defaultResponse.getEncoding(),
+                defaultResponse.isCompact());
+        }
+        if (LOGGER.isDebugEnabled()) {
+            long end = System.currentTimeMillis();
+            LOGGER.debug("XmlaHandler.process: time = " + (end - start));
+            LOGGER.debug("XmlaHandler.process: " + Util.printMemory());
+        }
+    }
+
+    /**
+     * Writes the response to a request from a cache, or processes the
+     * request and caches its response. If the cached response is stale,
+     * the cache may process the request again in the background.
+     */
+    private void processCached(
+        final XmlaRequest request,
+        final DefaultXmlaResponse response,
+        ResultCache cache,
+        String key)
+        throws XmlaException
+    {
+        try {
+            final Callable<byte[]> recompute =
+                new Callable<byte[]>() {
+                    public byte[] call() {
+                        final ByteArrayOutputStream out =
+                            new ByteArrayOutputStream();
+                        processUncached(request, newResponse(out, response));
+                        return out.toByteArray();
+                    }
+                };
+            if (cache.write(key, response.getOutputStream(), recompute)) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                        "XmlaHandler.process: response found in cache");
+                }
+                return;
+            }
+            // Stream the response to the client, keeping a copy to cache
+            // unless it grows too large to be cached.
+            final long epoch = cache.getEpoch();
+            final CapturingOutputStream out =
+                new CapturingOutputStream(
+                    response.getOutputStream(), cache.getMaxEntryBytes());
+            final DefaultXmlaResponse capturingResponse =
+                newResponse(out, response);
+            boolean succeeded = false;
+            try {
+                processUncached(request, capturingResponse);
+                succeeded = true;
+            } finally {
+                if (!succeeded) {
+                    // Part of the response may have been sent; end it
+                    // cleanly, as the servlet would have.
+                    try {
+                        capturingResponse.finish();
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Error while ending XML/A response", e);
+                    }
+                }
+            }
+            final byte[] bytes = out.getCopy();
+            if (bytes != null) {
+                cache.put(key, bytes, epoch);
+            }
+        } catch (IOException e) {
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                HSB_EXECUTE_UNPARSE_CODE,
+                HSB_EXECUTE_UNPARSE_FAULT_FS,
+                e);
+        }
+    }
+
+    /**
+     * Writes the response to a Discover request for a static rowset,
+     * rendering it if this is the first such request.
+     */
+    private void processStatic(
+        XmlaRequest request,
+        DefaultXmlaResponse response,
+        String key)
+        throws XmlaException
+    {
+        try {
+            byte[] bytes = staticResponses.get(key);
+            if (bytes == null) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                process(request, newResponse(out, response), true);
+                bytes = out.toByteArray();
+                if (staticResponses.size() < MAX_STATIC_RESPONSES) {
+                    final byte[] existing =
+                        staticResponses.putIfAbsent(key, bytes);
+                    if (existing != null) {
+                        bytes = existing;
+                    }
+                }
+            }
+            response.getOutputStream().write(bytes);
+        } catch (IOException e) {
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                HSB_DISCOVER_UNPARSE_CODE,
+                HSB_DISCOVER_UNPARSE_FAULT_FS,
+                e);
+        }
+    }
+
+    /**
+     * Creates a response that writes to a buffer in the same format as
+     * another response.
+     */
+    private static DefaultXmlaResponse newResponse(
+        OutputStream out,
+        DefaultXmlaResponse response)
+    {
+        return new DefaultXmlaResponse(
+            out,
+            response.getEncoding(),
+            response.getResponseMimeType(),
+            response.isUtf8Writer(),
+            response.isCompact());
+    }
+
+    /**
+     * Renders the responses to unrestricted Discover requests for the
+     * static rowsets (DISCOVER_SCHEMA_ROWSETS, DISCOVER_ENUMERATORS,
+     * DISCOVER_PROPERTIES, DISCOVER_KEYWORDS and DISCOVER_LITERALS), in
+     * each response MIME type, compact and not, so that the first such
+     * requests do not have to. Other variants are rendered when first
+     * requested.
+     *
+     * @param encoding Encoding of responses
+     */
+    public void prepareStaticResponses(String encoding) {
+        for (RowsetDefinition rowsetDefinition : STATIC_ROWSETS) {
+            for (Enumeration.ResponseMimeType responseMimeType
+                : Enumeration.ResponseMimeType.values())
+            {
+                final XmlaRequest request =
+                    new WorkloadLog.Sample(
+                        Method.DISCOVER,
+                        responseMimeType,
+                        encoding,
+                        null,
+                        rowsetDefinition.name(),
+                        Collections.<String, Object>emptyMap(),
+                        Collections.<String, String>emptyMap(),
+                        null);
+                for (boolean compact : new boolean[] {false, true}) {
+                    final ByteArrayOutputStream out =
+                        new ByteArrayOutputStream();
+                    try {
+                        process(
+                            request,
+                            new DefaultXmlaResponse(
+                                out, encoding, responseMimeType, false,
+                                compact),
+                            true);
+                        staticResponses.put(
+                            getStaticKey(
+                                request, responseMimeType, encoding, compact),
+                            out.toByteArray());
+                    } catch (RuntimeException e) {
+                        LOGGER.warn(
+                            "Could not render response of "
+                            + rowsetDefinition,
+                            e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the key of a request in the map of static responses, or null
+     * if it is not a Discover request for a static rowset.
+     *
+     * <p>The response to such a request depends only on its restrictions,
+     * its Content, Format and Deep properties, and the response's MIME
+     * type, encoding and compactness; except that of DISCOVER_PROPERTIES,
+     * which also contains the current value of each property.
+     *
+     * <p>Requests with unknown properties are not static, so that they fail
+     * as usual.
+     */
+    private String getStaticKey(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+    {
+        if (request.getMethod() != Method.DISCOVER) {
+            return null;
+        }
+        final RowsetDefinition rowsetDefinition =
+            Util.lookup(RowsetDefinition.class, request.getRequestType());
+        if (rowsetDefinition == null
+            || !STATIC_ROWSETS.contains(rowsetDefinition))
+        {
+            return null;
+        }
+        final Map<String, String> properties = request.getProperties();
+        for (String name : properties.keySet()) {
+            if (Util.lookup(PropertyDefinition.class, name) == null) {
+                return null;
+            }
+        }
+        final StringBuilder buf = new StringBuilder();
+        buf.append(rowsetDefinition.name())
+            .append('\0').append(responseMimeType)
+            .append('\0').append(encoding)
+            .append('\0').append(compact)
+            .append('\0')
+            .append(new TreeMap<String, Object>(request.getRestrictions()));
+        for (PropertyDefinition property
+            : new PropertyDefinition[] {
+                PropertyDefinition.Content,
+                PropertyDefinition.Format,
+                PropertyDefinition.Deep})
+        {
+            buf.append('\0').append(properties.get(property.name()));
+        }
+        if (rowsetDefinition == RowsetDefinition.DISCOVER_PROPERTIES) {
+            final XmlaExtra extra = connectionFactory.getExtra();
+            for (PropertyDefinition property : PropertyDefinition.values()) {
+                buf.append('\0').append(extra.getPropertyValue(property));
+            }
+        }
+        return buf.toString();
+    }
 
-        switch (method) {
+    /**
+     * Returns the key of a request in the result or Discover cache, or null
+     * if its response must not be cached.
+     *
+     * <p>A response served from the cache borrows no connection, so the
+     * user's credentials are never checked. Therefore only requests whose
+     * role the servlet has established (see
+     * {@link XmlaConstants#CONTEXT_ROLE_NAME}) are cached; a request with
+     * no role is not.
+     *
+     * <p>Of Execute requests, only MDX statements are cached (not
+     * drill-through, Cancel or Batch). The key contains the statement (with
+     * insignificant white space removed), the catalog, the role, the
+     * properties that determine the format of the response, and the
+     * response's MIME type, encoding and compactness.
+     *
+     * <p>Of Discover requests, only metadata rowsets are cached. The key
+     * contains the rowset, restrictions, role, all properties except
+     * Timeout, and the response's MIME type, encoding and compactness.
+     */
+    private String getCacheKey(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+    {
+        if (request.getRoleName() == null) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        buf.append(request.getRoleName())
+            .append('\0').append(responseMimeType)
+            .append('\0').append(encoding)
+            .append('\0').append(compact);
+        final Map<String, String> properties = request.getProperties();
+        switch (request.getMethod()) {
         case DISCOVER:
-            discover(request, response);
+            final String requestType = request.getRequestType();
+            if (!requestType.startsWith("MDSCHEMA_")
+                && !requestType.startsWith("DBSCHEMA_"))
+            {
+                return null;
+            }
+            final Map<String, String> keyProperties =
+                new TreeMap<String, String>(properties);
+            keyProperties.remove(PropertyDefinition.Timeout.name());
+            buf.append('\0').append(requestType)
+                .append('\0')
+                .append(new TreeMap<String, Object>(request.getRestrictions()))
+                .append('\0').append(keyProperties);
+            return buf.toString();
+        case EXECUTE:
+            if (request.isCancel()
+                || request.getBatchRequests() != null
+                || request.isDrillThrough())
+            {
+                return null;
+            }
             break;
+        default:
+            return null;
+        }
+        buf.append('\0')
+            .append(properties.get(PropertyDefinition.DataSourceInfo.name()))
+            .append('\0')
+            .append(properties.get(PropertyDefinition.Catalog.name()));
+        for (PropertyDefinition property
+            : new PropertyDefinition[] {
+                PropertyDefinition.Format,
+                PropertyDefinition.Content,
+                PropertyDefinition.AxisFormat,
+                PropertyDefinition.LocaleIdentifier})
+        {
+            buf.append('\0').append(properties.get(property.name()));
+        }
+        buf.append('\0').append(normalizeStatement(request.getStatement()));
+        return buf.toString();
+    }
+
+    /**
+     * Returns a strong entity tag for the response to a Discover request,
+     * or null if the response cannot be identified without computing it.
+     *
+     * <p>The tag is a hash of the request's key in the Discover cache (see
+     * {@link #getCacheKey}) and the load date of the schema of its catalog.
+     * Only metadata rowsets of a named catalog have a tag; the rowset is not
+     * populated, so a client that already has the response can be told so
+     * cheaply. Also tells the caches the load date of the schema.
+     *
+     * @param request Request
+     * @param responseMimeType MIME type of the response
+     * @param encoding Character encoding of the response
+     * @param compact Whether the response is written without line breaks
+     *   and indentation
+     * @return Entity tag, in double quotes, or null
+     */
+    public String getETag(
+        XmlaRequest request,
+        Enumeration.ResponseMimeType responseMimeType,
+        String encoding,
+        boolean compact)
+    {
+        if (request.getMethod() != Method.DISCOVER) {
+            return null;
+        }
+        final String catalog =
+            request.getProperties().get(PropertyDefinition.Catalog.name());
+        if ((catalog == null || catalog.length() == 0)
+            && !request.getRestrictions().containsKey(
+                Property.StandardMemberProperty.CATALOG_NAME.name()))
+        {
+            return null;
+        }
+        final String key =
+            getCacheKey(request, responseMimeType, encoding, compact);
+        if (key == null) {
+            return null;
+        }
+        final Date loadDate;
+        try {
+            final OlapConnection connection =
+                getConnection(request, Collections.<String, String>emptyMap());
+            try {
+                checkSchema(connection);
+                loadDate =
+                    connectionFactory.getExtra().getSchemaLoadDate(
+                        connection.getOlapSchema());
+            } finally {
+                connection.close();
+            }
+        } catch (XmlaException e) {
+            // Let the request fail, with the proper fault, when it is
+            // processed.
+            return null;
+        } catch (SQLException e) {
+            LOGGER.warn("Could not find load date of schema", e);
+            return null;
+        }
+        if (loadDate == null) {
+            return null;
+        }
+        final byte[] digest;
+        try {
+            digest =
+                MessageDigest.getInstance("SHA-1").digest(
+                    (key + '\0' + loadDate.getTime()).getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw Util.newInternal(e, "SHA-1 is not available");
+        } catch (UnsupportedEncodingException e) {
+            throw Util.newInternal(e, "UTF-8 is not available");
+        }
+        final StringBuilder buf = new StringBuilder(digest.length * 2 + 2);
+        buf.append('"');
+        for (byte b : digest) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.append('"').toString();
+    }
+
+    /**
+     * Processes a request, coalescing it with identical requests if enabled.
+     */
+    private void processUncached(XmlaRequest request, XmlaResponse response)
+        throws XmlaException
+    {
+        final String key =
+            coalesceRequests
+                ? getCoalescingKey(request, response.getWriter().isCompact())
+                : null;
+        if (key != null) {
+            processCoalesced(request, response, key);
+        } else {
+            process(request, response, true);
+        }
+    }
+
+    /**
+     * Processes a request, or waits for an identical request that is being
+     * processed and writes a copy of its response.
+     */
+    private void processCoalesced(
+        XmlaRequest request,
+        XmlaResponse response,
+        String key)
+        throws XmlaException
+    {
+        final RequestCoalescer.Flight flight = requestCoalescer.join(key);
+        String result = null;
+        if (flight.isLeader()) {
+            final SpillingBuffer spillingBuffer =
+                new SpillingBuffer(
+                    response.getWriter(), MAX_SHARED_RESPONSE_CHARS);
+            final LeaderResponse leaderResponse =
+                new LeaderResponse(
+                    spillingBuffer, response.getWriter().isCompact());
+            boolean succeeded = false;
+            try {
+                process(request, leaderResponse, true);
+                succeeded = true;
+            } finally {
+                if (succeeded) {
+                    result = spillingBuffer.finish();
+                } else if (spillingBuffer.spilled) {
+                    // Part of the response has been sent; end it cleanly.
+                    leaderResponse.writer.endOpenElements();
+                    spillingBuffer.finish();
+                }
+                flight.complete(result);
+            }
+            if (result == null) {
+                // Too long to share; already written to the response.
+                return;
+            }
+        } else {
+            final RequestRegistry.ActiveRequest activeRequest =
+                requestRegistry.register(request, getTimeoutMillis(request));
+            try {
+                result = flight.await(activeRequest);
+            } finally {
+                requestRegistry.unregister(activeRequest);
+            }
+            if (result == null) {
+                // The leader failed, perhaps because it was canceled or
+                // timed out. Try again, without coalescing.
+                process(request, response, true);
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                    "XmlaHandler.process: coalesced with identical request");
+            }
+        }
+        SaxWriter writer = response.getWriter();
+        writer.startDocument();
+        writer.verbatim(result);
+        writer.endDocument();
+    }
+
+    /**
+     * Returns a key that is the same for requests that will receive the
+     * same response, or null if the request must not share its response.
+     *
+     * <p>A request that receives another's response never opens a
+     * connection, so its credentials are never checked. Therefore only
+     * requests whose role the servlet has established (see
+     * {@link XmlaConstants#CONTEXT_ROLE_NAME}) are shared, among all users
+     * of that role; a request with no role is not.
+     *
+     * <p>The key contains the method, the role, the statement (with
+     * insignificant white space removed) or request type and restrictions,
+     * and all properties (which include catalog and response MIME type)
+     * except Timeout, and whether the response is compact. Cancel and
+     * Batch commands are not shared, nor are JSON responses, which cannot
+     * be copied verbatim.
+     */
+    private String getCoalescingKey(XmlaRequest request, boolean compact) {
+        if (request.getRoleName() == null) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        buf.append(request.getMethod()).append('\0')
+            .append(compact).append('\0')
+            .append(request.getRoleName()).append('\0');
+        switch (request.getMethod()) {
         case EXECUTE:
-            execute(request, response);
+            if (request.isCancel() || request.getBatchRequests() != null) {
+                return null;
+            }
+            buf.append(normalizeStatement(request.getStatement()));
+            break;
+        case DISCOVER:
+            buf.append(request.getRequestType()).append('\0')
+                .append(new TreeMap<String, Object>(request.getRestrictions()));
             break;
         default:
-            throw new XmlaException(
-                CLIENT_FAULT_FC,
-                HSB_BAD_METHOD_CODE,
-                HSB_BAD_METHOD_FAULT_FS,
-                new IllegalArgumentException(
-                    "Unsupported XML/A method: " + method));
+            return null;
         }
-        if (LOGGER.isDebugEnabled()) {
-            long end = System.currentTimeMillis();
-            LOGGER.debug("XmlaHandler.process: time = " + (end - start));
-            LOGGER.debug("XmlaHandler.process: " + Util.printMemory());
+        if (getResponseMimeType(request)
+            != Enumeration.ResponseMimeType.SOAP)
+        {
+            return null;
+        }
+        final Map<String, String> properties =
+            new TreeMap<String, String>(request.getProperties());
+        properties.remove(PropertyDefinition.Timeout.name());
+        buf.append('\0').append(properties);
+        return buf.toString();
+    }
+
+    /**
+     * Removes leading and trailing white space from an MDX statement, and
+     * replaces each other run of white space with a single space, except
+     * inside quoted strings and bracketed identifiers.
+     */
+    private static String normalizeStatement(String statement) {
+        final StringBuilder buf = new StringBuilder(statement.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < statement.length(); i++) {
+            final char c = statement.charAt(i);
+            if (quote != 0) {
+                // Inside a string or identifier. A doubled closing quote
+                // is an escaped quote.
+                buf.append(c);
+                if (c == quote) {
+                    if (i + 1 < statement.length()
+                        && statement.charAt(i + 1) == quote)
+                    {
+                        buf.append(c);
+                        ++i;
+                    } else {
+                        quote = 0;
+                    }
+                }
+            } else if (Character.isWhitespace(c)) {
+                space = buf.length() > 0;
+            } else {
+                if (space) {
+                    buf.append(' ');
+                    space = false;
+                }
+                buf.append(c);
+                switch (c) {
+                case '[':
+                    quote = ']';
+                    break;
+                case '"':
+                case '\'':
+                    quote = c;
+                    break;
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Processes a request, or a command in a Batch.
+     *
+     * @param request Request
+     * @param response Destination for response
+     * @param envelope Whether to write the DiscoverResponse or
+     *   ExecuteResponse element around the result; false for a command in a
+     *   Batch, whose result is just a root element
+     * @throws XmlaException on error
+     */
+    private void process(
+        XmlaRequest request,
+        XmlaResponse response,
+        boolean envelope)
+        throws XmlaException
+    {
+        Method method = request.getMethod();
+        final RequestRegistry.ActiveRequest activeRequest =
+            requestRegistry.register(request, getTimeoutMillis(request));
+        try {
+            switch (method) {
+            case DISCOVER:
+                discover(request, response, activeRequest, envelope);
+                break;
+            case EXECUTE:
+                execute(request, response, activeRequest, envelope);
+                break;
+            default:
+                throw new XmlaException(
+                    CLIENT_FAULT_FC,
+                    HSB_BAD_METHOD_CODE,
+                    HSB_BAD_METHOD_FAULT_FS,
+                    new IllegalArgumentException(
+                        "Unsupported XML/A method: " + method));
+            }
+        } catch (XmlaException e) {
+            throw activeRequest.translate(e);
+        } catch (RuntimeException e) {
+            if (activeRequest.isAborted()) {
+                throw activeRequest.newAbortException(e);
+            }
+            throw e;
+        } finally {
+            requestRegistry.unregister(activeRequest);
         }
     }
 
@@ -690,9 +1583,20 @@ public class XmlaHandler {
 
     private void execute(
         XmlaRequest request,
-        XmlaResponse response)
+        XmlaResponse response,
+        RequestRegistry.ActiveRequest activeRequest,
+        boolean envelope)
         throws XmlaException
     {
+        if (request.isCancel()) {
+            cancel(request, response, activeRequest);
+            return;
+        }
+        if (request.getBatchRequests() != null) {
+            executeBatch(request, response);
+            return;
+        }
+
         final Map<String, String> properties = request.getProperties();
 
         // Default responseMimeType is SOAP.
@@ -713,18 +1617,19 @@ public class XmlaHandler {
         QueryResult result = null;
         try {
             if (request.isDrillThrough()) {
-                result = executeDrillThroughQuery(request);
+                result = executeDrillThroughQuery(request, activeRequest);
             } else {
-                result = executeQuery(request);
+                result = executeQuery(request, activeRequest);
             }
 
             SaxWriter writer = response.getWriter();
-            writer.startDocument();
-
-            writer.startElement(
-                prefix + ":ExecuteResponse",
-                "xmlns:" + prefix, NS_XMLA);
-            writer.startElement(prefix + ":return");
+            if (envelope) {
+                writer.startDocument();
+                writer.startElement(
+                    prefix + ":ExecuteResponse",
+                    "xmlns:" + prefix, NS_XMLA);
+                writer.startElement(prefix + ":return");
+            }
             boolean rowset =
                 request.isDrillThrough()
                 || Format.Tabular.name().equals(
@@ -742,22 +1647,29 @@ public class XmlaHandler {
                 "xmlns:xsd", NS_XSD,
                 "xmlns:EX", NS_XMLA_EX);
 
-            switch (content) {
-            case Schema:
-            case SchemaData:
-                if (result != null) {
-                    result.metadata(writer);
-                } else {
-                    if (rowset) {
-                        writer.verbatim(EMPTY_ROW_SET_XML_SCHEMA);
+            try {
+                switch (content) {
+                case Schema:
+                case SchemaData:
+                    if (result != null) {
+                        result.metadata(writer);
                     } else {
-                        writer.verbatim(EMPTY_MD_DATA_SET_XML_SCHEMA);
+                        final boolean compact = writer.isCompact();
+                        if (rowset) {
+                            writer.verbatim(
+                                compact
+                                    ? COMPACT_EMPTY_ROW_SET_XML_SCHEMA
+                                    : EMPTY_ROW_SET_XML_SCHEMA);
+                        } else {
+                            writer.verbatim(
+                                compact
+                                    ? COMPACT_EMPTY_MD_DATA_SET_XML_SCHEMA
+                                    : EMPTY_MD_DATA_SET_XML_SCHEMA);
+                        }
                     }
+                    break;
                 }
-                break;
-            }
 
-            try {
                 switch (content) {
                 case Data:
                 case SchemaData:
@@ -769,8 +1681,16 @@ public class XmlaHandler {
                     break;
                 }
             } catch (XmlaException xex) {
-                throw xex;
+                final XmlaException e = activeRequest.translate(xex);
+                reportError(response, e);
+                throw e;
             } catch (Throwable t) {
+                if (activeRequest.isAborted()) {
+                    final XmlaException e = activeRequest.newAbortException(t);
+                    reportError(response, e);
+                    throw e;
+                }
+                reportError(response, t);
                 throw new XmlaException(
                     SERVER_FAULT_FC,
                     HSB_EXECUTE_UNPARSE_CODE,
@@ -778,10 +1698,14 @@ public class XmlaHandler {
                     t);
             } finally {
                 writer.endElement(); // root
-                writer.endElement(); // return
-                writer.endElement(); // ExecuteResponse
+                if (envelope) {
+                    writer.endElement(); // return
+                    writer.endElement(); // ExecuteResponse
+                }
+            }
+            if (envelope) {
+                writer.endDocument();
             }
-            writer.endDocument();
         } finally {
             if (result != null) {
                 try {
@@ -1318,7 +2242,132 @@ public class XmlaHandler {
         writer.endElement(); // xsd:schema
     }
 
-    private QueryResult executeDrillThroughQuery(XmlaRequest request)
+    /**
+     * Handles the Cancel command: cancels the other requests of the session,
+     * and writes an empty response.
+     */
+    private void cancel(
+        XmlaRequest request,
+        XmlaResponse response,
+        RequestRegistry.ActiveRequest activeRequest)
+        throws XmlaException
+    {
+        final String sessionId = request.getSessionId();
+        if (sessionId == null) {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                HSB_BAD_COMMAND_CODE,
+                HSB_BAD_COMMAND_FAULT_FS,
+                Util.newError("Cancel command requires a session"));
+        }
+        int count = requestRegistry.cancel(sessionId, activeRequest);
+        if (connectionFactory instanceof RequestCanceler) {
+            count +=
+                ((RequestCanceler) connectionFactory)
+                    .cancelRequests(sessionId);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                "Cancel: canceled " + count + " request(s) of session "
+                + sessionId);
+        }
+
+        SaxWriter writer = response.getWriter();
+        writer.startDocument();
+        writer.startElement(
+            prefix + ":ExecuteResponse",
+            "xmlns:" + prefix, NS_XMLA);
+        writer.startElement(prefix + ":return");
+        writer.element("root", "xmlns", NS_XMLA_EMPTY);
+        writer.endElement(); // return
+        writer.endElement(); // ExecuteResponse
+        writer.endDocument();
+    }
+
+    /**
+     * Handles the Batch command: runs its commands and writes their results,
+     * in the order of the commands, in a single response.
+     *
+     * <p>If there is a batch executor, the commands run in parallel, each on
+     * its own connection; this thread runs the first command, then waits for
+     * the rest. Each command has its own entry in the request registry, and
+     * so its own timeout, and is canceled along with the other requests of
+     * its session. A command that fails does not stop the others; its
+     * result describes the error.
+     */
+    private void executeBatch(XmlaRequest request, XmlaResponse response)
+        throws XmlaException
+    {
+        if (getResponseMimeType(request)
+            == Enumeration.ResponseMimeType.JSON)
+        {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                HSB_BAD_COMMAND_CODE,
+                HSB_BAD_COMMAND_FAULT_FS,
+                Util.newError("Batch command requires a SOAP response"));
+        }
+        final boolean compact = response.getWriter().isCompact();
+        final List<BatchCommand> commands = new ArrayList<BatchCommand>();
+        for (XmlaRequest batchRequest : request.getBatchRequests()) {
+            commands.add(new BatchCommand(batchRequest, compact));
+        }
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final ExecutorService executor = batchExecutor;
+        if (executor != null) {
+            for (BatchCommand command : commands.subList(1, commands.size())) {
+                try {
+                    futures.add(executor.submit(command));
+                } catch (RejectedExecutionException e) {
+                    // The executor is shutting down. Run the remaining
+                    // commands in this thread.
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            if (i == 0 || i > futures.size()) {
+                commands.get(i).run();
+            } else {
+                waitFor(futures.get(i - 1));
+            }
+        }
+
+        SaxWriter writer = response.getWriter();
+        writer.startDocument();
+        writer.startElement(
+            prefix + ":ExecuteResponse",
+            "xmlns:" + prefix, NS_XMLA);
+        writer.startElement(prefix + ":return");
+        writer.startElement("results", "xmlns", NS_XMLA_MULTIPLE_RESULTS);
+        for (BatchCommand command : commands) {
+            writer.verbatim(command.buf.toString());
+        }
+        writer.endElement(); // results
+        writer.endElement(); // return
+        writer.endElement(); // ExecuteResponse
+        writer.endDocument();
+    }
+
+    private static void waitFor(Future<?> future) throws XmlaException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                USM_UNKNOWN_CODE,
+                USM_UNKNOWN_FAULT_FS,
+                Util.newError(e, "Interrupted while running Batch"));
+        } catch (ExecutionException e) {
+            // BatchCommand.run catches everything; this cannot happen.
+            throw Util.newInternal(e.getCause(), "Error in Batch command");
+        }
+    }
+
+    private QueryResult executeDrillThroughQuery(
+        XmlaRequest request,
+        RequestRegistry.ActiveRequest activeRequest)
         throws XmlaException
     {
         checkFormat(request);
@@ -1333,12 +2382,18 @@ public class XmlaHandler {
             properties.get(PropertyDefinition.AdvancedFlag.name());
         final boolean advanced = Boolean.parseBoolean(advancedFlag);
         OlapConnection connection = null;
+        Request factoryRequest = null;
         OlapStatement statement = null;
         ResultSet resultSet = null;
         try {
             connection =
                 getConnection(request, Collections.<String, String>emptyMap());
+            factoryRequest =
+                connectionFactory.startRequest(request, connection);
             statement = connection.createStatement();
+            if (activeRequest != null) {
+                activeRequest.setStatement(statement);
+            }
             final XmlaHandler.XmlaExtra extra = connectionFactory.getExtra();
             final boolean enableRowCount = extra.isTotalCountEnabled();
             final int[] rowCountSlot = enableRowCount ? new int[]{0} : null;
@@ -1350,7 +2405,7 @@ public class XmlaHandler {
                     tabFields,
                     rowCountSlot);
             int rowCount = enableRowCount ? rowCountSlot[0] : -1;
-            return new TabularRowSet(resultSet, rowCount);
+            return new TabularRowSet(resultSet, rowCount, activeRequest);
         } catch (XmlaException xex) {
             throw xex;
         } catch (SQLException sqle) {
@@ -1381,6 +2436,7 @@ public class XmlaHandler {
                     // ignore
                 }
             }
+            endRequest(factoryRequest);
             if (connection != null) {
                 try {
                     connection.close();
@@ -1412,6 +2468,7 @@ public class XmlaHandler {
         private final List<Column> columns = new ArrayList<Column>();
         private final List<Object[]> rows;
         private int totalCount;
+        private final RequestRegistry.ActiveRequest activeRequest;
 
         /**
          * Creates a TabularRowSet based upon a SQL statement result.
@@ -1422,15 +2479,19 @@ public class XmlaHandler {
          * @param rs Result set
          * @param totalCount Total number of rows. If >= 0, writes the
          *   "totalCount" attribute into the XMLA response.
+         * @param activeRequest Request, checked after each row so that a
+         *   request that has timed out stops reading; or null
          *
          * @throws SQLException on error
          */
         public TabularRowSet(
             ResultSet rs,
-            int totalCount)
+            int totalCount,
+            RequestRegistry.ActiveRequest activeRequest)
             throws SQLException
         {
             this.totalCount = totalCount;
+            this.activeRequest = activeRequest;
             ResultSetMetaData md = rs.getMetaData();
             int columnCount = md.getColumnCount();
 
@@ -1448,6 +2509,9 @@ public class XmlaHandler {
             // number of rows returned is limited.
             rows = new ArrayList<Object[]>();
             while (rs.next()) {
+                if (activeRequest != null) {
+                    activeRequest.checkActive();
+                }
                 Object[] row = new Object[columnCount];
                 for (int i = 0; i < columnCount; i++) {
                     row[i] = rs.getObject(i + 1);
@@ -1466,6 +2530,7 @@ public class XmlaHandler {
         public TabularRowSet(
             Map<String, List<String>> tableFieldMap, List<String> tableList)
         {
+            this.activeRequest = null;
             for (String tableName : tableList) {
                 List<String> fieldNames = tableFieldMap.get(tableName);
                 for (String fieldName : fieldNames) {
@@ -1503,6 +2568,9 @@ public class XmlaHandler {
             }
 
             for (Object[] row : rows) {
+                if (activeRequest != null) {
+                    activeRequest.checkActive();
+                }
                 writer.startElement("row");
                 for (int i = 0; i < row.length; i++) {
                     writer.startElement(
@@ -1633,7 +2701,9 @@ public class XmlaHandler {
         }
     }
 
-    private QueryResult executeQuery(XmlaRequest request)
+    private QueryResult executeQuery(
+        XmlaRequest request,
+        RequestRegistry.ActiveRequest activeRequest)
         throws XmlaException
     {
         final String mdx = request.getStatement();
@@ -1648,14 +2718,18 @@ public class XmlaHandler {
         checkFormat(request);
 
         OlapConnection connection = null;
+        Request factoryRequest = null;
         PreparedOlapStatement statement = null;
         CellSet cellSet = null;
         boolean success = false;
         try {
             connection =
                 getConnection(request, Collections.<String, String>emptyMap());
+            factoryRequest =
+                connectionFactory.startRequest(request, connection);
             final XmlaHandler.XmlaExtra extra = connectionFactory.getExtra();
             extra.setPreferList(connection);
+            checkSchema(connection);
             try {
                 statement = connection.prepareOlapStatement(mdx);
             } catch (XmlaException ex) {
@@ -1668,6 +2742,9 @@ public class XmlaHandler {
                     ex);
             }
             try {
+                if (activeRequest != null) {
+                    activeRequest.setStatement(statement);
+                }
                 cellSet = statement.executeQuery();
 
                 final Format format = getFormat(request, null);
@@ -1676,6 +2753,7 @@ public class XmlaHandler {
                     getResponseMimeType(request);
                 final MDDataSet dataSet;
                 final Connection connectionToClose = connection;
+                final Request requestToEnd = factoryRequest;
                 if (format == Format.Multidimensional) {
                     dataSet =
                         new MDDataSet_Multidimensional(
@@ -1683,15 +2761,18 @@ public class XmlaHandler {
                             cellSet,
                             content != Content.DataIncludeDefaultSlicer,
                             responseMimeType
-                            == Enumeration.ResponseMimeType.JSON) {
+                            == Enumeration.ResponseMimeType.JSON,
+                            activeRequest) {
                         @Override public void close() throws SQLException {
+                            endRequest(requestToEnd);
                             connectionToClose.close();
                         }
                     };
                 } else {
                     dataSet =
-                        new MDDataSet_Tabular(cellSet) {
+                        new MDDataSet_Tabular(cellSet, activeRequest) {
                         @Override public void close() throws SQLException {
+                            endRequest(requestToEnd);
                             connectionToClose.close();
                         }
                     };
@@ -1723,6 +2804,7 @@ public class XmlaHandler {
                         // ignore
                     }
                 }
+                endRequest(factoryRequest);
                 if (connection != null) {
                     try {
                         connection.close();
@@ -1734,6 +2816,12 @@ public class XmlaHandler {
         }
     }
 
+    private void endRequest(Request factoryRequest) {
+        if (factoryRequest != null) {
+            connectionFactory.endRequest(factoryRequest);
+        }
+    }
+
     private static Format getFormat(
         XmlaRequest request,
         Format defaultValue)
@@ -1771,6 +2859,7 @@ public class XmlaHandler {
 
     static abstract class MDDataSet implements QueryResult {
         protected final CellSet cellSet;
+        private final RequestRegistry.ActiveRequest activeRequest;
 
         protected static final List<Property> cellProps =
             Arrays.asList(
@@ -1803,8 +2892,21 @@ public class XmlaHandler {
             longProps.put("DisplayInfo", StandardMemberProperty.DISPLAY_INFO);
         }
 
-        protected MDDataSet(CellSet cellSet) {
+        protected MDDataSet(
+            CellSet cellSet,
+            RequestRegistry.ActiveRequest activeRequest)
+        {
             this.cellSet = cellSet;
+            this.activeRequest = activeRequest;
+        }
+
+        /**
+         * Throws if the request has timed out or been canceled.
+         */
+        protected void checkActive() {
+            if (activeRequest != null) {
+                activeRequest.checkActive();
+            }
         }
 
         public void close() throws SQLException {
@@ -1863,10 +2965,11 @@ public class XmlaHandler {
             XmlaExtra extra,
             CellSet cellSet,
             boolean omitDefaultSlicerInfo,
-            boolean json)
+            boolean json,
+            RequestRegistry.ActiveRequest activeRequest)
             throws SQLException
         {
-            super(cellSet);
+            super(cellSet, activeRequest);
             this.omitDefaultSlicerInfo = omitDefaultSlicerInfo;
             this.json = json;
             this.extra = extra;
@@ -1881,7 +2984,10 @@ public class XmlaHandler {
         }
 
         public void metadata(SaxWriter writer) {
-            writer.verbatim(MD_DATA_SET_XML_SCHEMA);
+            writer.verbatim(
+                writer.isCompact()
+                    ? COMPACT_MD_DATA_SET_XML_SCHEMA
+                    : MD_DATA_SET_XML_SCHEMA);
         }
 
         private void olapInfo(SaxWriter writer) throws OlapException {
@@ -2183,6 +3289,7 @@ public class XmlaHandler {
             Position position = pit.hasNext() ? pit.next() : null;
             Position nextPosition = pit.hasNext() ? pit.next() : null;
             while (position != null) {
+                checkActive();
                 writer.startSequence("Tuple", "Member");
                 int k = 0;
                 for (Member member : position.getMembers()) {
@@ -2211,7 +3318,6 @@ public class XmlaHandler {
                 "Member",
                 "Hierarchy", member.getHierarchy().getName());
             for (Property prop : props) {
-                Object value;
                 Property longProp = longProps.get(prop.getName());
                 if (longProp == null) {
                     longProp = prop;
@@ -2220,18 +3326,21 @@ public class XmlaHandler {
                     Integer childrenCard =
                         (Integer) member.getPropertyValue(
                             StandardMemberProperty.CHILDREN_CARDINALITY);
-                    value = calculateDisplayInfo(
-                        prevPosition,
-                        nextPosition,
-                        member, k, childrenCard);
+                    writer.textElement(
+                        encoder.encode(prop.getName()),
+                        calculateDisplayInfo(
+                            prevPosition,
+                            nextPosition,
+                            member, k, childrenCard));
                 } else if (longProp == StandardMemberProperty.DEPTH) {
-                    value = member.getDepth();
-                } else {
-                    value = member.getPropertyValue(longProp);
-                }
-                if (value != null) {
                     writer.textElement(
-                        encoder.encode(prop.getName()), value);
+                        encoder.encode(prop.getName()), member.getDepth());
+                } else {
+                    final Object value = member.getPropertyValue(longProp);
+                    if (value != null) {
+                        textElement(
+                            writer, encoder.encode(prop.getName()), value);
+                    }
                 }
             }
 
@@ -2246,7 +3355,6 @@ public class XmlaHandler {
                 "Member",
                 "Hierarchy", member.getHierarchy().getName());
             for (Property prop : props) {
-                Object value;
                 Property longProp = longProps.get(prop.getName());
                 if (longProp == null) {
                     longProp = prop;
@@ -2264,15 +3372,17 @@ public class XmlaHandler {
                           (j + 1 == positions.length ? null : positions[j + 1]),
                           member, k, childrenCard.intValue());
 */
-                    value = displayInfo;
+                    writer.textElement(
+                        encoder.encode(prop.getName()), displayInfo);
                 } else if (longProp == StandardMemberProperty.DEPTH) {
-                    value = member.getDepth();
-                } else {
-                    value = member.getPropertyValue(longProp);
-                }
-                if (value != null) {
                     writer.textElement(
-                        encoder.encode(prop.getName()), value);
+                        encoder.encode(prop.getName()), member.getDepth());
+                } else {
+                    final Object value = member.getPropertyValue(longProp);
+                    if (value != null) {
+                        textElement(
+                            writer, encoder.encode(prop.getName()), value);
+                    }
                 }
             }
             writer.endElement(); // Member
@@ -2340,6 +3450,7 @@ public class XmlaHandler {
             int[] cellOrdinal)
         {
             if (axisOrdinal < 0) {
+                checkActive();
                 emitCell(writer, pos, cellOrdinal[0]++);
             } else {
                 CellSetAxis axis = cellSet.getAxes().get(axisOrdinal);
@@ -2402,7 +3513,7 @@ public class XmlaHandler {
                     writer.characters(valueString);
                     writer.endElement();
                 } else {
-                    writer.textElement(cellProps.get(i).getName(), value);
+                    textElement(writer, cellProps.get(i).getName(), value);
                 }
             }
             writer.endElement(); // Cell
@@ -2540,8 +3651,11 @@ public class XmlaHandler {
         private final Member[] members;
         private final ColumnHandler[] columnHandlers;
 
-        public MDDataSet_Tabular(CellSet cellSet) {
-            super(cellSet);
+        public MDDataSet_Tabular(
+            CellSet cellSet,
+            RequestRegistry.ActiveRequest activeRequest)
+        {
+            super(cellSet, activeRequest);
             final List<CellSetAxis> axes = cellSet.getAxes();
             axisCount = axes.size();
             pos = new int[axisCount];
@@ -2754,6 +3868,7 @@ public class XmlaHandler {
                 if (axis >= 2) {
                     iterate(writer, axis - 1, ho);
                 } else {
+                    checkActive();
                     writer.startElement("row");// abrimos la fila
                     pos[axis] = i; // coordenadas: fila i
                     pos[0] = 0; // coordenadas (0,i): columna 0
@@ -2791,7 +3906,11 @@ public class XmlaHandler {
         }
     }
 
-    private void discover(XmlaRequest request, XmlaResponse response)
+    private void discover(
+        XmlaRequest request,
+        XmlaResponse response,
+        RequestRegistry.ActiveRequest activeRequest,
+        boolean envelope)
         throws XmlaException
     {
         final RowsetDefinition rowsetDefinition =
@@ -2811,12 +3930,13 @@ public class XmlaHandler {
         final Content content = getContent(request);
 
         SaxWriter writer = response.getWriter();
-        writer.startDocument();
-
-        writer.startElement(
-            prefix + ":DiscoverResponse",
-            "xmlns:" + prefix, NS_XMLA);
-        writer.startElement(prefix + ":return");
+        if (envelope) {
+            writer.startDocument();
+            writer.startElement(
+                prefix + ":DiscoverResponse",
+                "xmlns:" + prefix, NS_XMLA);
+            writer.startElement(prefix + ":return");
+        }
         writer.startElement(
             "root",
             "xmlns", NS_XMLA_ROWSET,
@@ -2839,8 +3959,16 @@ public class XmlaHandler {
                 break;
             }
         } catch (XmlaException xex) {
-            throw xex;
+            final XmlaException e = activeRequest.translate(xex);
+            reportError(response, e);
+            throw e;
         } catch (Throwable t) {
+            if (activeRequest.isAborted()) {
+                final XmlaException e = activeRequest.newAbortException(t);
+                reportError(response, e);
+                throw e;
+            }
+            reportError(response, t);
             throw new XmlaException(
                 SERVER_FAULT_FC,
                 HSB_DISCOVER_UNPARSE_CODE,
@@ -2849,16 +3977,42 @@ public class XmlaHandler {
         } finally {
             // keep the tags balanced, even if there's an error
             try {
-                writer.endElement();
-                writer.endElement();
-                writer.endElement();
+                writer.endElement(); // root
+                if (envelope) {
+                    writer.endElement(); // return
+                    writer.endElement(); // DiscoverResponse
+                }
             } catch (Throwable e) {
                 // Ignore any errors balancing the tags. The original exception
                 // is more important.
             }
         }
 
-        writer.endDocument();
+        if (envelope) {
+            writer.endDocument();
+        }
+    }
+
+    /**
+     * Writes an error into the body of a response whose output has already
+     * started.
+     *
+     * <p>If the servlet is buffering the response, it discards the body and
+     * sends a SOAP fault instead; but if the response is being streamed, part
+     * of the body may already be on its way to the client, and a
+     * {@code Messages/Error} element inside "root" is the only way left to
+     * tell the client that the response is incomplete.
+     *
+     * @param response Response
+     * @param t Error
+     */
+    private static void reportError(XmlaResponse response, Throwable t) {
+        try {
+            response.error(t);
+        } catch (Throwable e) {
+            // Ignore any errors writing the error. The original exception is
+            // more important.
+        }
     }
 
     /**
@@ -3144,9 +4298,107 @@ public class XmlaHandler {
      * Connections based on mondrian's olap4j driver can do better.
      */
     public static class XmlaExtraImpl implements XmlaExtra {
+        /**
+         * When each schema was first seen, keyed by catalog and schema
+         * name. olap4j does not say when a schema was loaded, so this is the
+         * best estimate; it must not change while the schema does not, or
+         * caches that depend on it would be cleared for nothing.
+         */
+        private final ConcurrentMap<String, Date> schemaLoadDates =
+            new ConcurrentHashMap<String, Date>();
+
+        /** Handlers whose caches {@link #flushSchemaCache} clears. */
+        private final List<XmlaHandler> handlers =
+            new CopyOnWriteArrayList<XmlaHandler>();
+
+        /** File in which {@link #schemaLoadDates} is kept; or null. */
+        private File loadDateFile;
+
         public XmlaExtraImpl() {
         }
 
+        /**
+         * Keeps the schema load dates in a file, so that they survive a
+         * restart, and responses that a disk cache stored before the restart
+         * are still considered current. Loads the dates already in the
+         * file. Until {@link #flushSchemaCache} is called, a schema is
+         * assumed not to have changed while the server was down.
+         *
+         * @param file File of load dates; created if it does not exist
+         */
+        public synchronized void setLoadDateFile(File file) {
+            this.loadDateFile = file;
+            if (!file.exists()) {
+                return;
+            }
+            final Properties properties = new Properties();
+            try {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                for (Map.Entry<Object, Object> e : properties.entrySet()) {
+                    schemaLoadDates.putIfAbsent(
+                        (String) e.getKey(),
+                        new Date(Long.parseLong((String) e.getValue())));
+                }
+            } catch (IOException e) {
+                LOGGER.warn(
+                    "Could not read schema load dates from '" + file + "'", e);
+            } catch (NumberFormatException e) {
+                LOGGER.warn(
+                    "Could not read schema load dates from '" + file + "'", e);
+            }
+        }
+
+        /**
+         * Writes the schema load dates to the file, if there is one.
+         */
+        private synchronized void saveLoadDates() {
+            if (loadDateFile == null) {
+                return;
+            }
+            final Properties properties = new Properties();
+            for (Map.Entry<String, Date> e : schemaLoadDates.entrySet()) {
+                properties.setProperty(
+                    e.getKey(), Long.toString(e.getValue().getTime()));
+            }
+            // Write a new file and rename it, so that a crash cannot leave
+            // a file that is half written.
+            final File tmpFile =
+                new File(loadDateFile.getPath() + ".tmp");
+            try {
+                final OutputStream out = new FileOutputStream(tmpFile);
+                try {
+                    properties.store(out, "Schema load dates");
+                } finally {
+                    out.close();
+                }
+                if (!tmpFile.renameTo(loadDateFile)
+                    && !(loadDateFile.delete()
+                         && tmpFile.renameTo(loadDateFile)))
+                {
+                    throw new IOException("Cannot rename '" + tmpFile + "'");
+                }
+            } catch (IOException e) {
+                LOGGER.warn(
+                    "Could not write schema load dates to '" + loadDateFile
+                    + "'", e);
+            }
+        }
+
+        /**
+         * Registers a handler whose result and Discover caches are to be
+         * cleared when {@link #flushSchemaCache} is called.
+         *
+         * @param handler Handler
+         */
+        public void addHandler(XmlaHandler handler) {
+            handlers.add(handler);
+        }
+
         public ResultSet executeDrillthrough(
             OlapStatement olapStatement,
             String mdx,
@@ -3162,7 +4414,15 @@ public class XmlaHandler {
         }
 
         public Date getSchemaLoadDate(Schema schema) {
-            return new Date();
+            final String key =
+                schema.getCatalog().getName() + '\0' + schema.getName();
+            final Date date = new Date();
+            final Date previous = schemaLoadDates.putIfAbsent(key, date);
+            if (previous != null) {
+                return previous;
+            }
+            saveLoadDates();
+            return date;
         }
 
         public int getLevelCardinality(Level level) throws OlapException {
@@ -3293,7 +4553,14 @@ public class XmlaHandler {
         }
 
         public void flushSchemaCache(OlapConnection conn) throws OlapException{
-            // no op.
+            // Nothing to flush, but make schemas look reloaded, and clear
+            // the caches of results now rather than when the next request
+            // that uses a connection reports the new load date.
+            schemaLoadDates.clear();
+            saveLoadDates();
+            for (XmlaHandler handler : handlers) {
+                handler.clearCaches();
+            }
         }
 
         public Object getMemberKey(Member m) throws OlapException {
@@ -3387,6 +4654,250 @@ public class XmlaHandler {
 
     public interface Request {
     }
+
+    /**
+     * Response that is written to a buffer.
+     */
+    private static class BufferedResponse implements XmlaResponse {
+        final StringBuilder buf = new StringBuilder();
+        final SaxWriter writer;
+
+        /**
+         * Creates a BufferedResponse.
+         *
+         * @param indent Depth at which the response will be written
+         * @param compact Whether to omit line breaks and indentation
+         */
+        BufferedResponse(int indent, boolean compact) {
+            this.writer = new DefaultSaxWriter(buf, indent, compact);
+        }
+
+        public SaxWriter getWriter() {
+            return writer;
+        }
+
+        public void error(Throwable t) {
+            writeError(writer, t);
+        }
+    }
+
+    /**
+     * Writes a {@code Messages/Error} element into "root" of a response
+     * that is written to a buffer.
+     */
+    private static void writeError(SaxWriter writer, Throwable t) {
+        writer.completeBeforeElement("root");
+        Throwable throwable = XmlaUtil.rootThrowable(t);
+        writer.startElement("Messages", "xmlns", NS_XMLA_EX);
+        writer.element(
+            "Error",
+            "ErrorCode", throwable.getClass().getName(),
+            "Description", throwable.getMessage(),
+            "Source", "Mondrian",
+            "Help", "");
+        writer.endElement(); // Messages
+    }
+
+    /**
+     * Response of the leader of coalesced requests, written to a
+     * {@link SpillingBuffer}.
+     */
+    private static class LeaderResponse implements XmlaResponse {
+        final DefaultSaxWriter writer;
+
+        LeaderResponse(SpillingBuffer buf, boolean compact) {
+            this.writer = new DefaultSaxWriter(buf, 0, compact);
+        }
+
+        public SaxWriter getWriter() {
+            return writer;
+        }
+
+        public void error(Throwable t) {
+            writeError(writer, t);
+        }
+    }
+
+    /**
+     * Buffer for the body of a response that may be shared. Holds the text
+     * until it is longer than a limit; after that, the text is no longer
+     * held, but is written, in chunks, to the writer of the response.
+     */
+    private static class SpillingBuffer implements Appendable {
+        /** Length of text written to the response at a time, once spilled. */
+        private static final int CHUNK_SIZE = 8192;
+
+        private final StringBuilder buf = new StringBuilder();
+        private final SaxWriter target;
+        private final int limit;
+        private boolean spilled;
+
+        SpillingBuffer(SaxWriter target, int limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        public Appendable append(CharSequence csq) {
+            buf.append(csq);
+            check();
+            return this;
+        }
+
+        public Appendable append(CharSequence csq, int start, int end) {
+            buf.append(csq, start, end);
+            check();
+            return this;
+        }
+
+        public Appendable append(char c) {
+            buf.append(c);
+            check();
+            return this;
+        }
+
+        private void check() {
+            if (!spilled) {
+                if (buf.length() <= limit) {
+                    return;
+                }
+                spilled = true;
+                target.startDocument();
+            }
+            if (buf.length() >= CHUNK_SIZE) {
+                // Do not split a surrogate pair between chunks.
+                int n = buf.length();
+                if (Character.isHighSurrogate(buf.charAt(n - 1))) {
+                    --n;
+                }
+                target.verbatim(buf.substring(0, n));
+                buf.delete(0, n);
+            }
+        }
+
+        /**
+         * Ends the response. Returns the text, if it was short enough to be
+         * held; otherwise writes the rest to the response, ends its
+         * document, and returns null.
+         */
+        String finish() {
+            if (!spilled) {
+                return buf.toString();
+            }
+            target.verbatim(buf.toString());
+            buf.setLength(0);
+            target.endDocument();
+            return null;
+        }
+    }
+
+    /**
+     * Output stream that writes to another stream, and keeps a copy of what
+     * it writes until the copy would be longer than a limit.
+     */
+    private static class CapturingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CapturingOutputStream(OutputStream out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(1);
+            if (copy != null) {
+                copy.write(b);
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(len);
+            if (copy != null) {
+                copy.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /** Drops the copy if it would grow beyond the limit. */
+        private void capture(int len) {
+            if (copy != null && copy.size() + (long) len > limit) {
+                copy = null;
+            }
+        }
+
+        /**
+         * Returns what was written, or null if it was longer than the
+         * limit.
+         */
+        byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    /**
+     * Output stream that discards what is written to it.
+     */
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Command in a Batch. Writes its result, a root element, to a buffer;
+     * when the command fails before it has started its result, the result
+     * describes the error.
+     */
+    private class BatchCommand extends BufferedResponse implements Runnable {
+        private final XmlaRequest request;
+
+        BatchCommand(XmlaRequest request, boolean compact) {
+            // Write at the depth of "root" inside "results".
+            super(3, compact);
+            this.request = request;
+        }
+
+        public void run() {
+            try {
+                process(request, this, false);
+            } catch (Throwable t) {
+                LOGGER.debug("Error in Batch command", t);
+                if (buf.length() == 0) {
+                    writer.startElement(
+                        "root",
+                        "xmlns", NS_XMLA_EMPTY);
+                    writer.element("Exception", "xmlns", NS_XMLA_EX);
+                    error(t);
+                    writer.endElement(); // root
+                }
+            }
+        }
+    }
+
+    /**
+     * Optional interface for a {@link ConnectionFactory} that tracks, via
+     * {@link ConnectionFactory#startRequest} and
+     * {@link ConnectionFactory#endRequest}, which requests are running on its
+     * connections, and can cancel them. The Cancel command uses it.
+     */
+    public interface RequestCanceler {
+        /**
+         * Cancels the statements that the requests of a session are running
+         * on connections from this factory.
+         *
+         * @param sessionId Session id
+         * @return Number of requests canceled
+         */
+        int cancelRequests(String sessionId);
+    }
 }
 
 // End XmlaHandler.java
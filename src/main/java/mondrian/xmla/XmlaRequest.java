@@ -11,6 +11,7 @@ package mondrian.xmla;
 
 import org.olap4j.metadata.XmlaConstants;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -59,6 +60,21 @@ public interface XmlaRequest {
      */
     boolean isDrillThrough();
 
+    /**
+     * Indicates whether the command of an EXECUTE method is Cancel, which
+     * cancels the requests that are running in the session
+     * ({@link #getSessionId()}).
+     */
+    boolean isCancel();
+
+    /**
+     * Returns the commands of an EXECUTE method whose command is Batch, in
+     * the order they appear in the request; null if the command is not
+     * Batch. Each is a Statement (an EXECUTE request) or a Discover, and
+     * has the credentials and session of this request.
+     */
+    List<XmlaRequest> getBatchRequests();
+
     /**
      * The username to use to open the underlying olap4j connection.
      * Can be null.
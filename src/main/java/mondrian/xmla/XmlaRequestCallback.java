@@ -87,6 +87,15 @@ public interface XmlaRequestCallback {
      * This is called after the headers have been process but before the
      * body (DISCOVER/EXECUTE) has been processed.
      *
+     * <p>With the default "sax"
+     * {@link mondrian.xmla.impl.DefaultXmlaServlet#PARAM_REQUEST_PARSER
+     * RequestParser}, the elements of {@code requestSoapParts} are
+     * {@link java.lang.reflect.Proxy proxies} that implement
+     * {@link Element} and build the real DOM element when first used. They
+     * are not the nodes that their methods return (for example, an element
+     * is not its first child's parent), and are not instances of the DOM
+     * implementation's classes. A callback that compares nodes by identity,
+     * or casts them to implementation classes, must use the "dom" parser.
      */
     void preAction(
         HttpServletRequest request,
@@ -10,17 +10,25 @@
 */
 package mondrian.xmla;
 
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+
 import org.apache.log4j.Logger;
 
 import org.w3c.dom.Element;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.*;
 
+import static org.olap4j.metadata.XmlaConstants.Method;
+
 /**
  * Base XML/A servlet.
  *
@@ -39,13 +47,286 @@ public abstract class XmlaServlet
     public static final String PARAM_CHAR_ENCODING = "CharacterEncoding";
     public static final String PARAM_CALLBACKS = "Callbacks";
 
+    /**
+     * Servlet config parameter that determines whether the bodies of
+     * requests are processed asynchronously, in a pool of threads for each
+     * method (Discover and Execute), so that long-running queries do not
+     * hold container threads and cannot starve cheap Discover requests.
+     * Default is false.
+     *
+     * <p>The servlet must also be declared with
+     * {@code <async-supported>true</async-supported>}; if it is not,
+     * requests are processed synchronously.
+     */
+    public static final String PARAM_ASYNC_PROCESSING = "AsyncProcessing";
+
+    /**
+     * Servlet config parameter for the number of threads that process
+     * Execute requests in async mode. Default is the number of processors.
+     */
+    public static final String PARAM_EXECUTE_THREADS = "ExecuteThreads";
+
+    /**
+     * Servlet config parameter for the number of threads that process
+     * Discover requests in async mode. Default is the number of processors.
+     */
+    public static final String PARAM_DISCOVER_THREADS = "DiscoverThreads";
+
+    /**
+     * Servlet config parameter for the number of requests of each method
+     * that may wait for a thread in async mode. If the queue is full, the
+     * request fails immediately with a SOAP fault. Default is 100.
+     */
+    public static final String PARAM_ASYNC_QUEUE_DEPTH = "AsyncQueueDepth";
+
+    private static final int DEFAULT_ASYNC_QUEUE_DEPTH = 100;
+
+    /**
+     * Servlet config parameter that determines whether each request is
+     * processed, from parsing to sending the response, on a virtual thread
+     * of its own. A request that is blocked waiting for the OLAP server or
+     * for the client then costs little, so a server can hold many slow
+     * clients without a large thread pool. Default is false. Requires JDK
+     * 21 or later; ignored, with a warning, on earlier JVMs.
+     *
+     * <p>As with {@link #PARAM_ASYNC_PROCESSING}, the servlet must be
+     * declared async-supported. If async processing is enabled too, its
+     * thread counts limit how many requests of each method are processed
+     * at a time, and its queue depth how many may wait.
+     */
+    public static final String PARAM_VIRTUAL_THREADS = "VirtualThreads";
+
+    /**
+     * Servlet config parameter for the timeout, in seconds, of requests that
+     * do not specify the XMLA {@code Timeout} property. When a request times
+     * out, its statement is canceled and it fails with a SOAP fault.
+     * Default is 0, no timeout. A request whose {@code Timeout} is 0 has no
+     * timeout, as in XMLA, unless {@link #PARAM_MAX_TIMEOUT} is set.
+     */
+    public static final String PARAM_DEFAULT_TIMEOUT = "DefaultTimeout";
+
+    /**
+     * Servlet config parameter for the largest timeout, in seconds, that a
+     * request may ask for; it also applies to requests that ask for no
+     * timeout. Default is 0, no limit.
+     */
+    public static final String PARAM_MAX_TIMEOUT = "MaxTimeout";
+
+    /**
+     * Servlet config parameter for the number of threads that run the
+     * commands of XMLA Batch requests in parallel, shared by all Batch
+     * requests. 0 means that each Batch runs its commands one after
+     * another. Default is the number of processors.
+     */
+    public static final String PARAM_BATCH_THREADS = "BatchThreads";
+
+    /**
+     * Servlet config parameter that determines whether identical requests
+     * (same statement or Discover, role and properties) that arrive while
+     * one of them is being processed wait for it and receive a copy of its
+     * response, instead of being processed again. Since a request that
+     * receives a copy is not authenticated, only requests whose role a
+     * callback has set (see {@link XmlaConstants#CONTEXT_ROLE_NAME}) are
+     * shared; requests of different users with the same role share too.
+     * Responses that may be shared are buffered, not streamed, up to 4M
+     * characters; a longer response is streamed to the first request's
+     * client, and the waiting requests are processed separately. Default is
+     * false.
+     */
+    public static final String PARAM_COALESCE_REQUESTS = "CoalesceRequests";
+
+    /**
+     * Servlet config parameter for the size, in megabytes, of the cache of
+     * serialized Execute responses. Identical statements, with the same
+     * catalog, role and format, are answered from the cache. Since a cached
+     * response is served without checking the user's credentials, only
+     * requests whose role a callback has set (see
+     * {@link XmlaConstants#CONTEXT_ROLE_NAME}) are cached. A response is
+     * streamed to the client while a copy is kept for the cache; a response
+     * larger than a tenth of the cache is not copied, nor cached. The cache
+     * is held in direct memory, outside the Java heap; allow for it when
+     * setting -XX:MaxDirectMemorySize. Default is 0, no cache.
+     *
+     * <p>A schema cache flush through {@link XmlaHandler.XmlaExtraImpl}
+     * clears the cache at once. With other implementations of
+     * {@link XmlaHandler.XmlaExtra}, the cache is cleared when the next
+     * request that uses a connection sees the schema's new load date; until
+     * then, cached responses are still served.
+     */
+    public static final String PARAM_RESULT_CACHE_SIZE = "ResultCacheSize";
+
+    /**
+     * Servlet config parameter for the size, in megabytes, of the cache of
+     * serialized responses to metadata Discover requests (MDSCHEMA_xxx and
+     * DBSCHEMA_xxx rowsets). Identical requests, with the same restrictions,
+     * properties and role, are answered from the cache. As in the result
+     * cache, requests with no role are not cached. Like the result cache,
+     * it is held outside the Java heap. Default is 0, no cache.
+     */
+    public static final String PARAM_DISCOVER_CACHE_SIZE =
+        "DiscoverCacheSize";
+
+    /**
+     * Servlet config parameter for the time, in seconds, for which a cached
+     * Execute or Discover response may be served. The caches are also
+     * cleared when they see that a schema has been reloaded. 0 means no
+     * limit. Default is 600.
+     */
+    public static final String PARAM_RESULT_CACHE_MAX_AGE =
+        "ResultCacheMaxAge";
+
+    private static final int DEFAULT_RESULT_CACHE_MAX_AGE = 600;
+
+    /**
+     * Servlet config parameter that determines whether the Discover cache
+     * keeps serving a response after the schema is reloaded or the response
+     * is older than {@link #PARAM_DISCOVER_CACHE_SOFT_TTL}, while one
+     * background thread computes it again. Responses are never served after
+     * {@link #PARAM_RESULT_CACHE_MAX_AGE}. Default is false.
+     */
+    public static final String PARAM_DISCOVER_CACHE_REFRESH =
+        "DiscoverCacheRefresh";
+
+    /**
+     * Servlet config parameter for the time, in seconds, after which a
+     * cached Discover response is refreshed, if
+     * {@link #PARAM_DISCOVER_CACHE_REFRESH} is true. 0 means refresh only
+     * when the schema is reloaded. Default is 300.
+     */
+    public static final String PARAM_DISCOVER_CACHE_SOFT_TTL =
+        "DiscoverCacheSoftTtl";
+
+    private static final int DEFAULT_DISCOVER_CACHE_SOFT_TTL = 300;
+
+    /** Maximum number of responses waiting to be refreshed. */
+    private static final int REFRESH_QUEUE_DEPTH = 1000;
+
+    /**
+     * Servlet config parameter for a directory on local disk in which the
+     * Execute and Discover caches keep a second copy of their responses,
+     * in subdirectories "execute" and "discover", so that the caches are
+     * warm when the server restarts. Only caches that are enabled (see
+     * {@link #PARAM_RESULT_CACHE_SIZE} and
+     * {@link #PARAM_DISCOVER_CACHE_SIZE}) use it.
+     *
+     * <p>A response from before a restart is served until a request that
+     * uses a connection reports a newer load date for a schema (see
+     * {@link DiskResultCache}). If the connection factory uses
+     * {@link XmlaHandler.XmlaExtraImpl}, which cannot tell when a schema
+     * changes, its load dates are kept in the directory too, so responses
+     * remain current across restarts until the schema cache is flushed;
+     * flush it, or delete the directory, when deploying a changed schema.
+     * Default is none.
+     */
+    public static final String PARAM_DISK_CACHE_DIRECTORY =
+        "DiskCacheDirectory";
+
+    /**
+     * Servlet config parameter for the maximum size, in megabytes, of each
+     * disk cache. Default is 1024.
+     */
+    public static final String PARAM_DISK_CACHE_SIZE = "DiskCacheSize";
+
+    private static final int DEFAULT_DISK_CACHE_SIZE = 1024;
+
+    /**
+     * Servlet config parameter for a file in which a sample of requests is
+     * recorded. When the servlet starts, it replays the most frequent
+     * requests in the file, to warm the caches. Default is none.
+     */
+    public static final String PARAM_WORKLOAD_LOG = "WorkloadLog";
+
+    /**
+     * Servlet config parameter for the percentage of requests that are
+     * recorded in the workload log. Default is 10.
+     */
+    public static final String PARAM_WORKLOAD_SAMPLE_PERCENT =
+        "WorkloadSamplePercent";
+
+    /**
+     * Servlet config parameter for the number of distinct requests that are
+     * replayed from the workload log when the servlet starts. Default is
+     * 100.
+     */
+    public static final String PARAM_WARM_UP_REQUESTS = "WarmUpRequests";
+
+    /**
+     * Servlet config parameter for the time, in seconds, that the servlet
+     * waits, while starting, for the requests of the warm-up to finish;
+     * those that have not finished continue in the background. 0 means do
+     * not wait. Default is 120.
+     */
+    public static final String PARAM_WARM_UP_TIMEOUT = "WarmUpTimeout";
+
+    private static final int DEFAULT_WORKLOAD_SAMPLE_PERCENT = 10;
+    private static final int DEFAULT_WARM_UP_REQUESTS = 100;
+    private static final int DEFAULT_WARM_UP_TIMEOUT = 120;
+
+    /**
+     * Servlet config parameter that determines whether responses to
+     * metadata Discover requests of a named catalog carry an ETag header,
+     * and whether a request whose "If-None-Match" header has a matching tag
+     * receives "304 Not Modified" instead of the rowset. The tag changes
+     * when the schema is reloaded. Default is false.
+     */
+    public static final String PARAM_DISCOVER_ETAGS = "DiscoverETags";
+
+    /**
+     * Servlet config parameter that determines whether XML responses whose
+     * character encoding is UTF-8 are written by a writer that encodes
+     * straight to bytes, rather than through a {@link java.io.Writer}. The
+     * response is the same; only the cost of writing it differs. Default is
+     * false.
+     */
+    public static final String PARAM_UTF8_WRITER = "Utf8Writer";
+
+    /**
+     * Servlet config parameter that determines whether the body of a
+     * response is written with line breaks and indentation. If false, the
+     * body is compact: it contains no whitespace between elements, and is
+     * much smaller. A request may override this setting by adding a
+     * "PrettyPrint=true" or "PrettyPrint=false" query parameter to the URL.
+     * Default is true if debug logging is enabled, false otherwise.
+     */
+    public static final String PARAM_PRETTY_PRINT = "PrettyPrint";
+
     protected XmlaHandler xmlaHandler = null;
+    protected boolean discoverETags = false;
+    protected boolean utf8Writer = false;
+    protected boolean prettyPrint = false;
     protected String charEncoding = null;
     private final List<XmlaRequestCallback> callbackList =
         new ArrayList<XmlaRequestCallback>();
 
     private XmlaHandler.ConnectionFactory connectionFactory;
 
+    /** Pool for Execute requests; null unless in async mode. */
+    private RequestPool executePool;
+
+    /** Pool for Discover requests; null unless in async mode. */
+    private RequestPool discoverPool;
+
+    /** Executor that runs each task on a new virtual thread, or null. */
+    private ExecutorService virtualThreadExecutor;
+
+    private int defaultTimeout;
+    private int maxTimeout;
+
+    /** Runs the commands of Batch requests; null if they run serially. */
+    private ExecutorService batchExecutor;
+    private ExecutorService refreshExecutor;
+
+    private boolean coalesceRequests;
+
+    /** Cache of Execute responses; null if disabled. */
+    private ResultCache resultCache;
+
+    /** Cache of Discover responses; null if disabled. */
+    private ResultCache discoverCache;
+
+    /** Log of a sample of requests; null if disabled. */
+    private WorkloadLog workloadLog;
+
     public enum Phase {
         VALIDATE_HTTP_HEAD,
         INITIAL_PARSE,
@@ -68,6 +349,21 @@ public abstract class XmlaServlet
         return paramValue != null && Boolean.valueOf(paramValue);
     }
 
+    /**
+     * Returns the value of an integer init parameter, or a default value if
+     * the parameter is not set.
+     */
+    public static int getIntInitParameter(
+        ServletConfig servletConfig,
+        String paramName,
+        int defaultValue)
+    {
+        String paramValue = servletConfig.getInitParameter(paramName);
+        return paramValue == null
+            ? defaultValue
+            : Integer.parseInt(paramValue.trim());
+    }
+
     public static boolean getParameter(
         HttpServletRequest req,
         String paramName)
@@ -76,6 +372,40 @@ public abstract class XmlaServlet
         return paramValue != null && Boolean.valueOf(paramValue);
     }
 
+    /**
+     * Returns the value of a parameter in the query string of a request, or
+     * null if it is absent. Unlike {@link HttpServletRequest#getParameter},
+     * does not read a form-encoded body, so the body can still be read as a
+     * SOAP message.
+     */
+    static String getQueryParameter(
+        HttpServletRequest req,
+        String paramName)
+    {
+        final String queryString = req.getQueryString();
+        if (queryString == null) {
+            return null;
+        }
+        for (String pair : queryString.split("&")) {
+            final int eq = pair.indexOf('=');
+            try {
+                final String name =
+                    URLDecoder.decode(
+                        eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                if (name.equals(paramName)) {
+                    return eq < 0
+                        ? ""
+                        : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalArgumentException e) {
+                // Malformed escape; ignore the pair.
+            }
+        }
+        return null;
+    }
+
     public XmlaServlet() {
     }
 
@@ -94,8 +424,275 @@ public abstract class XmlaServlet
 
         // init: callbacks
         initCallbacks(servletConfig);
+        this.discoverETags =
+            getBooleanInitParameter(servletConfig, PARAM_DISCOVER_ETAGS);
+        if (discoverETags) {
+            addCallback(new ConditionalRequestCallback());
+        }
+        this.utf8Writer =
+            getBooleanInitParameter(servletConfig, PARAM_UTF8_WRITER);
+        final String prettyPrint =
+            servletConfig.getInitParameter(PARAM_PRETTY_PRINT);
+        this.prettyPrint =
+            prettyPrint == null
+                ? LOGGER.isDebugEnabled()
+                : Boolean.valueOf(prettyPrint);
 
         this.connectionFactory = createConnectionFactory(servletConfig);
+
+        this.defaultTimeout =
+            getIntInitParameter(servletConfig, PARAM_DEFAULT_TIMEOUT, 0);
+        this.maxTimeout =
+            getIntInitParameter(servletConfig, PARAM_MAX_TIMEOUT, 0);
+
+        final int batchThreadCount =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_BATCH_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        if (batchThreadCount > 0) {
+            this.batchExecutor =
+                Executors.newFixedThreadPool(
+                    batchThreadCount, new NamedThreadFactory("xmla-batch"));
+        }
+        this.coalesceRequests =
+            getBooleanInitParameter(servletConfig, PARAM_COALESCE_REQUESTS);
+        final int cacheMaxAge =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_RESULT_CACHE_MAX_AGE,
+                DEFAULT_RESULT_CACHE_MAX_AGE);
+        final int resultCacheSize =
+            getIntInitParameter(servletConfig, PARAM_RESULT_CACHE_SIZE, 0);
+        if (resultCacheSize > 0) {
+            this.resultCache =
+                new ResultCache(resultCacheSize * 1024L * 1024L, cacheMaxAge);
+        }
+        final int discoverCacheSize =
+            getIntInitParameter(servletConfig, PARAM_DISCOVER_CACHE_SIZE, 0);
+        if (discoverCacheSize > 0) {
+            this.discoverCache =
+                new ResultCache(
+                    discoverCacheSize * 1024L * 1024L, cacheMaxAge);
+            if (getBooleanInitParameter(
+                    servletConfig, PARAM_DISCOVER_CACHE_REFRESH))
+            {
+                this.refreshExecutor =
+                    new ThreadPoolExecutor(
+                        1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(
+                            REFRESH_QUEUE_DEPTH),
+                        new NamedThreadFactory("xmla-cache-refresh"));
+                discoverCache.setRefresh(
+                    refreshExecutor,
+                    getIntInitParameter(
+                        servletConfig,
+                        PARAM_DISCOVER_CACHE_SOFT_TTL,
+                        DEFAULT_DISCOVER_CACHE_SOFT_TTL));
+            }
+        }
+        final String diskCacheDirectory =
+            servletConfig.getInitParameter(PARAM_DISK_CACHE_DIRECTORY);
+        if (diskCacheDirectory != null
+            && diskCacheDirectory.trim().length() > 0)
+        {
+            final long diskCacheBytes =
+                getIntInitParameter(
+                    servletConfig,
+                    PARAM_DISK_CACHE_SIZE,
+                    DEFAULT_DISK_CACHE_SIZE) * 1024L * 1024L;
+            final File directory = new File(diskCacheDirectory.trim());
+            openDiskCache(
+                resultCache, new File(directory, "execute"),
+                diskCacheBytes, cacheMaxAge);
+            openDiskCache(
+                discoverCache, new File(directory, "discover"),
+                diskCacheBytes, cacheMaxAge);
+            final XmlaHandler.XmlaExtra extra = connectionFactory.getExtra();
+            if ((resultCache != null || discoverCache != null)
+                && extra instanceof XmlaHandler.XmlaExtraImpl)
+            {
+                // Keep the estimated schema load dates with the responses,
+                // so that the responses are still current after a restart.
+                ((XmlaHandler.XmlaExtraImpl) extra).setLoadDateFile(
+                    new File(directory, "schema-load-dates.properties"));
+            }
+        }
+
+        if (getBooleanInitParameter(servletConfig, PARAM_VIRTUAL_THREADS)) {
+            this.virtualThreadExecutor = newVirtualThreadExecutor();
+            if (virtualThreadExecutor == null) {
+                LOGGER.warn(
+                    "This JVM does not support virtual threads; ignoring "
+                    + PARAM_VIRTUAL_THREADS);
+            }
+        }
+
+        if (getBooleanInitParameter(servletConfig, PARAM_ASYNC_PROCESSING)) {
+            final int processorCount =
+                Runtime.getRuntime().availableProcessors();
+            final int queueDepth =
+                getIntInitParameter(
+                    servletConfig,
+                    PARAM_ASYNC_QUEUE_DEPTH,
+                    DEFAULT_ASYNC_QUEUE_DEPTH);
+            this.executePool =
+                new RequestPool(
+                    Method.EXECUTE,
+                    getIntInitParameter(
+                        servletConfig, PARAM_EXECUTE_THREADS, processorCount),
+                    queueDepth,
+                    virtualThreadExecutor == null);
+            this.discoverPool =
+                new RequestPool(
+                    Method.DISCOVER,
+                    getIntInitParameter(
+                        servletConfig, PARAM_DISCOVER_THREADS, processorCount),
+                    queueDepth,
+                    virtualThreadExecutor == null);
+        }
+
+        // Render responses that never change, such as DISCOVER_ENUMERATORS.
+        // If no encoding is configured, the container's default is
+        // ISO-8859-1; responses in other encodings are rendered on demand.
+        getXmlaHandler().prepareStaticResponses(
+            charEncoding != null ? charEncoding : "ISO-8859-1");
+
+        final String workloadLogPath =
+            servletConfig.getInitParameter(PARAM_WORKLOAD_LOG);
+        if (workloadLogPath != null && workloadLogPath.trim().length() > 0) {
+            warmUp(servletConfig, new File(workloadLogPath.trim()));
+        }
+    }
+
+    /**
+     * Replays the most frequent requests in the workload log, then starts
+     * recording requests in it.
+     */
+    private void warmUp(ServletConfig servletConfig, File file) {
+        final WorkloadLog log =
+            new WorkloadLog(
+                file,
+                getIntInitParameter(
+                    servletConfig,
+                    PARAM_WORKLOAD_SAMPLE_PERCENT,
+                    DEFAULT_WORKLOAD_SAMPLE_PERCENT));
+        final List<WorkloadLog.Sample> samples;
+        try {
+            samples =
+                log.load(
+                    getIntInitParameter(
+                        servletConfig,
+                        PARAM_WARM_UP_REQUESTS,
+                        DEFAULT_WARM_UP_REQUESTS));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read workload log '" + file + "'", e);
+            return;
+        }
+        if (!samples.isEmpty()) {
+            final long timeoutMillis =
+                getIntInitParameter(
+                    servletConfig,
+                    PARAM_WARM_UP_TIMEOUT,
+                    DEFAULT_WARM_UP_TIMEOUT) * 1000L;
+            final ExecutorService executor =
+                Executors.newFixedThreadPool(
+                    Math.min(
+                        samples.size(),
+                        Runtime.getRuntime().availableProcessors()),
+                    new NamedThreadFactory("xmla-warm-up"));
+            final long start = System.currentTimeMillis();
+            final int successCount =
+                WorkloadLog.replay(
+                    getXmlaHandler(), samples, executor, !prettyPrint,
+                    timeoutMillis);
+            // Threads end when the queue is empty.
+            executor.shutdown();
+            LOGGER.info(
+                "Warm-up: " + successCount + " of " + samples.size()
+                + " request(s) succeeded in "
+                + (System.currentTimeMillis() - start) + " ms");
+        }
+        this.workloadLog = log;
+        getXmlaHandler().setWorkloadLog(log);
+    }
+
+    public void destroy() {
+        if (executePool != null) {
+            executePool.shutdown();
+            executePool = null;
+        }
+        if (discoverPool != null) {
+            discoverPool.shutdown();
+            discoverPool = null;
+        }
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+            refreshExecutor = null;
+        }
+        if (xmlaHandler != null) {
+            xmlaHandler.getRequestRegistry().shutdown();
+        }
+        if (workloadLog != null) {
+            workloadLog.close();
+            workloadLog = null;
+        }
+        for (ResultCache cache
+            : new ResultCache[] {resultCache, discoverCache})
+        {
+            if (cache != null && cache.getSecondLevel() != null) {
+                cache.getSecondLevel().close();
+            }
+        }
+        super.destroy();
+    }
+
+    /**
+     * Loads a disk cache and attaches it to a cache, if the cache is
+     * enabled.
+     */
+    private static void openDiskCache(
+        ResultCache cache,
+        File directory,
+        long maxBytes,
+        int maxAgeSeconds)
+        throws ServletException
+    {
+        if (cache == null) {
+            return;
+        }
+        final DiskResultCache diskCache =
+            new DiskResultCache(directory, maxBytes, maxAgeSeconds);
+        try {
+            diskCache.open();
+        } catch (IOException e) {
+            throw new ServletException(
+                "Cannot open disk cache '" + directory + "'", e);
+        }
+        cache.setSecondLevel(diskCache);
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task, or
+     * returns null if the JVM does not support virtual threads. Uses
+     * reflection so that this class compiles on older JDKs.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     protected abstract XmlaHandler.ConnectionFactory createConnectionFactory(
@@ -113,6 +710,16 @@ public abstract class XmlaServlet
                 new XmlaHandler(
                     connectionFactory,
                     "cxmla");
+            this.xmlaHandler.setDefaultTimeout(defaultTimeout);
+            this.xmlaHandler.setMaxTimeout(maxTimeout);
+            this.xmlaHandler.setBatchExecutor(batchExecutor);
+            this.xmlaHandler.setCoalesceRequests(coalesceRequests);
+            this.xmlaHandler.setResultCache(resultCache);
+            this.xmlaHandler.setDiscoverCache(discoverCache);
+            final XmlaHandler.XmlaExtra extra = connectionFactory.getExtra();
+            if (extra instanceof XmlaHandler.XmlaExtraImpl) {
+                ((XmlaHandler.XmlaExtraImpl) extra).addHandler(xmlaHandler);
+            }
         }
         return this.xmlaHandler;
     }
@@ -141,16 +748,83 @@ public abstract class XmlaServlet
         HttpServletRequest request,
         HttpServletResponse response)
         throws ServletException, IOException
+    {
+        if (virtualThreadExecutor != null && request.isAsyncSupported()) {
+            dispatchRequest(request, response);
+            return;
+        }
+        if (!processRequest(request, response)) {
+            completeResponse(response);
+        }
+    }
+
+    /**
+     * Hands processing of a whole request to a virtual thread.
+     */
+    private void dispatchRequest(
+        final HttpServletRequest request,
+        final HttpServletResponse response)
+    {
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+        final Runnable task =
+            new Runnable() {
+                public void run() {
+                    try {
+                        processRequest(request, response);
+                        completeResponse(response);
+                    } catch (Throwable t) {
+                        LOGGER.error(
+                            "Unknown Error when handling XML/A message", t);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            };
+        try {
+            virtualThreadExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The executor is shutting down. Finish the request here.
+            task.run();
+        }
+    }
+
+    /**
+     * Called when the response to a request is complete, before it is
+     * closed. For a request whose body is processed asynchronously, this
+     * happens on the pool thread, before the async context is completed.
+     *
+     * <p>The default implementation does nothing. Override to finish a
+     * wrapped response.
+     */
+    protected void completeResponse(HttpServletResponse response)
+        throws IOException
+    {
+    }
+
+    /**
+     * Processes a request: parses it and handles its header in the calling
+     * thread, then handles its body either in the calling thread or, in
+     * async mode, in the pool for its method. If the request is already
+     * running on a virtual thread of its own, the body is handled in that
+     * thread once the pool allows.
+     *
+     * @return whether processing of the body was handed to a pool thread
+     */
+    private boolean processRequest(
+        final HttpServletRequest request,
+        final HttpServletResponse response)
+        throws ServletException, IOException
     {
         // Request Soap Header and Body
         // header [0] and body [1]
-        Element[] requestSoapParts = new Element[2];
+        final Element[] requestSoapParts = new Element[2];
 
         // Response Soap Header and Body
         // An array allows response parts to be passed into callback
         // and possible modifications returned.
         // response header in [0] and response body in [1]
-        byte[][] responseSoapParts = new byte[2][];
+        final byte[][] responseSoapParts = new byte[2][];
 
         Phase phase = Phase.VALIDATE_HTTP_HEAD;
         Enumeration.ResponseMimeType mimeType =
@@ -172,7 +846,7 @@ public abstract class XmlaServlet
 
             response.setContentType(mimeType.getMimeType());
 
-            Map<String, Object> context = new HashMap<String, Object>();
+            final Map<String, Object> context = new HashMap<String, Object>();
 
             try {
                 if (LOGGER.isDebugEnabled()) {
@@ -184,7 +858,7 @@ public abstract class XmlaServlet
                             response,
                             context))
                     {
-                        return;
+                        return false;
                     }
                 }
             } catch (XmlaException xex) {
@@ -193,7 +867,7 @@ public abstract class XmlaServlet
                 handleFault(response, responseSoapParts, phase, xex);
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             } catch (Exception ex) {
                 LOGGER.error(
                     "Errors when invoking callbacks validateHttpHeader", ex);
@@ -207,7 +881,7 @@ public abstract class XmlaServlet
                         ex));
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             }
 
 
@@ -244,13 +918,23 @@ public abstract class XmlaServlet
                 }
                 context.put(CONTEXT_MIME_TYPE, mimeType);
 
+                // does the URL override pretty-printing? (Parse the query
+                // string ourselves; getParameter would consume a body that
+                // is sent as a form.)
+                final String prettyPrint =
+                    getQueryParameter(request, PARAM_PRETTY_PRINT);
+                if (prettyPrint != null) {
+                    context.put(
+                        CONTEXT_PRETTY_PRINT, Boolean.valueOf(prettyPrint));
+                }
+
                 unmarshallSoapMessage(request, requestSoapParts);
             } catch (XmlaException xex) {
                 LOGGER.error("Unable to unmarshall SOAP message", xex);
                 handleFault(response, responseSoapParts, phase, xex);
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             }
 
             phase = Phase.PROCESS_HEADER;
@@ -271,7 +955,7 @@ public abstract class XmlaServlet
                 handleFault(response, responseSoapParts, phase, xex);
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             }
 
             phase = Phase.CALLBACK_PRE_ACTION;
@@ -290,7 +974,7 @@ public abstract class XmlaServlet
                 handleFault(response, responseSoapParts, phase, xex);
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             } catch (Exception ex) {
                 LOGGER.error("Errors when invoking callbacks preaction", ex);
                 handleFault(
@@ -303,11 +987,118 @@ public abstract class XmlaServlet
                         ex));
                 phase = Phase.SEND_ERROR;
                 marshallSoapMessage(response, responseSoapParts, mimeType);
-                return;
+                return false;
             }
 
             phase = Phase.PROCESS_BODY;
 
+            final RequestPool pool = choosePool(request, requestSoapParts);
+            if (pool != null) {
+                if (!pool.tryAcquire()) {
+                    // Reply at once, rather than tie up a container thread
+                    // waiting for a slot.
+                    final XmlaException xex =
+                        new XmlaException(
+                            SERVER_FAULT_FC,
+                            HSB_BUSY_CODE,
+                            HSB_BUSY_FAULT_FS,
+                            new RejectedExecutionException(
+                                "Queue for " + pool.method
+                                + " requests is full"));
+                    LOGGER.warn(xex.getMessage());
+                    handleFault(response, responseSoapParts, phase, xex);
+                    marshallSoapMessage(response, responseSoapParts, mimeType);
+                    return false;
+                }
+                if (pool.isInline()) {
+                    final Enumeration.ResponseMimeType mimeType0 = mimeType;
+                    pool.run(
+                        new Runnable() {
+                            public void run() {
+                                processBody(
+                                    request, response, requestSoapParts,
+                                    responseSoapParts, context, mimeType0);
+                            }
+                        });
+                    return false;
+                }
+                dispatchBody(
+                    pool, request, response, requestSoapParts,
+                    responseSoapParts, context, mimeType);
+                return true;
+            }
+            processBody(
+                request, response, requestSoapParts, responseSoapParts,
+                context, mimeType);
+        } catch (Throwable t) {
+            LOGGER.error("Unknown Error when handling XML/A message", t);
+            handleFault(response, responseSoapParts, phase, t);
+            marshallSoapMessage(response, responseSoapParts, mimeType);
+        }
+        return false;
+    }
+
+    /**
+     * Hands processing of a request's body to a pool thread. The pool slot
+     * must already have been acquired.
+     */
+    private void dispatchBody(
+        final RequestPool pool,
+        final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Element[] requestSoapParts,
+        final byte[][] responseSoapParts,
+        final Map<String, Object> context,
+        final Enumeration.ResponseMimeType mimeType)
+    {
+        final AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync(request, response);
+            // The container must not time the request out while a query is
+            // running; it cannot stop the query.
+            asyncContext.setTimeout(0);
+        } catch (RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+        final Runnable task =
+            new Runnable() {
+                public void run() {
+                    try {
+                        processBody(
+                            request, response, requestSoapParts,
+                            responseSoapParts, context, mimeType);
+                        completeResponse(response);
+                    } catch (Throwable t) {
+                        LOGGER.error(
+                            "Unknown Error when handling XML/A message", t);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            };
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down. Finish the request here.
+            task.run();
+        }
+    }
+
+    /**
+     * Handles a request's body, invokes post-action callbacks, and sends the
+     * response.
+     */
+    private void processBody(
+        HttpServletRequest request,
+        HttpServletResponse response,
+        Element[] requestSoapParts,
+        byte[][] responseSoapParts,
+        Map<String, Object> context,
+        Enumeration.ResponseMimeType mimeType)
+    {
+        Phase phase = Phase.PROCESS_BODY;
+        try {
             try {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Handling XML/A message body");
@@ -382,6 +1173,83 @@ public abstract class XmlaServlet
         }
     }
 
+    /**
+     * Returns the pool in which to process the body of a request, or null
+     * to process it in the calling thread.
+     */
+    private RequestPool choosePool(
+        HttpServletRequest request,
+        Element[] requestSoapParts)
+    {
+        if (executePool == null || !request.isAsyncSupported()) {
+            return null;
+        }
+        final Method method = getRequestMethod(requestSoapParts);
+        if (method == null) {
+            // Let handleSoapBody report the error.
+            return null;
+        }
+        switch (method) {
+        case DISCOVER:
+            return discoverPool;
+        default:
+            if (isCancelRequest(requestSoapParts)) {
+                // Cancel is cheap, and must not wait behind the statements
+                // it is canceling.
+                return null;
+            }
+            return executePool;
+        }
+    }
+
+    /**
+     * Returns the method (Discover or Execute) of a request, or null if
+     * the body does not contain exactly one method element.
+     *
+     * <p>Subclasses that hold a parsed form of the request may override, to
+     * avoid looking at the DOM.
+     */
+    protected Method getRequestMethod(Element[] requestSoapParts) {
+        final Element bodyElem = requestSoapParts[1];
+        if (bodyElem == null) {
+            return null;
+        }
+        final int discoverCount =
+            XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Discover").length;
+        final int executeCount =
+            XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Execute").length;
+        if (discoverCount + executeCount != 1) {
+            return null;
+        }
+        return discoverCount == 1 ? Method.DISCOVER : Method.EXECUTE;
+    }
+
+    /**
+     * Returns whether a request is an Execute whose command is Cancel.
+     */
+    protected boolean isCancelRequest(Element[] requestSoapParts) {
+        final Element bodyElem = requestSoapParts[1];
+        if (bodyElem == null) {
+            return false;
+        }
+        final Element[] executes =
+            XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Execute");
+        if (executes.length != 1) {
+            return false;
+        }
+        for (Element command
+            : XmlaUtil.filterChildElements(executes[0], NS_XMLA, "Command"))
+        {
+            if (XmlaUtil.filterChildElements(command, null, "Cancel").length
+                > 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     /**
      * Implement to provide application specified SOAP unmarshalling algorithm.
      */
@@ -501,6 +1369,111 @@ public abstract class XmlaServlet
                 "Registered " + count + " callback" + (count > 1 ? "s" : ""));
         }
     }
+
+    /**
+     * Pool of threads that process the bodies of requests of one method.
+     *
+     * <p>A request must acquire a permit before it is submitted; there are
+     * as many permits as threads plus queue slots, so the queue is bounded
+     * and a caller can find out that it is full without blocking.
+     *
+     * <p>An inline pool has no threads of its own. It is for requests that
+     * already run on a virtual thread each; such a request waits (cheaply)
+     * for one of a limited number of turns, then runs in its own thread.
+     */
+    private static class RequestPool {
+        final Method method;
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        /** Turns, for an inline pool; null otherwise. */
+        private final Semaphore turns;
+
+        RequestPool(
+            Method method,
+            int threadCount,
+            int queueDepth,
+            boolean ownThreads)
+        {
+            this.method = method;
+            if (ownThreads) {
+                this.executor =
+                    Executors.newFixedThreadPool(
+                        threadCount,
+                        new NamedThreadFactory(
+                            "xmla-" + method.name().toLowerCase()));
+                this.turns = null;
+            } else {
+                this.executor = null;
+                this.turns = new Semaphore(threadCount);
+            }
+            this.permits = new Semaphore(threadCount + queueDepth);
+        }
+
+        /**
+         * Returns whether this pool runs tasks in the calling thread.
+         */
+        boolean isInline() {
+            return executor == null;
+        }
+
+        /**
+         * Acquires a permit, if one is available immediately.
+         */
+        boolean tryAcquire() {
+            return permits.tryAcquire();
+        }
+
+        /**
+         * Releases a permit without running a task.
+         */
+        void release() {
+            permits.release();
+        }
+
+        /**
+         * Runs a task in the pool, and releases its permit when it is done.
+         */
+        void execute(final Runnable task) {
+            try {
+                executor.execute(
+                    new Runnable() {
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Runs a task in the calling thread when it is its turn, and
+         * releases its permit when it is done. For inline pools only.
+         */
+        void run(Runnable task) throws InterruptedException {
+            try {
+                turns.acquire();
+                try {
+                    task.run();
+                } finally {
+                    turns.release();
+                }
+            } finally {
+                permits.release();
+            }
+        }
+
+        void shutdown() {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
 }
 
 // End XmlaServlet.java
@@ -374,6 +374,14 @@ way too noisy
                 throw new UnsupportedOperationException();
             }
 
+            public boolean isCancel() {
+                return false;
+            }
+
+            public List<XmlaRequest> getBatchRequests() {
+                return null;
+            }
+
             public Format getFormat() {
                 throw new UnsupportedOperationException();
             }
@@ -0,0 +1,288 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import org.olap4j.xmla.server.impl.ParallelDeflaterOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.*;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wrapper for an HTTP response that compresses the body using a content
+ * coding ("gzip" or "deflate") that the client has said it accepts.
+ *
+ * <p>Bodies smaller than a threshold are sent uncompressed. To decide, the
+ * stream holds back up to that many bytes; as soon as the body grows past
+ * the threshold it sets the "Content-Encoding" header and starts
+ * compressing. Call {@link #finish()} when the response is complete.
+ *
+ * <p>If an executor is given and the JVM supports it, bodies larger than
+ * one block are compressed in parallel by a
+ * {@link ParallelDeflaterOutputStream}.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+    private final String contentCoding;
+    private final int level;
+    private final int minSize;
+    private final int blockSize;
+    private final Executor executor;
+    private CompressingOutputStream outputStream;
+
+    /**
+     * Creates a CompressingResponse.
+     *
+     * @param response Underlying response
+     * @param contentCoding Content coding, "gzip" or "deflate"
+     * @param level Compression level, 1 - 9 (or -1 for default)
+     * @param minSize Minimum size of body to compress
+     * @param blockSize Size of block for parallel compression
+     * @param executor Executor for parallel compression, or null
+     */
+    CompressingResponse(
+        HttpServletResponse response,
+        String contentCoding,
+        int level,
+        int minSize,
+        int blockSize,
+        Executor executor)
+    {
+        super(response);
+        this.contentCoding = contentCoding;
+        this.level = level;
+        this.minSize = minSize;
+        this.blockSize = blockSize;
+        this.executor =
+            ParallelDeflaterOutputStream.isSupported() ? executor : null;
+        addVaryHeader();
+    }
+
+    /**
+     * Returns the content coding, "gzip" or "deflate", with which the body
+     * is compressed if it is large enough.
+     */
+    String getContentCoding() {
+        return contentCoding;
+    }
+
+    /**
+     * Chooses a content coding from the value of an "Accept-Encoding" HTTP
+     * header. Prefers "gzip" to "deflate"; returns null if the client accepts
+     * neither.
+     *
+     * @param acceptEncoding Value of Accept-Encoding header, may be null
+     * @return Content coding, or null
+     */
+    static String chooseContentCoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        boolean star = false;
+        for (String item : acceptEncoding.split(",")) {
+            final String[] parts = item.split(";");
+            final String coding = parts[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted =
+                            Double.parseDouble(param.substring(2)) > 0d;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals("deflate")) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                star = accepted;
+            }
+        }
+        if (gzip || star) {
+            return "gzip";
+        }
+        if (deflate) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream =
+                new CompressingOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    public void reset() {
+        super.reset();
+        if (outputStream != null) {
+            outputStream.discard();
+        }
+        addVaryHeader();
+    }
+
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (outputStream != null) {
+            outputStream.discard();
+        }
+    }
+
+    public void flushBuffer() throws IOException {
+        if (outputStream != null) {
+            outputStream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    /**
+     * Writes any data held back, and the end of the compressed data.
+     */
+    void finish() throws IOException {
+        if (outputStream != null) {
+            outputStream.finish();
+        }
+    }
+
+    private void addVaryHeader() {
+        // Caches must not serve this response to a client that sent a
+        // different Accept-Encoding.
+        addHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * Stream that holds back the first {@code minSize} bytes, then either
+     * writes them uncompressed (if the body ends first) or starts
+     * compressing.
+     */
+    private class CompressingOutputStream extends ServletOutputStream {
+        private final OutputStream out;
+        private byte[] held;
+        private int heldLength;
+        /** Where bytes go once we have decided; null until then. */
+        private OutputStream target;
+        private boolean compressing;
+        /** Deflater of a serial compressing stream, to be ended. */
+        private Deflater deflater;
+
+        CompressingOutputStream(OutputStream out) {
+            this.out = out;
+            this.held = new byte[minSize];
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (target == null) {
+                if (heldLength + len <= held.length) {
+                    System.arraycopy(b, off, held, heldLength, len);
+                    heldLength += len;
+                    return;
+                }
+                startCompressing();
+            }
+            target.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            // Until we have decided whether to compress, there is nothing to
+            // flush; the held bytes are fewer than the threshold.
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (target == null) {
+                if (heldLength > 0) {
+                    out.write(held, 0, heldLength);
+                }
+                held = null;
+                target = out;
+            } else if (compressing) {
+                if (target instanceof DeflaterOutputStream) {
+                    ((DeflaterOutputStream) target).finish();
+                } else {
+                    ((ParallelDeflaterOutputStream) target).finish();
+                }
+                compressing = false;
+                endDeflater();
+            }
+            out.flush();
+        }
+
+        void discard() {
+            if (target instanceof ParallelDeflaterOutputStream) {
+                // Stop its blocks from being compressed; it must not write
+                // to the response that is being reset.
+                ((ParallelDeflaterOutputStream) target).abort();
+            }
+            held = new byte[minSize];
+            heldLength = 0;
+            target = null;
+            compressing = false;
+            endDeflater();
+        }
+
+        private void endDeflater() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        private void startCompressing() throws IOException {
+            setHeader("Content-Encoding", contentCoding);
+            final boolean gzip = contentCoding.equals("gzip");
+            if (executor != null) {
+                target =
+                    new ParallelDeflaterOutputStream(
+                        out,
+                        gzip
+                            ? ParallelDeflaterOutputStream.Format.GZIP
+                            : ParallelDeflaterOutputStream.Format.ZLIB,
+                        level,
+                        blockSize,
+                        executor,
+                        Runtime.getRuntime().availableProcessors() * 2);
+            } else if (gzip) {
+                target =
+                    new GZIPOutputStream(out, blockSize) {
+                        {
+                            def.setLevel(level);
+                            deflater = def;
+                        }
+                    };
+            } else {
+                deflater = new Deflater(level);
+                target = new DeflaterOutputStream(out, deflater, blockSize);
+            }
+            compressing = true;
+            target.write(held, 0, heldLength);
+            held = null;
+            heldLength = 0;
+        }
+    }
+}
+
+// End CompressingResponse.java
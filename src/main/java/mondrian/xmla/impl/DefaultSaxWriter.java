@@ -16,7 +16,6 @@ import org.olap4j.xmla.server.impl.*;
 import org.xml.sax.Attributes;
 
 import java.io.*;
-import java.util.regex.Pattern;
 
 /**
  * Default implementation of {@link SaxWriter}.
@@ -35,14 +34,18 @@ public class DefaultSaxWriter implements SaxWriter {
     /** After a burst of character data. */
     private static final int STATE_CHARACTERS = 3;
 
+    private static final String LONG_MIN_VALUE =
+        String.valueOf(Long.MIN_VALUE);
+
     private final Appendable buf;
+    private final boolean compact;
+    /** Buffer in which the digits of an integer are formatted. */
+    private final char[] digits = new char[20];
     private int indent;
     private final String indentStr = "  ";
     private final ArrayStack<String> stack = new ArrayStack<String>();
     private int state = STATE_END_ELEMENT;
 
-    private final static Pattern nlPattern = Pattern.compile("\\r\\n|\\r|\\n");
-
     /**
      * Creates a DefaultSaxWriter writing to an {@link java.io.OutputStream}.
      */
@@ -53,7 +56,27 @@ public class DefaultSaxWriter implements SaxWriter {
     public DefaultSaxWriter(OutputStream stream, String xmlEncoding)
         throws UnsupportedEncodingException
     {
-        this(new BufferedWriter(new OutputStreamWriter(stream, xmlEncoding)));
+        this(stream, xmlEncoding, false);
+    }
+
+    /**
+     * Creates a DefaultSaxWriter writing to an {@link java.io.OutputStream}
+     * in a given encoding.
+     *
+     * @param stream Output stream
+     * @param xmlEncoding Encoding
+     * @param compact Whether to omit line breaks and indentation
+     */
+    public DefaultSaxWriter(
+        OutputStream stream,
+        String xmlEncoding,
+        boolean compact)
+        throws UnsupportedEncodingException
+    {
+        this(
+            new BufferedWriter(new OutputStreamWriter(stream, xmlEncoding)),
+            0,
+            compact);
     }
 
     /**
@@ -72,8 +95,37 @@ public class DefaultSaxWriter implements SaxWriter {
      * @param initialIndent Initial indent (0 to write on single line)
      */
     public DefaultSaxWriter(Appendable buf, int initialIndent) {
+        this(buf, initialIndent, false);
+    }
+
+    /**
+     * Creates a DefaultSaxWriter.
+     *
+     * @param buf String builder to write to
+     * @param initialIndent Initial indent (0 to write on single line)
+     * @param compact Whether to omit line breaks and indentation; if true,
+     *   the document is written on a single line whatever the indent
+     */
+    public DefaultSaxWriter(Appendable buf, int initialIndent, boolean compact)
+    {
         this.buf = buf;
         this.indent = initialIndent;
+        this.compact = compact;
+    }
+
+    /**
+     * Returns the current indent; that is, the number of elements that
+     * have been started and not ended, plus the initial indent.
+     */
+    public int getIndent() {
+        return indent;
+    }
+
+    /**
+     * Returns whether this writer omits line breaks and indentation.
+     */
+    public boolean isCompact() {
+        return compact;
     }
 
     private void _startElement(
@@ -82,27 +134,48 @@ public class DefaultSaxWriter implements SaxWriter {
         String qName,
         Attributes atts) throws IOException
     {
-        _checkTag();
-        if (indent > 0) {
-            buf.append(Util.nl);
-        }
-        for (int i = 0; i < indent; i++) {
-            buf.append(indentStr);
-        }
-        indent++;
-        buf.append('<');
-        buf.append(qName);
+        _startTag(qName);
         final int length = atts.getLength();
         for (int i = 0; i < length; i++) {
             String val = atts.getValue(i);
             if (val != null) {
-                buf.append(' ');
-                buf.append(atts.getQName(i));
-                buf.append("=\"");
-                StringEscaper.XML_NUMERIC_ESCAPER.appendEscapedString(val, buf);
-                buf.append("\"");
+                _attribute(atts.getQName(i), val);
+            }
+        }
+        _endStartTag(qName);
+    }
+
+    /**
+     * Writes the start of an element's tag, up to the first attribute.
+     */
+    private void _startTag(String qName) throws IOException {
+        _checkTag();
+        if (!compact) {
+            if (indent > 0) {
+                buf.append(Util.nl);
+            }
+            for (int i = 0; i < indent; i++) {
+                buf.append(indentStr);
             }
         }
+        indent++;
+        buf.append('<');
+        buf.append(qName);
+    }
+
+    private void _attribute(String name, String val) throws IOException {
+        buf.append(' ');
+        buf.append(name);
+        buf.append("=\"");
+        StringEscaper.XML_NUMERIC_ESCAPER.appendEscapedString(val, buf);
+        buf.append('"');
+    }
+
+    /**
+     * Notes that an element's tag is open; it is closed by the next
+     * content or by the end of the element.
+     */
+    private void _endStartTag(String qName) {
         state = STATE_IN_TAG;
         assert qName != null;
         stack.add(qName);
@@ -122,7 +195,7 @@ public class DefaultSaxWriter implements SaxWriter {
         if (state == STATE_IN_TAG) {
             buf.append("/>");
         } else {
-            if (state != STATE_CHARACTERS) {
+            if (state != STATE_CHARACTERS && !compact) {
                 buf.append(Util.nl);
                 for (int i = 0; i < indent; i++) {
                     buf.append(indentStr);
@@ -135,19 +208,54 @@ public class DefaultSaxWriter implements SaxWriter {
         state = STATE_END_ELEMENT;
     }
 
-    private void _characters(String s) throws IOException
+    private void _characters(String s, boolean joinLines) throws IOException
     {
         _checkTag();
-        StringEscaper.XML_NUMERIC_ESCAPER.appendEscapedString(s, buf);
+        StringEscaper.XML_NUMERIC_ESCAPER.appendEscapedString(
+            s, buf, joinLines);
         state = STATE_CHARACTERS;
     }
 
+    /**
+     * Writes the decimal digits of an integer, which need no escaping,
+     * without converting it to a string.
+     */
+    private void _digits(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            // Cannot be negated.
+            buf.append(LONG_MIN_VALUE);
+            return;
+        }
+        final boolean negative = value < 0;
+        if (negative) {
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            digits[--start] = '-';
+        }
+        if (buf instanceof Writer) {
+            ((Writer) buf).write(digits, start, digits.length - start);
+        } else if (buf instanceof StringBuilder) {
+            ((StringBuilder) buf).append(
+                digits, start, digits.length - start);
+        } else {
+            for (int i = start; i < digits.length; i++) {
+                buf.append(digits[i]);
+            }
+        }
+    }
+
     //
     // Simplifying methods
 
     public void characters(String s) {
         try {
-            _characters(s);
+            _characters(s, false);
         } catch (IOException e) {
             throw new RuntimeException("Error while appending XML", e);
         }
@@ -179,14 +287,44 @@ public class DefaultSaxWriter implements SaxWriter {
             //
             // REVIEW: It would be better to enclose in CDATA, but some clients
             // might not be expecting this.
-            characters(
-                nlPattern.matcher(data.toString()).replaceAll(" "));
+            _characters(data.toString(), true);
             _endElement();
         } catch (IOException e) {
             throw new RuntimeException("Error while appending XML", e);
         }
     }
 
+    public void textElement(String name, long data) {
+        try {
+            _startTag(name);
+            _endStartTag(name);
+            _checkTag();
+            _digits(data);
+            state = STATE_CHARACTERS;
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void textElement(String name, double data) {
+        try {
+            _startTag(name);
+            _endStartTag(name);
+            _checkTag();
+            // Digits, '.', '-', 'E', "NaN" and "Infinity" need no escaping.
+            buf.append(Double.toString(data));
+            state = STATE_CHARACTERS;
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void textElement(String name, CharSequence data) {
+        textElement(name, (Object) data);
+    }
+
     public void element(String tagName, Object... attributes) {
         startElement(tagName, attributes);
         endElement();
@@ -209,6 +347,32 @@ public class DefaultSaxWriter implements SaxWriter {
         }
     }
 
+    public void startElement(String tagName, String attr, String value) {
+        try {
+            _startTag(tagName);
+            if (value != null) {
+                _attribute(attr, value);
+            }
+            _endStartTag(tagName);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startElement(String tagName, String attr, int value) {
+        try {
+            _startTag(tagName);
+            buf.append(' ');
+            buf.append(attr);
+            buf.append("=\"");
+            _digits(value);
+            buf.append('"');
+            _endStartTag(tagName);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
     public void endElement() {
         try {
             _endElement();
@@ -231,6 +395,27 @@ public class DefaultSaxWriter implements SaxWriter {
         flush();
     }
 
+    /**
+     * Ends all elements that have been started and not ended, as if
+     * processing had finished normally, and flushes. Call when processing
+     * has failed part-way, so that the output is well-formed.
+     */
+    public void endOpenElements() {
+        while (stack.size() > 0) {
+            if (stack.peek() == null) {
+                // Anonymous sequence; it has no tag to close.
+                stack.pop();
+                continue;
+            }
+            try {
+                _endElement();
+            } catch (IOException e) {
+                throw new RuntimeException("Error while appending XML", e);
+            }
+        }
+        flush();
+    }
+
     public void completeBeforeElement(String tagName) {
         if (stack.indexOf(tagName) == -1) {
             return;
@@ -238,6 +423,12 @@ public class DefaultSaxWriter implements SaxWriter {
 
         String currentTagName  = stack.peek();
         while (!tagName.equals(currentTagName)) {
+            if (currentTagName == null) {
+                // Anonymous sequence; it has no tag to close.
+                stack.pop();
+                currentTagName = stack.peek();
+                continue;
+            }
             try {
                 _endElement();
             } catch (IOException e) {
@@ -22,7 +22,8 @@ import java.util.*;
 import static org.olap4j.metadata.XmlaConstants.Method;
 
 /**
- * Default implementation of {@link mondrian.xmla.XmlaRequest} by DOM API.
+ * Default implementation of {@link mondrian.xmla.XmlaRequest}, created from
+ * a DOM element or from the result of {@link SoapMessageParser}.
  *
  * @author Gang Chen
  */
@@ -42,6 +43,10 @@ public class DefaultXmlaRequest
     /* EXECUTE content */
     private String statement;
     private boolean drillthrough;
+    private boolean cancel;
+    private String cancelSessionId;
+    private List<SoapMessageParser.MethodElement> batchElements;
+    private final List<XmlaRequest> batchRequests;
 
     /* DISCOVER contnet */
     private String requestType;
@@ -64,6 +69,64 @@ public class DefaultXmlaRequest
         this.username = username;
         this.password = password;
         this.sessionId = sessionId;
+        checkCancelSession();
+        this.batchRequests = createBatchRequests();
+    }
+
+    /**
+     * Creates a DefaultXmlaRequest from a Discover or Execute element read
+     * by the streaming parser.
+     */
+    DefaultXmlaRequest(
+        final SoapMessageParser.MethodElement methodElement,
+        final String roleName,
+        final String username,
+        final String password,
+        final String sessionId)
+        throws XmlaException
+    {
+        init(methodElement);
+        this.roleName = roleName;
+        this.username = username;
+        this.password = password;
+        this.sessionId = sessionId;
+        checkCancelSession();
+        this.batchRequests = createBatchRequests();
+    }
+
+    /**
+     * Creates a DefaultXmlaRequest for a command inside a Batch. Properties
+     * that the command does not specify are taken from the Execute that
+     * contains the Batch, except that a Discover does not take Format (its
+     * format is always Tabular).
+     */
+    private DefaultXmlaRequest(
+        final SoapMessageParser.MethodElement methodElement,
+        final DefaultXmlaRequest batch)
+        throws XmlaException
+    {
+        for (Map.Entry<String, String> entry : batch.properties.entrySet()) {
+            if (!methodElement.properties.containsKey(entry.getKey())
+                && !(methodElement.discover
+                     && entry.getKey().equals(
+                         PropertyDefinition.Format.name())))
+            {
+                methodElement.properties.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (methodElement.propertiesCount == 0) {
+            methodElement.propertiesCount = 1;
+        }
+        if (methodElement.restrictionsCount == 0) {
+            methodElement.restrictionsCount = 1;
+        }
+        init(methodElement);
+        this.roleName = batch.roleName;
+        this.username = batch.username;
+        this.password = batch.password;
+        this.sessionId = batch.sessionId;
+        checkCancelSession();
+        this.batchRequests = null;
     }
 
     public String getSessionId() {
@@ -122,16 +185,21 @@ public class DefaultXmlaRequest
         return drillthrough;
     }
 
+    public boolean isCancel() {
+        return cancel;
+    }
+
+    public List<XmlaRequest> getBatchRequests() {
+        return batchRequests;
+    }
 
     protected final void init(Element xmlaRoot) throws XmlaException {
         if (NS_XMLA.equals(xmlaRoot.getNamespaceURI())) {
             String lname = xmlaRoot.getLocalName();
             if ("Discover".equals(lname)) {
-                method = Method.DISCOVER;
-                initDiscover(xmlaRoot);
+                init(toMethodElement(xmlaRoot, true));
             } else if ("Execute".equals(lname)) {
-                method = Method.EXECUTE;
-                initExecute(xmlaRoot);
+                init(toMethodElement(xmlaRoot, false));
             } else {
                 // Note that is code will never be reached because
                 // the error will be caught in
@@ -164,153 +232,107 @@ public class DefaultXmlaRequest
         }
     }
 
-    private void initDiscover(Element discoverRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "RequestType");
-        if (childElems.length != 1) {
-            StringBuilder buf = new StringBuilder(100);
-            buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of RequestType elements: ");
-            buf.append(childElems.length);
-            throw new XmlaException(
-                CLIENT_FAULT_FC,
-                HSB_BAD_REQUEST_TYPE_CODE,
-                HSB_BAD_REQUEST_TYPE_FAULT_FS,
-                Util.newError(buf.toString()));
-        }
-        requestType = XmlaUtil.textInElement(childElems[0]); // <RequestType>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "Properties");
-        if (childElems.length != 1) {
-            StringBuilder buf = new StringBuilder(100);
-            buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of Properties elements: ");
-            buf.append(childElems.length);
-            throw new XmlaException(
-                CLIENT_FAULT_FC,
-                HSB_BAD_PROPERTIES_CODE,
-                HSB_BAD_PROPERTIES_FAULT_FS,
-                Util.newError(buf.toString()));
-        }
-        initProperties(childElems[0]); // <Properties><PropertyList>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                discoverRoot,
-                NS_XMLA,
-                "Restrictions");
-        if (childElems.length != 1) {
-            StringBuilder buf = new StringBuilder(100);
-            buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of Restrictions elements: ");
-            buf.append(childElems.length);
-            throw new XmlaException(
-                CLIENT_FAULT_FC,
-                HSB_BAD_RESTRICTIONS_CODE,
-                HSB_BAD_RESTRICTIONS_FAULT_FS,
-                Util.newError(buf.toString()));
+    private void init(SoapMessageParser.MethodElement m)
+        throws XmlaException
+    {
+        if (m.discover) {
+            method = Method.DISCOVER;
+            checkCount(
+                "RequestType", m.requestTypeCount,
+                HSB_BAD_REQUEST_TYPE_CODE, HSB_BAD_REQUEST_TYPE_FAULT_FS);
+            requestType = m.requestType; // <RequestType>
+            checkCount(
+                "Properties", m.propertiesCount,
+                HSB_BAD_PROPERTIES_CODE, HSB_BAD_PROPERTIES_FAULT_FS);
+            initProperties(m); // <Properties><PropertyList>
+            checkCount(
+                "Restrictions", m.restrictionsCount,
+                HSB_BAD_RESTRICTIONS_CODE, HSB_BAD_RESTRICTIONS_FAULT_FS);
+            initRestrictions(m); // <Restrictions><RestrictionList>
+        } else {
+            method = Method.EXECUTE;
+            checkCount(
+                "Command", m.commandCount,
+                HSB_BAD_COMMAND_CODE, HSB_BAD_COMMAND_FAULT_FS);
+            if (m.cancelCount > 0 && m.statementCount == 0) {
+                checkCount(
+                    "Cancel", m.cancelCount,
+                    HSB_BAD_STATEMENT_CODE, HSB_BAD_STATEMENT_FAULT_FS);
+                initCancel(m); // <Command><Cancel>
+            } else if (m.batchCount > 0 && m.statementCount == 0) {
+                checkCount(
+                    "Batch", m.batchCount,
+                    HSB_BAD_STATEMENT_CODE, HSB_BAD_STATEMENT_FAULT_FS);
+                initBatch(m); // <Command><Batch>
+            } else {
+                checkCount(
+                    "Statement", m.statementCount,
+                    HSB_BAD_STATEMENT_CODE, HSB_BAD_STATEMENT_FAULT_FS);
+                initCommand(m); // <Command><Statement>
+            }
+            checkCount(
+                "Properties", m.propertiesCount,
+                HSB_BAD_PROPERTIES_CODE, HSB_BAD_PROPERTIES_FAULT_FS);
+            initProperties(m); // <Properties><PropertyList>
         }
-        initRestrictions(childElems[0]); // <Restriciotns><RestrictionList>
     }
 
-    private void initExecute(Element executeRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                executeRoot,
-                NS_XMLA,
-                "Command");
-        if (childElems.length != 1) {
-            StringBuilder buf = new StringBuilder(100);
-            buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of Command elements: ");
-            buf.append(childElems.length);
-            throw new XmlaException(
-                CLIENT_FAULT_FC,
-                HSB_BAD_COMMAND_CODE,
-                HSB_BAD_COMMAND_FAULT_FS,
-                Util.newError(buf.toString()));
-        }
-        initCommand(childElems[0]); // <Command><Statement>
-
-        childElems =
-            XmlaUtil.filterChildElements(
-                executeRoot,
-                NS_XMLA,
-                "Properties");
-        if (childElems.length != 1) {
+    /**
+     * Throws if a request does not contain exactly one of an element.
+     */
+    private static void checkCount(
+        String elementName,
+        int count,
+        String code,
+        String faultString)
+        throws XmlaException
+    {
+        if (count != 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of Properties elements: ");
-            buf.append(childElems.length);
+            buf.append(": Wrong number of ");
+            buf.append(elementName);
+            buf.append(" elements: ");
+            buf.append(count);
             throw new XmlaException(
                 CLIENT_FAULT_FC,
-                HSB_BAD_PROPERTIES_CODE,
-                HSB_BAD_PROPERTIES_FAULT_FS,
+                code,
+                faultString,
                 Util.newError(buf.toString()));
         }
-        initProperties(childElems[0]); // <Properties><PropertyList>
     }
 
-    private void initRestrictions(Element restrictionsRoot)
+    private void initRestrictions(SoapMessageParser.MethodElement m)
         throws XmlaException
     {
-        Map<String, List<String>> restrictions =
-            new HashMap<String, List<String>>();
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                restrictionsRoot,
-                NS_XMLA,
-                "RestrictionList");
-        if (childElems.length == 1) {
-            NodeList nlst = childElems[0].getChildNodes();
-            for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
-                Node n = nlst.item(i);
-                if (n instanceof Element) {
-                    Element e = (Element) n;
-                    if (NS_XMLA.equals(e.getNamespaceURI())) {
-                        String key = e.getLocalName();
-                        String value = XmlaUtil.textInElement(e);
-
-                        List<String> values;
-                        if (restrictions.containsKey(key)) {
-                            values = restrictions.get(key);
-                        } else {
-                            values = new ArrayList<String>();
-                            restrictions.put(key, values);
-                        }
-
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug(
-                                "DefaultXmlaRequest.initRestrictions: "
-                                + " key=\""
-                                + key
-                                + "\", value=\""
-                                + value
-                                + "\"");
-                        }
-
-                        values.add(value);
-                    }
-                }
-            }
-        } else if (childElems.length > 1) {
+        if (m.restrictionListCount > 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of RestrictionList elements: ");
-            buf.append(childElems.length);
+            buf.append(m.restrictionListCount);
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_RESTRICTION_LIST_CODE,
                 HSB_BAD_RESTRICTION_LIST_FAULT_FS,
                 Util.newError(buf.toString()));
         }
+        Map<String, List<String>> restrictions =
+            new HashMap<String, List<String>>(m.restrictions);
+        if (LOGGER.isDebugEnabled()) {
+            for (Map.Entry<String, List<String>> entry
+                : restrictions.entrySet())
+            {
+                for (String value : entry.getValue()) {
+                    LOGGER.debug(
+                        "DefaultXmlaRequest.initRestrictions: "
+                        + " key=\""
+                        + entry.getKey()
+                        + "\", value=\""
+                        + value
+                        + "\"");
+                }
+            }
+        }
 
         // If there is a Catalog property,
         // we have to consider it a constraint as well.
@@ -339,72 +361,225 @@ public class DefaultXmlaRequest
         this.restrictions = (Map) Collections.unmodifiableMap(restrictions);
     }
 
-    private void initProperties(Element propertiesRoot) throws XmlaException {
-        Map<String, String> properties = new HashMap<String, String>();
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                propertiesRoot,
-                NS_XMLA,
-                "PropertyList");
-        if (childElems.length == 1) {
-            NodeList nlst = childElems[0].getChildNodes();
-            for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
-                Node n = nlst.item(i);
-                if (n instanceof Element) {
-                    Element e = (Element) n;
-                    if (NS_XMLA.equals(e.getNamespaceURI())) {
-                        String key = e.getLocalName();
-                        String value = XmlaUtil.textInElement(e);
-
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug(
-                                "DefaultXmlaRequest.initProperties: "
-                                + " key=\""
-                                + key
-                                + "\", value=\""
-                                + value
-                                + "\"");
-                        }
-
-                        properties.put(key, value);
-                    }
-                }
-            }
-        } else if (childElems.length > 1) {
+    private void initProperties(SoapMessageParser.MethodElement m)
+        throws XmlaException
+    {
+        if (m.propertyListCount > 1) {
             StringBuilder buf = new StringBuilder(100);
             buf.append(MSG_INVALID_XMLA);
             buf.append(": Wrong number of PropertyList elements: ");
-            buf.append(childElems.length);
+            buf.append(m.propertyListCount);
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_PROPERTIES_LIST_CODE,
                 HSB_BAD_PROPERTIES_LIST_FAULT_FS,
                 Util.newError(buf.toString()));
-        } else {
         }
-        this.properties = Collections.unmodifiableMap(properties);
+        if (LOGGER.isDebugEnabled()) {
+            for (Map.Entry<String, String> entry : m.properties.entrySet()) {
+                LOGGER.debug(
+                    "DefaultXmlaRequest.initProperties: "
+                    + " key=\""
+                    + entry.getKey()
+                    + "\", value=\""
+                    + entry.getValue()
+                    + "\"");
+            }
+        }
+        this.properties =
+            Collections.unmodifiableMap(
+                new HashMap<String, String>(m.properties));
     }
 
+    private void initCommand(SoapMessageParser.MethodElement m) {
+        statement = m.statement.replaceAll("\\r", "");
+        drillthrough = statement.toUpperCase().indexOf("DRILLTHROUGH") != -1;
+    }
 
-    private void initCommand(Element commandRoot) throws XmlaException {
-        Element[] childElems =
-            XmlaUtil.filterChildElements(
-                commandRoot,
-                NS_XMLA,
-                "Statement");
-        if (childElems.length != 1) {
-            StringBuilder buf = new StringBuilder(100);
-            buf.append(MSG_INVALID_XMLA);
-            buf.append(": Wrong number of Statement elements: ");
-            buf.append(childElems.length);
+    private void initCancel(SoapMessageParser.MethodElement m) {
+        // The session to cancel is the one in the SOAP header; a SessionID
+        // inside Cancel must name the same session (see checkCancelSession).
+        statement = "";
+        cancel = true;
+        if (m.cancelSessionId != null
+            && m.cancelSessionId.trim().length() > 0)
+        {
+            cancelSessionId = m.cancelSessionId.trim();
+        }
+    }
+
+    /**
+     * Throws if a Cancel names a session other than the one in the SOAP
+     * header. The caller has proven that it belongs to the header's session
+     * (its credentials come from that session), but not to any other; so a
+     * Cancel can only cancel the requests of its own session.
+     */
+    private void checkCancelSession() throws XmlaException {
+        if (cancelSessionId != null && !cancelSessionId.equals(sessionId)) {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                HSB_BAD_COMMAND_CODE,
+                HSB_BAD_COMMAND_FAULT_FS,
+                Util.newError(
+                    "Cancel may only cancel requests of the session in the"
+                    + " SOAP header"));
+        }
+    }
+
+    private void initBatch(SoapMessageParser.MethodElement m)
+        throws XmlaException
+    {
+        if (m.batch.isEmpty()) {
             throw new XmlaException(
                 CLIENT_FAULT_FC,
                 HSB_BAD_STATEMENT_CODE,
                 HSB_BAD_STATEMENT_FAULT_FS,
-                Util.newError(buf.toString()));
+                Util.newError(
+                    MSG_INVALID_XMLA + ": Batch contains no commands"));
         }
-        statement = XmlaUtil.textInElement(childElems[0]).replaceAll("\\r", "");
-        drillthrough = statement.toUpperCase().indexOf("DRILLTHROUGH") != -1;
+        statement = "";
+        batchElements = m.batch;
+    }
+
+    /**
+     * Creates the requests for the commands in a Batch, once the
+     * credentials of this request are known.
+     */
+    private List<XmlaRequest> createBatchRequests() throws XmlaException {
+        if (batchElements == null) {
+            return null;
+        }
+        final List<XmlaRequest> list = new ArrayList<XmlaRequest>();
+        for (SoapMessageParser.MethodElement m : batchElements) {
+            list.add(new DefaultXmlaRequest(m, this));
+        }
+        batchElements = null;
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Collects what {@link #init(SoapMessageParser.MethodElement)} needs
+     * from a DOM Discover or Execute element.
+     */
+    private static SoapMessageParser.MethodElement toMethodElement(
+        Element root,
+        boolean discover)
+    {
+        final SoapMessageParser.MethodElement m =
+            new SoapMessageParser.MethodElement(discover);
+        Element[] childElems =
+            XmlaUtil.filterChildElements(root, NS_XMLA, "RequestType");
+        m.requestTypeCount = childElems.length;
+        if (childElems.length > 0) {
+            m.requestType = XmlaUtil.textInElement(childElems[0]);
+        }
+
+        childElems = XmlaUtil.filterChildElements(root, NS_XMLA, "Properties");
+        m.propertiesCount = childElems.length;
+        if (childElems.length == 1) {
+            childElems =
+                XmlaUtil.filterChildElements(
+                    childElems[0], NS_XMLA, "PropertyList");
+            m.propertyListCount = childElems.length;
+            if (childElems.length == 1) {
+                for (Element e : xmlaChildElements(childElems[0])) {
+                    m.properties.put(
+                        e.getLocalName(), XmlaUtil.textInElement(e));
+                }
+            }
+        }
+
+        childElems =
+            XmlaUtil.filterChildElements(root, NS_XMLA, "Restrictions");
+        m.restrictionsCount = childElems.length;
+        if (childElems.length == 1) {
+            childElems =
+                XmlaUtil.filterChildElements(
+                    childElems[0], NS_XMLA, "RestrictionList");
+            m.restrictionListCount = childElems.length;
+            if (childElems.length == 1) {
+                for (Element e : xmlaChildElements(childElems[0])) {
+                    List<String> values = m.restrictions.get(e.getLocalName());
+                    if (values == null) {
+                        values = new ArrayList<String>();
+                        m.restrictions.put(e.getLocalName(), values);
+                    }
+                    values.add(XmlaUtil.textInElement(e));
+                }
+            }
+        }
+
+        childElems = XmlaUtil.filterChildElements(root, NS_XMLA, "Command");
+        m.commandCount = childElems.length;
+        if (childElems.length == 1) {
+            final Element command = childElems[0];
+            childElems =
+                XmlaUtil.filterChildElements(command, NS_XMLA, "Statement");
+            m.statementCount = childElems.length;
+            if (childElems.length == 1) {
+                m.statement = XmlaUtil.textInElement(childElems[0]);
+            }
+            childElems = XmlaUtil.filterChildElements(command, null, "Cancel");
+            m.cancelCount = childElems.length;
+            if (childElems.length == 1) {
+                childElems =
+                    XmlaUtil.filterChildElements(
+                        childElems[0], null, "SessionID");
+                if (childElems.length > 0) {
+                    m.cancelSessionId = XmlaUtil.textInElement(childElems[0]);
+                }
+            }
+            childElems = XmlaUtil.filterChildElements(command, null, "Batch");
+            m.batchCount = childElems.length;
+            if (childElems.length == 1) {
+                addBatchCommands(m, childElems[0]);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Collects the Statement and Discover elements in a DOM Batch element,
+     * as {@link SoapMessageParser} does.
+     */
+    private static void addBatchCommands(
+        SoapMessageParser.MethodElement m,
+        Element batch)
+    {
+        NodeList nlst = batch.getChildNodes();
+        for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
+            Node n = nlst.item(i);
+            if (!(n instanceof Element)) {
+                continue;
+            }
+            final Element e = (Element) n;
+            if ("Statement".equals(e.getLocalName())) {
+                final SoapMessageParser.MethodElement statement =
+                    new SoapMessageParser.MethodElement(false);
+                statement.commandCount = 1;
+                statement.statementCount = 1;
+                statement.statement = XmlaUtil.textInElement(e);
+                m.batch.add(statement);
+            } else if ("Discover".equals(e.getLocalName())
+                && NS_XMLA.equals(e.getNamespaceURI()))
+            {
+                m.batch.add(toMethodElement(e, true));
+            }
+        }
+    }
+
+    private static List<Element> xmlaChildElements(Element parent) {
+        final List<Element> list = new ArrayList<Element>();
+        NodeList nlst = parent.getChildNodes();
+        for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
+            Node n = nlst.item(i);
+            if (n instanceof Element
+                && NS_XMLA.equals(n.getNamespaceURI()))
+            {
+                list.add((Element) n);
+            }
+        }
+        return list;
     }
 }
 
@@ -27,20 +27,60 @@ public class DefaultXmlaResponse implements XmlaResponse  {
     private static final String MSG_ENCODING_ERROR = "Encoding unsupported: ";
 
     private final SaxWriter writer;
+    private final OutputStream outputStream;
+    private final String encoding;
+    private final Enumeration.ResponseMimeType responseMimeType;
+    private final boolean utf8Writer;
+    private final boolean compact;
 
     public DefaultXmlaResponse(
         OutputStream outputStream,
         String encoding,
         Enumeration.ResponseMimeType responseMimeType)
     {
+        this(outputStream, encoding, responseMimeType, false, false);
+    }
+
+    /**
+     * Creates a DefaultXmlaResponse.
+     *
+     * @param outputStream Output stream
+     * @param encoding Encoding of response
+     * @param responseMimeType MIME type of response
+     * @param utf8Writer Whether to write an XML response whose encoding is
+     *   UTF-8 using a {@link Utf8SaxWriter}, which produces the same bytes
+     *   as a {@link DefaultSaxWriter}, faster
+     * @param compact Whether to write the response without line breaks
+     *   and indentation
+     */
+    public DefaultXmlaResponse(
+        OutputStream outputStream,
+        String encoding,
+        Enumeration.ResponseMimeType responseMimeType,
+        boolean utf8Writer,
+        boolean compact)
+    {
+        this.outputStream = outputStream;
+        this.encoding = encoding;
+        this.responseMimeType = responseMimeType;
+        this.utf8Writer = utf8Writer;
+        this.compact = compact;
         try {
             switch (responseMimeType) {
             case JSON:
-                writer = new JsonSaxWriter(outputStream);
+                writer = new JsonSaxWriter(outputStream, compact);
                 break;
             case SOAP:
             default:
-                writer = new DefaultSaxWriter(outputStream, encoding);
+                if (utf8Writer
+                    && ("UTF-8".equalsIgnoreCase(encoding)
+                        || "UTF8".equalsIgnoreCase(encoding)))
+                {
+                    writer = new Utf8SaxWriter(outputStream, compact);
+                } else {
+                    writer =
+                        new DefaultSaxWriter(outputStream, encoding, compact);
+                }
                 break;
             }
         } catch (UnsupportedEncodingException uee) {
@@ -52,6 +92,49 @@ public class DefaultXmlaResponse implements XmlaResponse  {
         return writer;
     }
 
+    /**
+     * Returns the stream that the writer writes to. Bytes may be written
+     * directly to it instead of using the writer, but not both.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public Enumeration.ResponseMimeType getResponseMimeType() {
+        return responseMimeType;
+    }
+
+    /**
+     * Returns whether the response was asked to use a {@link Utf8SaxWriter}
+     * when its encoding allows; responses that buffer this one's contents
+     * should be created the same way.
+     */
+    public boolean isUtf8Writer() {
+        return utf8Writer;
+    }
+
+    /**
+     * Returns whether the response is written without line breaks and
+     * indentation.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Ends the elements of the response that are still open, and writes
+     * whatever the writer has buffered to the stream. Call instead of
+     * ending the document when processing fails after the response has
+     * started, so that the client receives a complete, well-formed body.
+     */
+    public void finish() {
+        writer.endOpenElements();
+    }
+
     public void error(Throwable t) {
         writer.completeBeforeElement("root");
         @SuppressWarnings({"ThrowableResultOfMethodCallIgnored"})
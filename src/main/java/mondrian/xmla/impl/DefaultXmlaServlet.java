@@ -12,22 +12,29 @@ package mondrian.xmla.impl;
 import mondrian.xmla.*;
 
 import org.olap4j.impl.Olap4jUtil;
+import org.olap4j.xmla.server.impl.LimitedInputStream;
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+import org.olap4j.xmla.server.impl.ParallelDeflaterOutputStream;
 
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.*;
-import java.util.HashMap;
+import java.lang.reflect.InvocationTargetException;
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.*;
 
+import static org.olap4j.metadata.XmlaConstants.Method;
+
 /**
  * Default implementation of XML/A servlet.
  *
@@ -44,23 +51,286 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
     private static final String REQUIRE_AUTHENTICATED_SESSIONS =
         "requireAuthenticatedSessions";
 
+    /**
+     * Servlet config parameter that determines whether the servlet streams
+     * the body of each response to the client as it is generated, rather
+     * than building the whole body in memory before sending it. Default is
+     * false.
+     *
+     * <p>A callback whose postAction needs to see or modify the whole body
+     * can put {@link XmlaConstants#CONTEXT_BUFFER_RESPONSE} into the context
+     * to have that request buffered.
+     */
+    public static final String PARAM_STREAM_RESPONSE = "StreamResponse";
+
+    /**
+     * Servlet config parameter for the size, in bytes, of the buffer between
+     * a streamed response and the client. Default is 32768.
+     */
+    public static final String PARAM_RESPONSE_BUFFER_SIZE =
+        "ResponseBufferSize";
+
+    private static final int DEFAULT_RESPONSE_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Servlet config parameter for the level (1 - 9) at which to compress
+     * responses to clients that send an "Accept-Encoding: gzip" or
+     * "Accept-Encoding: deflate" header. 0 disables compression. Default is
+     * 6.
+     */
+    public static final String PARAM_COMPRESSION_LEVEL = "CompressionLevel";
+
+    /**
+     * Servlet config parameter for the size, in bytes, below which responses
+     * are not compressed. Default is 2048.
+     */
+    public static final String PARAM_COMPRESSION_MIN_SIZE =
+        "CompressionMinSize";
+
+    /**
+     * Servlet config parameter for the size, in bytes, of the blocks into
+     * which large responses are cut so that they can be compressed in
+     * parallel. 0 disables parallel compression. Default is 131072; the
+     * minimum is 32768.
+     */
+    public static final String PARAM_COMPRESSION_BLOCK_SIZE =
+        "CompressionBlockSize";
+
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    private static final int DEFAULT_COMPRESSION_MIN_SIZE = 2048;
+
+    private static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 128 * 1024;
+
+    private static final int MIN_COMPRESSION_BLOCK_SIZE = 32 * 1024;
+
+    /**
+     * Servlet config parameter for the maximum size, in bytes, of the body
+     * of a request sent with "Content-Encoding: gzip" or "deflate", after
+     * decompression. Default is 33554432 (32MB).
+     */
+    public static final String PARAM_MAX_DECOMPRESSED_REQUEST_SIZE =
+        "MaxDecompressedRequestSize";
+
+    private static final int DEFAULT_MAX_DECOMPRESSED_REQUEST_SIZE =
+        32 * 1024 * 1024;
+
+    /**
+     * Servlet config parameter that chooses how SOAP requests are parsed:
+     * "sax" (the default) reads each request in a single streaming pass,
+     * building DOM elements only if a callback asks for them; "dom" parses
+     * each request into a DOM tree up front. With "sax", callbacks receive
+     * proxies, not the DOM implementation's elements (see
+     * {@link mondrian.xmla.XmlaRequestCallback#preAction}).
+     */
+    public static final String PARAM_REQUEST_PARSER = "RequestParser";
+
+    /**
+     * Servlet config parameter for the name of a class that implements
+     * {@link SessionStore}, to hold the credentials of XML/A sessions.
+     * Default is {@link ExpiringSessionStore}; use {@link MappedSessionStore}
+     * to share sessions between servers on the same host.
+     */
+    public static final String PARAM_SESSION_STORE = "SessionStore";
+
+    /**
+     * Placeholder for the body of a response that has already been written
+     * to the client, for example because it was streamed. Compared by
+     * identity.
+     */
+    private static final byte[] BODY_ALREADY_SENT = new byte[0];
+
+    /**
+     * Placeholder for the body of a response that the client already has;
+     * the servlet sends "304 Not Modified" with no body. Compared by
+     * identity.
+     */
+    private static final byte[] NOT_MODIFIED = new byte[0];
+
+    /** Number of random bytes in a generated session ID. */
+    private static final int SESSION_ID_BYTES = 16;
+
+    private static final SecureRandom SESSION_ID_RANDOM = new SecureRandom();
+
     private DocumentBuilderFactory domFactory = null;
 
+    /**
+     * Streaming parser for SOAP requests; null if requests are parsed into
+     * DOM trees.
+     */
+    private SoapMessageParser soapMessageParser;
+
     private boolean requireAuthenticatedSessions = false;
 
+    private boolean streamResponse = false;
+
+    private int responseBufferSize = DEFAULT_RESPONSE_BUFFER_SIZE;
+
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+    private int compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+
+    private int compressionBlockSize = DEFAULT_COMPRESSION_BLOCK_SIZE;
+
+    private int maxDecompressedRequestSize =
+        DEFAULT_MAX_DECOMPRESSED_REQUEST_SIZE;
+
+    /**
+     * Executor that compresses blocks of large responses; null if parallel
+     * compression is disabled.
+     */
+    private ExecutorService compressionExecutor;
+
     /**
      * Session properties, keyed by session ID. Currently just username and
      * password.
      */
-    private final Map<String, SessionInfo> sessionInfos =
-        new HashMap<String, SessionInfo>();
+    private SessionStore sessionStore;
 
     public void init(ServletConfig servletConfig) throws ServletException {
         super.init(servletConfig);
         this.domFactory = getDocumentBuilderFactory();
+        if (!"dom".equalsIgnoreCase(
+                servletConfig.getInitParameter(PARAM_REQUEST_PARSER)))
+        {
+            this.soapMessageParser = new SoapMessageParser(domFactory);
+        }
         this.requireAuthenticatedSessions =
             Boolean.parseBoolean(
                 servletConfig.getInitParameter(REQUIRE_AUTHENTICATED_SESSIONS));
+        this.streamResponse =
+            getBooleanInitParameter(servletConfig, PARAM_STREAM_RESPONSE);
+        this.responseBufferSize =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_RESPONSE_BUFFER_SIZE,
+                DEFAULT_RESPONSE_BUFFER_SIZE);
+        this.compressionLevel =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_COMPRESSION_LEVEL,
+                DEFAULT_COMPRESSION_LEVEL);
+        this.compressionMinSize =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_COMPRESSION_MIN_SIZE,
+                DEFAULT_COMPRESSION_MIN_SIZE);
+        this.maxDecompressedRequestSize =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_MAX_DECOMPRESSED_REQUEST_SIZE,
+                DEFAULT_MAX_DECOMPRESSED_REQUEST_SIZE);
+        final int blockSize =
+            getIntInitParameter(
+                servletConfig,
+                PARAM_COMPRESSION_BLOCK_SIZE,
+                DEFAULT_COMPRESSION_BLOCK_SIZE);
+        if (compressionLevel > 0
+            && blockSize > 0
+            && ParallelDeflaterOutputStream.isSupported())
+        {
+            this.compressionBlockSize =
+                Math.max(blockSize, MIN_COMPRESSION_BLOCK_SIZE);
+            this.compressionExecutor =
+                Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new NamedThreadFactory("xmla-compress"));
+        }
+        this.sessionStore = createSessionStore(servletConfig);
+    }
+
+    public void destroy() {
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+            compressionExecutor = null;
+        }
+        if (sessionStore != null) {
+            sessionStore.destroy();
+            sessionStore = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * Creates and initializes the session store named by the
+     * {@link #PARAM_SESSION_STORE} init parameter.
+     */
+    protected SessionStore createSessionStore(ServletConfig servletConfig)
+        throws ServletException
+    {
+        final String className =
+            servletConfig.getInitParameter(PARAM_SESSION_STORE);
+        final SessionStore store;
+        if (className == null || className.trim().length() == 0) {
+            store = new ExpiringSessionStore();
+        } else {
+            final String message =
+                "Cannot create session store '" + className + "'";
+            try {
+                store =
+                    Class.forName(className.trim())
+                        .asSubclass(SessionStore.class)
+                        .getConstructor()
+                        .newInstance();
+            } catch (ClassNotFoundException e) {
+                throw new ServletException(message, e);
+            } catch (ClassCastException e) {
+                throw new ServletException(
+                    message + ": does not implement "
+                    + SessionStore.class.getName(), e);
+            } catch (NoSuchMethodException e) {
+                throw new ServletException(
+                    message + ": no public constructor without arguments", e);
+            } catch (InvocationTargetException e) {
+                throw new ServletException(message, e.getCause());
+            } catch (InstantiationException e) {
+                throw new ServletException(message, e);
+            } catch (IllegalAccessException e) {
+                throw new ServletException(message, e);
+            }
+        }
+        store.init(servletConfig);
+        return store;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the client accepts a compressed response, wraps the response so
+     * that everything written to its output stream, including by
+     * {@link #marshallSoapMessage} and when streaming, is compressed.
+     */
+    protected void doPost(
+        HttpServletRequest request,
+        HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String contentCoding =
+            compressionLevel > 0
+                ? CompressingResponse.chooseContentCoding(
+                    request.getHeader("Accept-Encoding"))
+                : null;
+        if (contentCoding == null) {
+            super.doPost(request, response);
+            return;
+        }
+        final CompressingResponse compressingResponse =
+            new CompressingResponse(
+                response,
+                contentCoding,
+                compressionLevel,
+                compressionMinSize,
+                compressionBlockSize,
+                compressionExecutor);
+        super.doPost(request, compressingResponse);
+    }
+
+    protected void completeResponse(HttpServletResponse response)
+        throws IOException
+    {
+        if (response instanceof CompressingResponse) {
+            ((CompressingResponse) response).finish();
+        }
     }
 
     protected static DocumentBuilderFactory getDocumentBuilderFactory() {
@@ -94,6 +364,15 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                     USM_REQUEST_INPUT_FAULT_FS,
                     ex);
             }
+            inputStream =
+                decodeContent(
+                    request.getHeader("Content-Encoding"), inputStream);
+
+            if (soapMessageParser != null) {
+                parseSoapMessage(
+                    inputStream, request.getContentLength(), requestSoapParts);
+                return;
+            }
 
             DocumentBuilder domBuilder;
             try {
@@ -110,6 +389,8 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             try {
                 soapDoc = domBuilder.parse(new InputSource(inputStream));
             } catch (IOException ex) {
+                checkLimit(inputStream, ex);
+                checkContentCoding(ex);
                 // This is either Client or Server
                 throw new XmlaException(
                     SERVER_FAULT_FC,
@@ -117,12 +398,18 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                     USM_DOM_PARSE_IO_FAULT_FS,
                     ex);
             } catch (SAXException ex) {
+                checkLimit(inputStream, ex);
                 // Assume client passed bad xml
                 throw new XmlaException(
                     CLIENT_FAULT_FC,
                     USM_DOM_PARSE_CODE,
                     USM_DOM_PARSE_FAULT_FS,
                     ex);
+            } finally {
+                if (inputStream instanceof LimitedInputStream) {
+                    // Release the inflater.
+                    inputStream.close();
+                }
             }
 
             /* Check SOAP message */
@@ -132,59 +419,267 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 logXmlaRequest(envElem);
             }
 
-            if ("Envelope".equals(envElem.getLocalName())) {
-                if (!(NS_SOAP_ENV_1_1.equals(envElem.getNamespaceURI()))) {
-                    throw new XmlaException(
-                        CLIENT_FAULT_FC,
-                        USM_DOM_PARSE_CODE,
-                        USM_DOM_PARSE_FAULT_FS,
-                        new SAXException(
-                            "Invalid SOAP message: "
-                            + "Envelope element not in SOAP namespace"));
-                }
-            } else {
-                throw new XmlaException(
-                    CLIENT_FAULT_FC,
-                    USM_DOM_PARSE_CODE,
-                    USM_DOM_PARSE_FAULT_FS,
-                    new SAXException(
-                        "Invalid SOAP message: "
-                        + "Top element not Envelope"));
-            }
+            checkEnvelope(envElem.getNamespaceURI(), envElem.getLocalName());
 
-            Element[] childs =
+            Element[] headers =
                 XmlaUtil.filterChildElements(
                     envElem, NS_SOAP_ENV_1_1, "Header");
-            if (childs.length > 1) {
+            Element[] bodies =
+                XmlaUtil.filterChildElements(envElem, NS_SOAP_ENV_1_1, "Body");
+            checkHeaderAndBody(headers.length, bodies.length);
+            requestSoapParts[0] = headers.length == 1 ? headers[0] : null;
+            requestSoapParts[1] = bodies[0];
+        } catch (XmlaException xex) {
+            throw xex;
+        } catch (Exception ex) {
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                USM_UNKNOWN_CODE,
+                USM_UNKNOWN_FAULT_FS,
+                ex);
+        }
+    }
+
+    /**
+     * Reads a SOAP request in a single pass with the streaming parser.
+     * The header and body parts are elements that build a DOM tree only if
+     * their DOM methods are called; {@link #handleSoapHeader} and
+     * {@link #handleSoapBody} use the parsed message directly.
+     *
+     * @param inputStream Decoded request content
+     * @param contentLength Length of request, or -1 if not known
+     * @param requestSoapParts Array to receive header and body parts
+     */
+    private void parseSoapMessage(
+        InputStream inputStream,
+        int contentLength,
+        Element[] requestSoapParts)
+        throws XmlaException, IOException
+    {
+        final ByteArrayOutputStream baos =
+            new ByteArrayOutputStream(
+                contentLength > 0 && contentLength < 1024 * 1024
+                    ? contentLength
+                    : 8192);
+        try {
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buf)) >= 0) {
+                baos.write(buf, 0, n);
+            }
+        } catch (IOException ex) {
+            checkLimit(inputStream, ex);
+            checkContentCoding(ex);
+            // This is either Client or Server
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                USM_REQUEST_INPUT_CODE,
+                USM_REQUEST_INPUT_FAULT_FS,
+                ex);
+        } finally {
+            if (inputStream instanceof LimitedInputStream) {
+                // Release the inflater.
+                inputStream.close();
+            }
+        }
+
+        final SoapMessageParser.SoapMessage message;
+        try {
+            message = soapMessageParser.parse(baos.toByteArray());
+        } catch (ParserConfigurationException ex) {
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                USM_DOM_FACTORY_CODE,
+                USM_DOM_FACTORY_FAULT_FS,
+                ex);
+        } catch (IOException ex) {
+            throw new XmlaException(
+                SERVER_FAULT_FC,
+                USM_DOM_PARSE_IO_CODE,
+                USM_DOM_PARSE_IO_FAULT_FS,
+                ex);
+        } catch (SAXException ex) {
+            // Assume client passed bad xml
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_DOM_PARSE_CODE,
+                USM_DOM_PARSE_FAULT_FS,
+                ex);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            logXmlaRequest(
+                soapMessageParser.toDocument(message).getDocumentElement());
+        }
+
+        checkEnvelope(message.rootNamespace, message.rootLocalName);
+        checkHeaderAndBody(message.headerCount, message.bodyCount);
+        requestSoapParts[0] =
+            message.headerCount == 1
+                ? soapMessageParser.lazyElement(message, 0)
+                : null;
+        requestSoapParts[1] = soapMessageParser.lazyElement(message, 1);
+    }
+
+    /**
+     * Checks that the top element of a request is a SOAP Envelope.
+     */
+    private static void checkEnvelope(String namespace, String localName)
+        throws XmlaException
+    {
+        if ("Envelope".equals(localName)) {
+            if (!(NS_SOAP_ENV_1_1.equals(namespace))) {
                 throw new XmlaException(
                     CLIENT_FAULT_FC,
                     USM_DOM_PARSE_CODE,
                     USM_DOM_PARSE_FAULT_FS,
                     new SAXException(
                         "Invalid SOAP message: "
-                        + "More than one Header elements"));
+                        + "Envelope element not in SOAP namespace"));
             }
-            requestSoapParts[0] = childs.length == 1 ? childs[0] : null;
+        } else {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_DOM_PARSE_CODE,
+                USM_DOM_PARSE_FAULT_FS,
+                new SAXException(
+                    "Invalid SOAP message: "
+                    + "Top element not Envelope"));
+        }
+    }
 
-            childs =
-                XmlaUtil.filterChildElements(envElem, NS_SOAP_ENV_1_1, "Body");
-            if (childs.length != 1) {
+    /**
+     * Checks that a SOAP Envelope has at most one Header and exactly one
+     * Body.
+     */
+    private static void checkHeaderAndBody(int headerCount, int bodyCount)
+        throws XmlaException
+    {
+        if (headerCount > 1) {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_DOM_PARSE_CODE,
+                USM_DOM_PARSE_FAULT_FS,
+                new SAXException(
+                    "Invalid SOAP message: "
+                    + "More than one Header elements"));
+        }
+        if (bodyCount != 1) {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_DOM_PARSE_CODE,
+                USM_DOM_PARSE_FAULT_FS,
+                new SAXException(
+                    "Invalid SOAP message: "
+                    + "Does not have one Body element"));
+        }
+    }
+
+    /**
+     * Wraps a request's input stream so as to undo the request's content
+     * coding, if any. Limits the size of the decoded content to
+     * {@link #PARAM_MAX_DECOMPRESSED_REQUEST_SIZE}.
+     *
+     * @param contentEncoding Value of request's "Content-Encoding" header
+     * @param inputStream Request's input stream
+     * @return Stream of decoded content
+     */
+    private InputStream decodeContent(
+        String contentEncoding,
+        InputStream inputStream)
+        throws XmlaException, IOException
+    {
+        if (contentEncoding == null) {
+            return inputStream;
+        }
+        contentEncoding = contentEncoding.trim().toLowerCase();
+        final InputStream decodedStream;
+        if (contentEncoding.length() == 0
+            || contentEncoding.equals("identity"))
+        {
+            return inputStream;
+        } else if (contentEncoding.equals("gzip")
+            || contentEncoding.equals("x-gzip"))
+        {
+            try {
+                decodedStream = new GZIPInputStream(inputStream);
+            } catch (IOException ex) {
+                // The constructor reads the gzip header. If it is malformed
+                // or missing, the client sent bad content.
                 throw new XmlaException(
                     CLIENT_FAULT_FC,
-                    USM_DOM_PARSE_CODE,
-                    USM_DOM_PARSE_FAULT_FS,
-                    new SAXException(
-                        "Invalid SOAP message: "
-                        + "Does not have one Body element"));
+                    USM_CONTENT_ENCODING_CODE,
+                    USM_CONTENT_ENCODING_FAULT_FS,
+                    ex);
             }
-            requestSoapParts[1] = childs[0];
-        } catch (XmlaException xex) {
-            throw xex;
-        } catch (Exception ex) {
+        } else if (contentEncoding.equals("deflate")) {
+            // "deflate" should mean the zlib format, but some clients send
+            // raw deflate data. Tell them apart by the zlib header.
+            final PushbackInputStream pushbackStream =
+                new PushbackInputStream(inputStream, 2);
+            final int b0 = pushbackStream.read();
+            final int b1 = b0 < 0 ? -1 : pushbackStream.read();
+            if (b1 >= 0) {
+                pushbackStream.unread(b1);
+            }
+            if (b0 >= 0) {
+                pushbackStream.unread(b0);
+            }
+            final boolean zlib =
+                b1 >= 0
+                && (b0 & 0x0f) == Deflater.DEFLATED
+                && ((b0 << 8) | b1) % 31 == 0;
+            decodedStream =
+                new InflaterInputStream(pushbackStream, new Inflater(!zlib)) {
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+        } else {
             throw new XmlaException(
-                SERVER_FAULT_FC,
-                USM_UNKNOWN_CODE,
-                USM_UNKNOWN_FAULT_FS,
+                CLIENT_FAULT_FC,
+                USM_CONTENT_ENCODING_CODE,
+                USM_CONTENT_ENCODING_FAULT_FS,
+                new UnsupportedOperationException(
+                    "Content-Encoding '" + contentEncoding
+                    + "' is not supported. Allowed values: gzip, deflate."));
+        }
+        return new LimitedInputStream(
+            decodedStream, maxDecompressedRequestSize);
+    }
+
+    /**
+     * Throws a client fault if an error occurred because the request's
+     * compressed content was malformed; for example, a "deflate" stream
+     * whose header is wrong.
+     */
+    private static void checkContentCoding(IOException ex)
+        throws XmlaException
+    {
+        if (ex instanceof ZipException) {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_CONTENT_ENCODING_CODE,
+                USM_CONTENT_ENCODING_FAULT_FS,
+                ex);
+        }
+    }
+
+    /**
+     * Throws a client fault if an error occurred because the request was
+     * larger than allowed.
+     */
+    private void checkLimit(InputStream inputStream, Exception ex)
+        throws XmlaException
+    {
+        if (inputStream instanceof LimitedInputStream
+            && ((LimitedInputStream) inputStream).isLimitExceeded())
+        {
+            throw new XmlaException(
+                CLIENT_FAULT_FC,
+                USM_REQUEST_TOO_LARGE_CODE,
+                USM_REQUEST_TOO_LARGE_FAULT_FS,
                 ex);
         }
     }
@@ -221,7 +716,20 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
     {
         try {
             Element hdrElem = requestSoapParts[0];
-            if ((hdrElem == null) || (! hdrElem.hasChildNodes())) {
+            if (hdrElem == null) {
+                return;
+            }
+            final SoapMessageParser.SoapMessage message =
+                SoapMessageParser.getMessage(hdrElem);
+            final List<SoapMessageParser.HeaderEntry> entries;
+            if (message != null) {
+                entries = message.headerEntries;
+            } else if (hdrElem.hasChildNodes()) {
+                entries = SoapMessageParser.headerEntries(hdrElem);
+            } else {
+                return;
+            }
+            if (entries.isEmpty()) {
                 return;
             }
 
@@ -229,21 +737,12 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
             byte[] bytes = null;
 
-            NodeList nlst = hdrElem.getChildNodes();
-            int nlen = nlst.getLength();
             boolean authenticatedSession = false;
             boolean beginSession = false;
-            for (int i = 0; i < nlen; i++) {
-                Node n = nlst.item(i);
-                if (!(n instanceof Element)) {
-                    continue;
-                }
-                Element e = (Element) n;
-                String localName = e.getLocalName();
+            for (SoapMessageParser.HeaderEntry e : entries) {
+                String localName = e.localName;
 
-                if (localName.equals(XMLA_SECURITY)
-                    && NS_SOAP_SECEXT.equals(e.getNamespaceURI()))
-                {
+                if (e.isSecurity()) {
                     // Example:
                     //
                     // <Security xmlns="http://schemas.xmlsoap.org/ws/2002/04/secext">
@@ -254,19 +753,12 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                     // </Security>
                     // <BeginSession mustUnderstand="1"
                     //   xmlns="urn:schemas-microsoft-com:xml-analysis" />
-                    NodeList childNodes = e.getChildNodes();
-                    Element userNameToken = (Element) childNodes.item(1);
-                    NodeList userNamePassword = userNameToken.getChildNodes();
-                    Element username = (Element) userNamePassword.item(1);
-                    Element password = (Element) userNamePassword.item(3);
-                    String userNameStr =
-                        username.getChildNodes().item(0).getNodeValue();
+                    String userNameStr = e.username;
                     context.put(CONTEXT_XMLA_USERNAME, userNameStr);
                     String passwordStr = "";
 
-                    if (password.getChildNodes().item(0) != null) {
-                        passwordStr =
-                            password.getChildNodes().item(0).getNodeValue();
+                    if (e.password != null) {
+                        passwordStr = e.password;
                     }
 
                     context.put(CONTEXT_XMLA_PASSWORD, passwordStr);
@@ -281,18 +773,14 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 }
 
                 // Make sure Element has mustUnderstand=1 attribute.
-                Attr attr = e.getAttributeNode(SOAP_MUST_UNDERSTAND_ATTR);
-                boolean mustUnderstandValue =
-                    attr != null
-                    && attr.getValue() != null
-                    && attr.getValue().equals("1");
+                boolean mustUnderstandValue = "1".equals(e.mustUnderstand);
 
                 if (!mustUnderstandValue) {
                     continue;
                 }
 
                 // Is it an XMLA element
-                if (!NS_XMLA.equals(e.getNamespaceURI())) {
+                if (!NS_XMLA.equals(e.namespace)) {
                     continue;
                 }
                 // So, an XMLA mustUnderstand-er
@@ -314,13 +802,16 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 } else if (localName.equals(XMLA_SESSION)) {
                     sessionIdStr = getSessionIdFromRequest(e, context);
 
-                    SessionInfo sessionInfo = getSessionInfo(sessionIdStr);
+                    SessionStore.SessionInfo sessionInfo =
+                        getSessionInfo(sessionIdStr);
 
                     if (sessionInfo != null) {
-                        context.put(CONTEXT_XMLA_USERNAME, sessionInfo.user);
+                        context.put(
+                            CONTEXT_XMLA_USERNAME,
+                            sessionInfo.getUser());
                         context.put(
                             CONTEXT_XMLA_PASSWORD,
-                            sessionInfo.password);
+                            sessionInfo.getPassword());
                     }
 
                     context.put(CONTEXT_XMLA_SESSION_ID, sessionIdStr);
@@ -333,6 +824,7 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                     context.put(
                         CONTEXT_XMLA_SESSION_STATE,
                         CONTEXT_XMLA_SESSION_STATE_END);
+                    sessionStore.remove(sessionIdStr);
 
                 } else {
                     // error
@@ -359,7 +851,9 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 buf.append("\" />");
                 bytes = buf.toString().getBytes(encoding);
 
-                if (authenticatedSession) {
+                if (authenticatedSession
+                    && !localName.equals(XMLA_END_SESSION))
+                {
                     String username =
                         (String) context.get(CONTEXT_XMLA_USERNAME);
                     String password =
@@ -408,20 +902,28 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
         }
 
 
-        // Generate a pseudo-random new session ID.
-        return Long.toString(17L * System.nanoTime()
-                +
-                3L * System.currentTimeMillis(), 35);
+        // Generate a random new session ID. It must not be guessable: a
+        // request that quotes a session ID acts with that session's
+        // credentials.
+        final byte[] bytes = new byte[SESSION_ID_BYTES];
+        SESSION_ID_RANDOM.nextBytes(bytes);
+        final StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.toString();
     }
 
 
-    private static String getSessionIdFromRequest(Element e,
-            Map<String, Object> context)
+    private static String getSessionIdFromRequest(
+        SoapMessageParser.HeaderEntry e,
+        Map<String, Object> context)
         throws Exception
     {
         // extract the SessionId attrs value and put into context
-        Attr attr = e.getAttributeNode(XMLA_SESSION_ID);
-        if (attr == null) {
+        String sessionId = e.sessionId;
+        if (sessionId == null) {
             throw new SAXException(
                 "Invalid XML/A message: "
                 + XMLA_SESSION
@@ -429,17 +931,28 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 + XMLA_SESSION_ID
                 + " attribute");
         }
+        return sessionId;
+    }
 
-        String sessionId = attr.getValue();
-        if (sessionId == null) {
-            throw new SAXException(
-                "Invalid XML/A message: "
-                + XMLA_SESSION
-                + " Header element with "
-                + XMLA_SESSION_ID
-                + " attribute but no attribute value");
+    protected Method getRequestMethod(Element[] requestSoapParts) {
+        final SoapMessageParser.SoapMessage message =
+            SoapMessageParser.getMessage(requestSoapParts[1]);
+        if (message == null) {
+            return super.getRequestMethod(requestSoapParts);
         }
-        return sessionId;
+        if (message.discoverCount + message.executeCount != 1) {
+            return null;
+        }
+        return message.method.discover ? Method.DISCOVER : Method.EXECUTE;
+    }
+
+    protected boolean isCancelRequest(Element[] requestSoapParts) {
+        final SoapMessageParser.SoapMessage message =
+            SoapMessageParser.getMessage(requestSoapParts[1]);
+        if (message == null) {
+            return super.isCancelRequest(requestSoapParts);
+        }
+        return message.method != null && message.method.cancelCount > 0;
     }
 
     protected void handleSoapBody(
@@ -453,34 +966,55 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             String encoding = response.getCharacterEncoding();
             Element hdrElem = requestSoapParts[0]; // not used
             Element bodyElem = requestSoapParts[1];
-            Element[] dreqs =
-                XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Discover");
-            Element[] ereqs =
-                XmlaUtil.filterChildElements(bodyElem, NS_XMLA, "Execute");
-            if (dreqs.length + ereqs.length != 1) {
+            final SoapMessageParser.SoapMessage message =
+                SoapMessageParser.getMessage(bodyElem);
+            Element[] dreqs = null;
+            Element[] ereqs = null;
+            final int discoverCount;
+            final int executeCount;
+            if (message != null) {
+                discoverCount = message.discoverCount;
+                executeCount = message.executeCount;
+            } else {
+                dreqs =
+                    XmlaUtil.filterChildElements(
+                        bodyElem, NS_XMLA, "Discover");
+                ereqs =
+                    XmlaUtil.filterChildElements(
+                        bodyElem, NS_XMLA, "Execute");
+                discoverCount = dreqs.length;
+                executeCount = ereqs.length;
+            }
+            if (discoverCount + executeCount != 1) {
                 throw new XmlaException(
                     CLIENT_FAULT_FC,
                     HSB_BAD_SOAP_BODY_CODE,
                     HSB_BAD_SOAP_BODY_FAULT_FS,
                     new RuntimeException(
                         "Invalid XML/A message: Body has "
-                        + dreqs.length + " Discover Requests and "
-                        + ereqs.length + " Execute Requests"));
+                        + discoverCount + " Discover Requests and "
+                        + executeCount + " Execute Requests"));
             }
 
-            Element xmlaReqElem = (dreqs.length == 0 ? ereqs[0] : dreqs[0]);
-
-            ByteArrayOutputStream osBuf = new ByteArrayOutputStream();
-
             // use context variable 'role_name' as this request's XML/A role
             String roleName = (String) context.get(CONTEXT_ROLE_NAME);
 
             String username = (String) context.get(CONTEXT_XMLA_USERNAME);
             String password = (String) context.get(CONTEXT_XMLA_PASSWORD);
             String sessionId = (String) context.get(CONTEXT_XMLA_SESSION_ID);
-            XmlaRequest xmlaReq =
-                new DefaultXmlaRequest(
-                    xmlaReqElem, roleName, username, password, sessionId);
+            XmlaRequest xmlaReq;
+            if (message != null) {
+                xmlaReq =
+                    new DefaultXmlaRequest(
+                        message.method, roleName, username, password,
+                        sessionId);
+            } else {
+                Element xmlaReqElem =
+                    (dreqs.length == 0 ? ereqs[0] : dreqs[0]);
+                xmlaReq =
+                    new DefaultXmlaRequest(
+                        xmlaReqElem, roleName, username, password, sessionId);
+            }
 
             // "ResponseMimeType" may be in the context if the "Accept" HTTP
             // header was specified. But override if the SOAP request has the
@@ -498,8 +1032,50 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 }
             }
 
+            final Boolean prettyPrint =
+                (Boolean) context.get(CONTEXT_PRETTY_PRINT);
+            final boolean compact =
+                !(prettyPrint != null ? prettyPrint : this.prettyPrint);
+
+            if (discoverETags && xmlaReq.getMethod() == Method.DISCOVER) {
+                String etag =
+                    getXmlaHandler().getETag(
+                        xmlaReq, responseMimeType, encoding, compact);
+                if (etag != null
+                    && response instanceof CompressingResponse)
+                {
+                    // A strong tag identifies the bytes sent, so a body
+                    // that may be compressed needs a different tag.
+                    etag =
+                        etag.substring(0, etag.length() - 1) + '-'
+                        + ((CompressingResponse) response).getContentCoding()
+                        + '"';
+                }
+                if (etag != null) {
+                    response.setHeader(ConditionalRequestCallback.ETAG, etag);
+                    if (ConditionalRequestCallback.matches(
+                            (String) context.get(CONTEXT_IF_NONE_MATCH),
+                            etag))
+                    {
+                        responseSoapParts[1] = NOT_MODIFIED;
+                        return;
+                    }
+                }
+            }
+
+            if (streamResponse
+                && !Boolean.TRUE.equals(context.get(CONTEXT_BUFFER_RESPONSE)))
+            {
+                streamSoapBody(
+                    response, xmlaReq, responseSoapParts, responseMimeType,
+                    compact);
+                return;
+            }
+
+            ByteArrayOutputStream osBuf = new ByteArrayOutputStream();
             XmlaResponse xmlaRes =
-                new DefaultXmlaResponse(osBuf, encoding, responseMimeType);
+                new DefaultXmlaResponse(
+                    osBuf, encoding, responseMimeType, utf8Writer, compact);
 
             try {
                 getXmlaHandler().process(xmlaReq, xmlaRes);
@@ -525,35 +1101,158 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
         }
     }
 
+    /**
+     * Processes a request, writing the body of the response directly to the
+     * client.
+     *
+     * <p>The SOAP envelope and header are written just before the first byte
+     * of the body. If the handler fails before then, nothing has been sent,
+     * and the error becomes a SOAP fault as usual; if it fails later, the
+     * handler has already reported the error inside the body, and all that
+     * remains is to close the envelope.
+     */
+    private void streamSoapBody(
+        HttpServletResponse response,
+        XmlaRequest xmlaReq,
+        byte[][] responseSoapParts,
+        Enumeration.ResponseMimeType responseMimeType,
+        boolean compact)
+        throws XmlaException, IOException
+    {
+        final String encoding = prepareResponse(response, responseMimeType);
+        final byte[][] prefix;
+        final byte[] suffix;
+        switch (responseMimeType) {
+        case JSON:
+            prefix = new byte[0][];
+            suffix = null;
+            break;
+        case SOAP:
+        default:
+            final String[] envelope = soapEnvelope(encoding);
+            prefix = new byte[][] {
+                envelope[0].getBytes(encoding),
+                responseSoapParts[0],
+                envelope[1].getBytes(encoding),
+            };
+            suffix = envelope[2].getBytes(encoding);
+            break;
+        }
+        final StreamingBodyOutputStream out =
+            new StreamingBodyOutputStream(
+                new BufferedOutputStream(
+                    response.getOutputStream(), responseBufferSize),
+                prefix,
+                suffix);
+        final DefaultXmlaResponse xmlaRes =
+            new DefaultXmlaResponse(
+                out, encoding, responseMimeType, utf8Writer, compact);
+
+        try {
+            getXmlaHandler().process(xmlaReq, xmlaRes);
+        } catch (Exception ex) {
+            if (!out.isStarted()) {
+                if (ex instanceof XmlaException) {
+                    throw (XmlaException) ex;
+                }
+                throw new XmlaException(
+                    SERVER_FAULT_FC,
+                    HSB_PROCESS_CODE,
+                    HSB_PROCESS_FAULT_FS,
+                    ex);
+            }
+            LOGGER.error(
+                "Error while streaming XML/A response; "
+                + "reported to client in response body",
+                ex);
+            // The handler wrote the error, but did not end the document;
+            // close what is still open, and send what the writer holds.
+            try {
+                xmlaRes.finish();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Error while ending XML/A response", e);
+            }
+        }
+        out.finish();
+        responseSoapParts[1] = BODY_ALREADY_SENT;
+    }
+
+    /**
+     * Sets the character encoding and content type of a response, and returns
+     * the encoding.
+     *
+     * <p>The setCharacterEncoding, setContentType, or setLocale method
+     * must be called BEFORE getWriter or getOutputStream and before
+     * committing the response for the character encoding to be used.
+     */
+    private String prepareResponse(
+        HttpServletResponse response,
+        Enumeration.ResponseMimeType responseMimeType)
+    {
+        // If CharacterEncoding was set in web.xml, use this value
+        String encoding =
+            (charEncoding != null)
+                ? charEncoding
+                : response.getCharacterEncoding();
+
+        /*
+         * Since we may have just reset response, encoding and content-type
+         * were reset too
+         */
+        if (charEncoding != null) {
+            response.setCharacterEncoding(charEncoding);
+        }
+        switch (responseMimeType) {
+        case JSON:
+            // JsonSaxWriter always writes UTF-8, whatever CharacterEncoding
+            // says.
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            return "UTF-8";
+        case SOAP:
+        default:
+            response.setContentType("text/xml");
+            break;
+        }
+        return encoding;
+    }
+
+    /**
+     * Returns the text that goes before the SOAP header, between the header
+     * and the body, and after the body.
+     */
+    private static String[] soapEnvelope(String encoding) {
+        String s0 =
+            "<?xml version=\"1.0\" encoding=\"" + encoding
+            + "\"?>\n<" + SOAP_PREFIX + ":Envelope xmlns:"
+            + SOAP_PREFIX + "=\"" + NS_SOAP_ENV_1_1 + "\" "
+            + SOAP_PREFIX + ":encodingStyle=\""
+            + NS_SOAP_ENC_1_1 + "\" >" + "\n<" + SOAP_PREFIX
+            + ":Header>\n";
+        String s2 =
+            "</" + SOAP_PREFIX + ":Header>\n<" + SOAP_PREFIX
+            + ":Body>\n";
+        String s4 =
+            "\n</" + SOAP_PREFIX + ":Body>\n</" + SOAP_PREFIX
+            + ":Envelope>\n";
+        return new String[] {s0, s2, s4};
+    }
+
     protected void marshallSoapMessage(
         HttpServletResponse response,
         byte[][] responseSoapParts,
         Enumeration.ResponseMimeType responseMimeType)
         throws XmlaException
     {
+        if (responseSoapParts[1] == BODY_ALREADY_SENT) {
+            return;
+        }
+        if (responseSoapParts[1] == NOT_MODIFIED) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
         try {
-            // If CharacterEncoding was set in web.xml, use this value
-            String encoding =
-                (charEncoding != null)
-                    ? charEncoding
-                    : response.getCharacterEncoding();
-
-            /*
-             * Since we just reset response, encoding and content-type were
-             * reset too
-             */
-            if (charEncoding != null) {
-                response.setCharacterEncoding(charEncoding);
-            }
-            switch (responseMimeType) {
-            case JSON:
-                response.setContentType("application/json");
-                break;
-            case SOAP:
-            default:
-                response.setContentType("text/xml");
-                break;
-            }
+            String encoding = prepareResponse(response, responseMimeType);
 
             // The setCharacterEncoding, setContentType, or setLocale method
             // must be called BEFORE getWriter or getOutputStream and before
@@ -578,26 +1277,13 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
 
                 case SOAP:
                 default:
-                    String s0 =
-                        "<?xml version=\"1.0\" encoding=\"" + encoding
-                        + "\"?>\n<" + SOAP_PREFIX + ":Envelope xmlns:"
-                        + SOAP_PREFIX + "=\"" + NS_SOAP_ENV_1_1 + "\" "
-                        + SOAP_PREFIX + ":encodingStyle=\""
-                        + NS_SOAP_ENC_1_1 + "\" >" + "\n<" + SOAP_PREFIX
-                        + ":Header>\n";
-                    String s2 =
-                        "</" + SOAP_PREFIX + ":Header>\n<" + SOAP_PREFIX
-                        + ":Body>\n";
-                    String s4 =
-                        "\n</" + SOAP_PREFIX + ":Body>\n</" + SOAP_PREFIX
-                        + ":Envelope>\n";
-
+                    final String[] envelope = soapEnvelope(encoding);
                     byteChunks = new Object[] {
-                        s0.getBytes(encoding),
+                        envelope[0].getBytes(encoding),
                         soapHeader,
-                        s2.getBytes(encoding),
+                        envelope[1].getBytes(encoding),
                         soapBody,
-                        s4.getBytes(encoding),
+                        envelope[2].getBytes(encoding),
                     };
                     break;
                 }
@@ -625,33 +1311,14 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
                 LOGGER.debug(buf.toString());
             }
 
-            if (LOGGER.isDebugEnabled()) {
-                StringBuilder buf = new StringBuilder();
-                buf.append("XML/A response content").append(nl);
-            }
             try {
-                int bufferSize = 4096;
-                ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-                WritableByteChannel wch = Channels.newChannel(outputStream);
-                ReadableByteChannel rch;
+                // Write each chunk straight to the output stream (which may
+                // compress); copying via a channel would only add a copy.
                 for (Object byteChunk : byteChunks) {
                     if (byteChunk == null || ((byte[]) byteChunk).length == 0) {
                         continue;
                     }
-                    rch = Channels.newChannel(
-                        new ByteArrayInputStream((byte[]) byteChunk));
-
-                    int readSize;
-                    do {
-                        buffer.clear();
-                        readSize = rch.read(buffer);
-                        buffer.flip();
-
-                        int writeSize = 0;
-                        while ((writeSize += wch.write(buffer)) < readSize) {
-                        }
-                    } while (readSize == bufferSize);
-                    rch.close();
+                    outputStream.write((byte[]) byteChunk);
                 }
                 outputStream.flush();
             } catch (IOException ioe) {
@@ -680,6 +1347,16 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
         Phase phase,
         Throwable t)
     {
+        if (response.isCommitted()) {
+            // Part of the response, say a streamed body, has already been
+            // sent to the client. It is too late to replace it with a fault.
+            LOGGER.error(
+                "Cannot send SOAP fault; response has already been committed",
+                t);
+            responseSoapParts[1] = BODY_ALREADY_SENT;
+            return;
+        }
+
         // Regardless of whats been put into the response so far, clear
         // it out.
         response.reset();
@@ -787,16 +1464,13 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
         responseSoapParts[1] = osBuf.toByteArray();
     }
 
-    private SessionInfo getSessionInfo(String sessionId) {
+    private SessionStore.SessionInfo getSessionInfo(String sessionId) {
         if (sessionId == null) {
             return null;
         }
 
-        SessionInfo sessionInfo = null;
-
-        synchronized (sessionInfos) {
-            sessionInfo = sessionInfos.get(sessionId);
-        }
+        final SessionStore.SessionInfo sessionInfo =
+            sessionStore.get(sessionId);
 
         if (sessionInfo == null) {
             LOGGER.error(
@@ -806,50 +1480,112 @@ public abstract class DefaultXmlaServlet extends XmlaServlet {
             LOGGER.debug(
                 "Found credentials for session id ["
                 + sessionId
-                + "], username=[" + sessionInfo.user
+                + "], username=[" + sessionInfo.getUser()
                 + "] in servlet cache");
         }
         return sessionInfo;
     }
 
-    private SessionInfo saveSessionInfo(
+    private SessionStore.SessionInfo saveSessionInfo(
         String username,
         String password,
         String sessionId)
     {
-        synchronized (sessionInfos) {
-            SessionInfo sessionInfo = sessionInfos.get(sessionId);
-            if (sessionInfo != null
-                && Olap4jUtil.equal(sessionInfo.user, username))
-            {
-                // Overwrite the password, but only if it is non-empty.
-                // (Sometimes Simba sends the credentials object again
-                // but without a password.)
-                if (password != null && password.length() > 0) {
-                    sessionInfo =
-                        new SessionInfo(username, password);
-                    sessionInfos.put(sessionId, sessionInfo);
-                }
-            } else {
-                // A credentials object was stored against the provided session
-                // ID but the username didn't match, so create a new holder.
-                sessionInfo = new SessionInfo(username, password);
-                sessionInfos.put(sessionId, sessionInfo);
-            }
+        final SessionStore.SessionInfo sessionInfo =
+            sessionStore.get(sessionId);
+        if (sessionInfo != null
+            && Olap4jUtil.equal(sessionInfo.getUser(), username)
+            && (password == null || password.length() == 0))
+        {
+            // Keep the stored password if the new one is empty.
+            // (Sometimes Simba sends the credentials object again
+            // but without a password.)
             return sessionInfo;
         }
+        // Otherwise store the new credentials, replacing any that were
+        // stored against this session ID (even for a different user).
+        // Concurrent requests in a session carry the same credentials, so
+        // it does not matter which one wins.
+        final SessionStore.SessionInfo newSessionInfo =
+            new SessionStore.SessionInfo(username, password);
+        sessionStore.put(sessionId, newSessionInfo);
+        return newSessionInfo;
     }
+
     /**
-     * Holds authentication credentials of a XMLA session.
+     * Output stream for the body of a response that is streamed to the
+     * client.
+     *
+     * <p>Writes the start of the message (XML declaration, SOAP envelope and
+     * header) to the underlying stream just before the first byte of the
+     * body, and the end of the message in {@link #finish()}. Until the body
+     * starts, nothing has been sent, so an error can still be reported as a
+     * SOAP fault.
      */
-    private static class SessionInfo {
-        final String user;
-        final String password;
-
-        public SessionInfo(String user, String password)
+    private static class StreamingBodyOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[][] prefix;
+        private final byte[] suffix;
+        private boolean started;
+
+        StreamingBodyOutputStream(
+            OutputStream out,
+            byte[][] prefix,
+            byte[] suffix)
         {
-            this.user = user;
-            this.password = password;
+            this.out = out;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        public void write(int b) throws IOException {
+            start();
+            out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            start();
+            out.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            // Don't commit the response before the body has started.
+            if (started) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Returns whether any of the message has been written to the
+         * underlying stream.
+         */
+        boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Writes the end of the message, and flushes.
+         */
+        void finish() throws IOException {
+            start();
+            if (suffix != null) {
+                out.write(suffix);
+            }
+            out.flush();
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                for (byte[] chunk : prefix) {
+                    if (chunk != null) {
+                        out.write(chunk);
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,281 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import mondrian.xmla.XmlaServlet;
+
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Session store that holds sessions in memory, and evicts sessions that have
+ * been idle for too long, or the least recently used sessions when there are
+ * too many.
+ *
+ * <p>Reads do not lock; a background thread removes idle sessions.
+ */
+public class ExpiringSessionStore implements SessionStore {
+    private static final Logger LOGGER =
+        Logger.getLogger(ExpiringSessionStore.class);
+
+    /**
+     * Servlet config parameter for the number of seconds a session may be
+     * idle before it is evicted. 0 means sessions never expire. Default is
+     * 3600 (one hour).
+     */
+    public static final String PARAM_SESSION_IDLE_TIMEOUT =
+        "SessionIdleTimeout";
+
+    /**
+     * Servlet config parameter for the maximum number of sessions. When
+     * there are more, the least recently used are evicted. 0 means no
+     * limit. Default is 10,000.
+     */
+    public static final String PARAM_MAX_SESSIONS = "MaxSessions";
+
+    private static final int DEFAULT_SESSION_IDLE_TIMEOUT = 3600;
+    private static final int DEFAULT_MAX_SESSIONS = 10000;
+
+    /**
+     * A session's access time is updated only if it is older than this, so
+     * that frequent requests in one session do not keep writing to the
+     * same memory.
+     */
+    private static final long ACCESS_GRANULARITY_NANOS =
+        TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, Entry> sessions =
+        new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private long idleTimeoutNanos =
+        TimeUnit.SECONDS.toNanos(DEFAULT_SESSION_IDLE_TIMEOUT);
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Creates an ExpiringSessionStore with the default idle timeout and
+     * maximum size.
+     */
+    public ExpiringSessionStore() {
+    }
+
+    /**
+     * Creates an ExpiringSessionStore.
+     *
+     * @param idleTimeoutSeconds Seconds a session may be idle, or 0
+     * @param maxSessions Maximum number of sessions, or 0
+     */
+    public ExpiringSessionStore(int idleTimeoutSeconds, int maxSessions) {
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.maxSessions = maxSessions;
+    }
+
+    public void init(ServletConfig servletConfig) throws ServletException {
+        this.idleTimeoutNanos =
+            TimeUnit.SECONDS.toNanos(
+                XmlaServlet.getIntInitParameter(
+                    servletConfig,
+                    PARAM_SESSION_IDLE_TIMEOUT,
+                    (int) TimeUnit.NANOSECONDS.toSeconds(idleTimeoutNanos)));
+        this.maxSessions =
+            XmlaServlet.getIntInitParameter(
+                servletConfig, PARAM_MAX_SESSIONS, maxSessions);
+        startSweeper();
+    }
+
+    /**
+     * Starts the thread that removes idle sessions. {@link #init} calls this;
+     * call it if you create a store without a servlet.
+     */
+    public synchronized void startSweeper() {
+        if (sweeper != null || idleTimeoutNanos <= 0) {
+            return;
+        }
+        // Sweep a few times per timeout, but not more than once a second
+        // nor less than once a minute.
+        final long periodMillis =
+            Math.max(
+                1000,
+                Math.min(
+                    60000,
+                    TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 4));
+        sweeper =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("xmla-session-sweeper"));
+        sweeper.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    try {
+                        sweep();
+                    } catch (Throwable t) {
+                        // Keep the sweeper alive.
+                        LOGGER.error("Error while evicting sessions", t);
+                    }
+                }
+            },
+            periodMillis,
+            periodMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    public SessionInfo get(String sessionId) {
+        final Entry entry = sessions.get(sessionId);
+        if (entry == null) {
+            return null;
+        }
+        final long now = System.nanoTime();
+        if (isExpired(entry, now)) {
+            if (sessions.remove(sessionId, entry)) {
+                evictionCount.incrementAndGet();
+            }
+            return null;
+        }
+        if (now - entry.lastAccessNanos > ACCESS_GRANULARITY_NANOS) {
+            entry.lastAccessNanos = now;
+        }
+        return entry.sessionInfo;
+    }
+
+    public void put(String sessionId, SessionInfo sessionInfo) {
+        sessions.put(sessionId, new Entry(sessionInfo, System.nanoTime()));
+        if (maxSessions > 0 && sessions.size() > maxSessions) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    public void remove(String sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        sessions.clear();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return idleTimeoutNanos > 0
+            && now - entry.lastAccessNanos > idleTimeoutNanos;
+    }
+
+    /**
+     * Removes sessions that have been idle for longer than the timeout.
+     */
+    void sweep() {
+        final long now = System.nanoTime();
+        int count = 0;
+        for (Map.Entry<String, Entry> e : sessions.entrySet()) {
+            if (isExpired(e.getValue(), now)
+                && sessions.remove(e.getKey(), e.getValue()))
+            {
+                ++count;
+            }
+        }
+        evictionCount.addAndGet(count);
+        if (count > 0 && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                "Evicted " + count + " idle session(s); " + sessions.size()
+                + " remain, " + evictionCount.get() + " evicted in total");
+        }
+    }
+
+    /**
+     * Evicts the least recently used sessions, leaving room for a tenth of
+     * the maximum number of sessions so that the next few new sessions do
+     * not each trigger an eviction.
+     */
+    private void evictLeastRecentlyUsed() {
+        if (!evicting.compareAndSet(false, true)) {
+            // Another thread is evicting.
+            return;
+        }
+        try {
+            final int target = maxSessions - maxSessions / 10;
+            // Copy access times, which may change while we sort.
+            final List<Candidate> list = new ArrayList<Candidate>();
+            for (Map.Entry<String, Entry> e : sessions.entrySet()) {
+                list.add(new Candidate(e.getKey(), e.getValue()));
+            }
+            if (list.size() <= target) {
+                return;
+            }
+            Collections.sort(list);
+            int count = 0;
+            for (Candidate candidate : list) {
+                if (sessions.size() <= target) {
+                    break;
+                }
+                if (sessions.remove(candidate.sessionId, candidate.entry)) {
+                    ++count;
+                }
+            }
+            evictionCount.addAndGet(count);
+            LOGGER.warn(
+                "Session store is full; evicted " + count
+                + " least recently used session(s)");
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Session that may be evicted, with a snapshot of its access time.
+     */
+    private static class Candidate implements Comparable<Candidate> {
+        final String sessionId;
+        final Entry entry;
+        final long lastAccessNanos;
+
+        Candidate(String sessionId, Entry entry) {
+            this.sessionId = sessionId;
+            this.entry = entry;
+            this.lastAccessNanos = entry.lastAccessNanos;
+        }
+
+        public int compareTo(Candidate o) {
+            final long d = lastAccessNanos - o.lastAccessNanos;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Session and when it was last used.
+     */
+    private static class Entry {
+        final SessionInfo sessionInfo;
+        volatile long lastAccessNanos;
+
+        Entry(SessionInfo sessionInfo, long lastAccessNanos) {
+            this.sessionInfo = sessionInfo;
+            this.lastAccessNanos = lastAccessNanos;
+        }
+    }
+}
+
+// End ExpiringSessionStore.java
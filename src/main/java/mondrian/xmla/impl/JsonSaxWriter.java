@@ -16,21 +16,47 @@ import org.olap4j.xmla.server.impl.Util;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 /**
  * Implementation of <code>SaxWriter</code> which, perversely, generates a
  * JSON (JavaScript Object Notation) document.
  *
+ * <p>The document is written to the stream, in UTF-8, in chunks of about
+ * {@link #CHUNK_SIZE} characters, as it is generated; the writer holds no
+ * more than a chunk, a single value, and a stack as deep as the document.
+ *
  * @author jhyde
  */
 class JsonSaxWriter implements SaxWriter {
+    /**
+     * Number of characters that are buffered before they are written to the
+     * stream.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Text not yet written to {@link #writer}. */
     private final StringBuilder buf = new StringBuilder();
+    /** Buffer through which {@link #buf} is copied to {@link #writer}. */
+    private char[] chars = new char[CHUNK_SIZE];
+    private final Writer writer;
+    /**
+     * Whether any element has been started; the first needs no line break
+     * before it.
+     */
+    private boolean started;
+    private final boolean compact;
+    /** Line break; empty if compact. */
+    private final String nl;
     private int indent;
     private String[] indentStrings = INITIAL_INDENT_STRINGS;
     private String indentString = indentStrings[0];
     private final ArrayStack<Frame> stack = new ArrayStack<Frame>();
-    private OutputStream outputStream;
 
     private static final String[] INITIAL_INDENT_STRINGS = {
         "",
@@ -51,11 +77,23 @@ class JsonSaxWriter implements SaxWriter {
      * @param outputStream Output stream
      */
     public JsonSaxWriter(OutputStream outputStream) {
-        this.outputStream = outputStream;
+        this(outputStream, false);
+    }
+
+    /**
+     * Creates a JsonSaxWriter.
+     *
+     * @param outputStream Output stream
+     * @param compact Whether to omit line breaks and indentation
+     */
+    public JsonSaxWriter(OutputStream outputStream, boolean compact) {
+        this.writer = new OutputStreamWriter(outputStream, UTF8);
+        this.compact = compact;
+        this.nl = compact ? "" : "\n";
     }
 
     public void startDocument() {
-        stack.push(new Frame(null));
+        stack.push(new Frame(null, null));
     }
 
     public void endDocument() {
@@ -80,7 +118,7 @@ class JsonSaxWriter implements SaxWriter {
         }
 
         assert subName != null;
-        stack.push(new Frame(subName));
+        stack.push(new Frame(subName, name));
         indent();
     }
 
@@ -89,9 +127,10 @@ class JsonSaxWriter implements SaxWriter {
         stack.pop();
         outdent();
 
-        buf.append("\n");
+        buf.append(nl);
         buf.append(indentString);
         buf.append("]");
+        drain(false);
     }
 
     public void startElement(String name) {
@@ -107,7 +146,7 @@ class JsonSaxWriter implements SaxWriter {
             buf.append(": {");
         }
 
-        stack.push(new Frame(null));
+        stack.push(new Frame(null, name));
         indent();
     }
 
@@ -115,28 +154,39 @@ class JsonSaxWriter implements SaxWriter {
         startElement(name);
         for (int i = 0; i < attrs.length;) {
             if (i > 0) {
-                buf.append(",\n");
-            } else {
-                buf.append("\n");
+                buf.append(',');
             }
             String attr = (String) attrs[i++];
-            buf.append(indentString);
-            Util.quoteForMdx(buf, attr);
-            buf.append(": ");
+            attribute(attr);
             Object value = attrs[i++];
             value(value);
         }
         stack.peek().ordinal = attrs.length / 2;
     }
 
+    public void startElement(String name, String attr, String value) {
+        startElement(name);
+        attribute(attr);
+        value(value);
+        stack.peek().ordinal = 1;
+    }
+
+    public void startElement(String name, String attr, int value) {
+        startElement(name);
+        attribute(attr);
+        buf.append(value);
+        stack.peek().ordinal = 1;
+    }
+
     public void endElement() {
         Frame prev = stack.pop();
         assert prev.name == null
             : "Ended an element, but in sequence " + prev.name;
-        buf.append("\n");
+        buf.append(nl);
         outdent();
         buf.append(indentString);
         buf.append("}");
+        drain(false);
     }
 
     public void element(String name, Object... attrs) {
@@ -156,8 +206,69 @@ class JsonSaxWriter implements SaxWriter {
         value(data);
     }
 
+    public void textElement(String name, long data) {
+        comma();
+        buf.append(indentString);
+        Util.quoteForMdx(buf, name);
+        buf.append(": ");
+        buf.append(data);
+    }
+
+    public void textElement(String name, double data) {
+        comma();
+        buf.append(indentString);
+        Util.quoteForMdx(buf, name);
+        buf.append(": ");
+        buf.append(data);
+    }
+
+    public void textElement(String name, CharSequence data) {
+        textElement(name, (Object) data.toString());
+    }
+
+    /**
+     * Ends all objects and arrays that have been started and not ended, as
+     * if processing had finished normally, and flushes. Call when
+     * processing has failed part-way, so that the output is well-formed.
+     */
+    public void endOpenElements() {
+        // The bottom frame is the document's.
+        while (stack.size() > 1) {
+            if (stack.peek().name != null) {
+                endSequence();
+            } else {
+                endElement();
+            }
+        }
+        flush();
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public int getIndent() {
+        return -1;
+    }
+
     public void completeBeforeElement(String tagName) {
-        throw new UnsupportedOperationException();
+        boolean found = false;
+        for (Frame frame : stack) {
+            if (tagName.equals(frame.element)) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return;
+        }
+        while (!tagName.equals(stack.peek().element)) {
+            if (stack.peek().name != null) {
+                endSequence();
+            } else {
+                endElement();
+            }
+        }
     }
 
     public void verbatim(String text) {
@@ -165,8 +276,9 @@ class JsonSaxWriter implements SaxWriter {
     }
 
     public void flush() {
+        drain(true);
         try {
-            outputStream.write(buf.toString().substring(1).getBytes());
+            writer.flush();
         } catch (IOException e) {
             throw Util.newError(e, "While encoding JSON response");
         }
@@ -176,6 +288,9 @@ class JsonSaxWriter implements SaxWriter {
 
     private void indent() {
         ++indent;
+        if (compact) {
+            return;
+        }
         if (indent >= indentStrings.length) {
             final int newLength = indentStrings.length * 2 + 1;
             final int INDENT = 2;
@@ -192,7 +307,10 @@ class JsonSaxWriter implements SaxWriter {
     }
 
     private void outdent() {
-        indentString = indentStrings[--indent];
+        --indent;
+        if (!compact) {
+            indentString = indentStrings[indent];
+        }
     }
 
     /**
@@ -213,20 +331,71 @@ class JsonSaxWriter implements SaxWriter {
         }
     }
 
+    /**
+     * Writes the name of an attribute of the current element.
+     */
+    private void attribute(String attr) {
+        buf.append(nl);
+        buf.append(indentString);
+        Util.quoteForMdx(buf, attr);
+        buf.append(": ");
+    }
+
     private void comma() {
+        drain(false);
         if (stack.peek().ordinal++ > 0) {
-            buf.append(",\n");
+            buf.append(',');
+        }
+        if (started) {
+            buf.append(nl);
         } else {
-            buf.append("\n");
+            started = true;
+        }
+    }
+
+    /**
+     * Writes the buffered text to the stream, if there is at least a chunk
+     * of it, or if {@code force}.
+     *
+     * <p>Called only between values, so a surrogate pair is never split
+     * across chunks.
+     *
+     * @param force Whether to write however little text is buffered
+     */
+    private void drain(boolean force) {
+        final int n = buf.length();
+        if (n == 0 || n < CHUNK_SIZE && !force) {
+            return;
+        }
+        if (n > chars.length) {
+            chars = new char[n];
+        }
+        buf.getChars(0, n, chars, 0);
+        try {
+            writer.write(chars, 0, n);
+        } catch (IOException e) {
+            throw Util.newError(e, "While encoding JSON response");
+        }
+        if (chars.length > CHUNK_SIZE * 2) {
+            // Do not hold on to the buffer of an unusually long value.
+            chars = new char[CHUNK_SIZE];
+        }
+        buf.setLength(0);
+        if (buf.capacity() > CHUNK_SIZE * 2) {
+            buf.trimToSize();
         }
     }
 
     private static class Frame {
+        /** Name of the elements of a sequence; null for an object. */
         final String name;
+        /** Name of the element or sequence that the frame belongs to. */
+        final String element;
         int ordinal;
 
-        Frame(String name) {
+        Frame(String name, String element) {
             this.name = name;
+            this.element = element;
         }
     }
 }
@@ -0,0 +1,756 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import mondrian.xmla.XmlaServlet;
+
+import org.olap4j.xmla.server.impl.NamedThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Session store in a memory-mapped file, which several JVMs on the same host
+ * can share. XML/A nodes behind a load balancer can then serve any request
+ * of a session, whichever node began it.
+ *
+ * <p>The file holds a fixed-size hash table. Writers (BeginSession,
+ * EndSession, eviction) take a lock on the file, so they are serialized
+ * across JVMs; readers take no lock, and detect a slot that is being written
+ * by its checksum. Lookups go through a near-cache in each JVM, so a
+ * session's requests usually do not touch the file; an entry in the
+ * near-cache is trusted for {@link #PARAM_NEAR_CACHE_TIMEOUT} seconds, so a
+ * session that one node ends may remain usable on others for that long.
+ *
+ * <p>Sessions expire after
+ * {@link ExpiringSessionStore#PARAM_SESSION_IDLE_TIMEOUT} seconds of
+ * idleness, as in {@link ExpiringSessionStore}.
+ *
+ * <p>The file contains user names, and passwords encrypted with a key
+ * derived from {@link #PARAM_SESSION_STORE_KEY}. Both parameters are
+ * required, and must be the same on every node. A file that this store
+ * creates can be read and written only by its owner; still, put it in a
+ * directory that only the server's user can read.
+ */
+public class MappedSessionStore implements SessionStore {
+    private static final Logger LOGGER =
+        Logger.getLogger(MappedSessionStore.class);
+
+    /**
+     * Servlet config parameter for the path of the file. Required; there is
+     * no default, because a shared directory such as "java.io.tmpdir" would
+     * expose the file to other users.
+     */
+    public static final String PARAM_SESSION_STORE_FILE = "SessionStoreFile";
+
+    /**
+     * Servlet config parameter for the secret from which the key that
+     * encrypts passwords in the file is derived. Required.
+     */
+    public static final String PARAM_SESSION_STORE_KEY = "SessionStoreKey";
+
+    /**
+     * Servlet config parameter for the number of sessions that the file can
+     * hold, if this JVM creates it. Default is 4096.
+     */
+    public static final String PARAM_SESSION_STORE_SLOTS =
+        "SessionStoreSlots";
+
+    /**
+     * Servlet config parameter for the number of seconds that a session read
+     * from the file is used without reading it again. Default is 5.
+     */
+    public static final String PARAM_NEAR_CACHE_TIMEOUT =
+        "SessionNearCacheTimeout";
+
+    private static final int DEFAULT_SLOT_COUNT = 4096;
+    private static final int DEFAULT_NEAR_CACHE_TIMEOUT = 5;
+    private static final int DEFAULT_SESSION_IDLE_TIMEOUT = 3600;
+
+    private static final int MAGIC = 0x584d4c53; // "XMLS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 512;
+
+    /** Maximum number of slots searched for a key. */
+    private static final int MAX_PROBE = 32;
+
+    // Slot layout.
+    private static final int STATE_OFFSET = 0;
+    private static final int CRC_OFFSET = 4;
+    private static final int LAST_ACCESS_OFFSET = 8;
+    private static final int PAYLOAD_LENGTH_OFFSET = 16;
+    private static final int PAYLOAD_OFFSET = 18;
+    private static final int MAX_PAYLOAD = SLOT_SIZE - PAYLOAD_OFFSET;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_USED = 1;
+    private static final int STATE_DELETED = 2;
+
+    private static final String UTF8 = "UTF-8";
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final int IV_SIZE = 16;
+    private static final SecureRandom IV_RANDOM = new SecureRandom();
+
+    private final ConcurrentMap<String, NearEntry> nearCache =
+        new ConcurrentHashMap<String, NearEntry>();
+    private final AtomicLong evictionCount = new AtomicLong();
+    /**
+     * Serializes writers within this JVM. Static, because a JVM cannot hold
+     * overlapping locks on a file, even through different stores.
+     */
+    private static final ReentrantLock WRITE_LOCK = new ReentrantLock();
+
+    /** Lock on the file; held with {@link #WRITE_LOCK}. */
+    private FileLock fileLock;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private long idleTimeoutMillis =
+        TimeUnit.SECONDS.toMillis(DEFAULT_SESSION_IDLE_TIMEOUT);
+    private long nearCacheTimeoutNanos =
+        TimeUnit.SECONDS.toNanos(DEFAULT_NEAR_CACHE_TIMEOUT);
+    private ScheduledExecutorService sweeper;
+    private SecretKeySpec key;
+
+    public void init(ServletConfig servletConfig) throws ServletException {
+        final String path =
+            servletConfig.getInitParameter(PARAM_SESSION_STORE_FILE);
+        if (path == null || path.length() == 0) {
+            throw new ServletException(
+                "Init parameter '" + PARAM_SESSION_STORE_FILE
+                + "' is required by " + MappedSessionStore.class.getName());
+        }
+        final String secret =
+            servletConfig.getInitParameter(PARAM_SESSION_STORE_KEY);
+        if (secret == null || secret.length() == 0) {
+            throw new ServletException(
+                "Init parameter '" + PARAM_SESSION_STORE_KEY
+                + "' is required by " + MappedSessionStore.class.getName());
+        }
+        final int idleTimeout =
+            XmlaServlet.getIntInitParameter(
+                servletConfig,
+                ExpiringSessionStore.PARAM_SESSION_IDLE_TIMEOUT,
+                DEFAULT_SESSION_IDLE_TIMEOUT);
+        final int nearCacheTimeout =
+            XmlaServlet.getIntInitParameter(
+                servletConfig,
+                PARAM_NEAR_CACHE_TIMEOUT,
+                DEFAULT_NEAR_CACHE_TIMEOUT);
+        final int slots =
+            XmlaServlet.getIntInitParameter(
+                servletConfig,
+                PARAM_SESSION_STORE_SLOTS,
+                DEFAULT_SLOT_COUNT);
+        try {
+            open(
+                new File(path), secret, slots, idleTimeout, nearCacheTimeout);
+        } catch (IOException e) {
+            throw new ServletException(
+                "Cannot open session store file '" + path + "'", e);
+        }
+    }
+
+    /**
+     * Opens the file, creating it if it does not exist, and starts the
+     * sweeper thread. {@link #init} calls this; call it if you create a store
+     * without a servlet.
+     *
+     * @param path File
+     * @param secret Secret from which the key that encrypts passwords is
+     *   derived
+     * @param slots Number of slots, if the file is created
+     * @param idleTimeoutSeconds Seconds a session may be idle, or 0
+     * @param nearCacheTimeoutSeconds Seconds a session is cached in this JVM
+     * @throws IOException on error
+     */
+    public void open(
+        File path,
+        String secret,
+        int slots,
+        int idleTimeoutSeconds,
+        int nearCacheTimeoutSeconds)
+        throws IOException
+    {
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.nearCacheTimeoutNanos =
+            TimeUnit.SECONDS.toNanos(nearCacheTimeoutSeconds);
+        this.key = deriveKey(secret);
+        if (path.createNewFile()) {
+            // Restrict the file to its owner before anything is written to
+            // it.
+            if (!(path.setReadable(false, false)
+                  && path.setReadable(true, true)
+                  && path.setWritable(false, false)
+                  && path.setWritable(true, true)))
+            {
+                LOGGER.warn(
+                    "Cannot restrict permissions of session store file '"
+                    + path + "'");
+            }
+        }
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+
+        // Whichever JVM gets here first formats the file; the others use
+        // the slot count recorded in its header.
+        WRITE_LOCK.lock();
+        final FileLock headerLock;
+        try {
+            headerLock = channel.lock(0, HEADER_SIZE, false);
+        } catch (IOException e) {
+            WRITE_LOCK.unlock();
+            throw e;
+        }
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() == HEADER_SIZE
+                && header.getInt(0) == MAGIC
+                && header.getInt(4) == VERSION
+                && header.getInt(12) == SLOT_SIZE)
+            {
+                slotCount = header.getInt(8);
+            } else {
+                slotCount = Math.max(slots, MAX_PROBE);
+                file.setLength(0);
+                file.setLength(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+                header.clear();
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(slotCount);
+                header.putInt(SLOT_SIZE);
+                header.clear();
+                channel.write(header, 0);
+            }
+            buffer =
+                channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    0,
+                    HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        } finally {
+            headerLock.release();
+            WRITE_LOCK.unlock();
+        }
+        startSweeper();
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        final long periodMillis =
+            Math.max(
+                1000,
+                Math.min(
+                    60000,
+                    TimeUnit.NANOSECONDS.toMillis(nearCacheTimeoutNanos)));
+        sweeper =
+            Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("xmla-session-sweeper"));
+        sweeper.scheduleWithFixedDelay(
+            new Runnable() {
+                public void run() {
+                    try {
+                        sweep();
+                    } catch (Throwable t) {
+                        // Keep the sweeper alive.
+                        LOGGER.error("Error while evicting sessions", t);
+                    }
+                }
+            },
+            periodMillis,
+            periodMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    public SessionInfo get(String sessionId) {
+        final long now = System.nanoTime();
+        final NearEntry nearEntry = nearCache.get(sessionId);
+        if (nearEntry != null && nearEntry.local) {
+            // The session is only in this JVM; expire it as the file would.
+            if (isLocalExpired(nearEntry, now)) {
+                if (nearCache.remove(sessionId, nearEntry)) {
+                    evictionCount.incrementAndGet();
+                }
+                return null;
+            }
+            nearEntry.loadedNanos = now;
+            return nearEntry.sessionInfo;
+        }
+        if (nearEntry != null
+            && now - nearEntry.loadedNanos < nearCacheTimeoutNanos)
+        {
+            return nearEntry.sessionInfo;
+        }
+        final Slot slot = find(sessionId);
+        if (slot == null) {
+            if (nearEntry != null) {
+                nearCache.remove(sessionId, nearEntry);
+            }
+            return null;
+        }
+        // Record the access in the file, so that other JVMs do not expire
+        // the session. Not locked: the access time is not checksummed, and
+        // a lost update only shortens the session's life a little.
+        buffer.putLong(
+            slotPosition(slot.index) + LAST_ACCESS_OFFSET,
+            System.currentTimeMillis());
+        nearCache.put(sessionId, new NearEntry(slot.sessionInfo, now, false));
+        return slot.sessionInfo;
+    }
+
+    public void put(String sessionId, SessionInfo sessionInfo) {
+        final byte[] payload = encode(key, sessionId, sessionInfo);
+        if (payload.length > MAX_PAYLOAD) {
+            LOGGER.warn(
+                "Credentials of session [" + sessionId + "] are too long for "
+                + "the shared session store; session is local to this node");
+            nearCache.put(
+                sessionId, new NearEntry(sessionInfo, System.nanoTime(), true));
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        lock();
+        try {
+            final int home = home(sessionId);
+            int target = -1;
+            int oldest = -1;
+            long oldestAccess = Long.MAX_VALUE;
+            for (int probe = 0; probe < MAX_PROBE; probe++) {
+                final int index = (home + probe) % slotCount;
+                final int position = slotPosition(index);
+                final int state = buffer.getInt(position + STATE_OFFSET);
+                if (state == STATE_FREE) {
+                    if (target < 0) {
+                        target = index;
+                    }
+                    break;
+                }
+                if (state == STATE_USED) {
+                    final Slot slot = read(index);
+                    if (slot != null && slot.sessionId.equals(sessionId)) {
+                        target = index;
+                        break;
+                    }
+                    final long lastAccess =
+                        buffer.getLong(position + LAST_ACCESS_OFFSET);
+                    if (target < 0 && isExpired(lastAccess, now)) {
+                        target = index;
+                    }
+                    if (lastAccess < oldestAccess) {
+                        oldestAccess = lastAccess;
+                        oldest = index;
+                    }
+                } else if (target < 0) {
+                    target = index;
+                }
+            }
+            if (target < 0) {
+                // No room near the session's home slot; evict the least
+                // recently used session there.
+                target = oldest;
+                evictionCount.incrementAndGet();
+            } else if (buffer.getInt(slotPosition(target) + STATE_OFFSET)
+                == STATE_USED)
+            {
+                final Slot slot = read(target);
+                if (slot == null || !slot.sessionId.equals(sessionId)) {
+                    // Reusing the slot of an expired session.
+                    evictionCount.incrementAndGet();
+                }
+            }
+            write(target, payload, now);
+        } finally {
+            unlock();
+        }
+        nearCache.put(
+            sessionId, new NearEntry(sessionInfo, System.nanoTime(), false));
+    }
+
+    public void remove(String sessionId) {
+        nearCache.remove(sessionId);
+        lock();
+        try {
+            final Slot slot = find(sessionId);
+            if (slot != null) {
+                buffer.putInt(
+                    slotPosition(slot.index) + STATE_OFFSET, STATE_DELETED);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    public int size() {
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        for (int index = 0; index < slotCount; index++) {
+            final int position = slotPosition(index);
+            if (buffer.getInt(position + STATE_OFFSET) == STATE_USED
+                && !isExpired(
+                    buffer.getLong(position + LAST_ACCESS_OFFSET), now))
+            {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+        nearCache.clear();
+        if (file != null) {
+            try {
+                buffer.force();
+                file.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error while closing session store file", e);
+            }
+            file = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Removes stale entries and idle local sessions from the near-cache, and
+     * expired sessions from the file.
+     */
+    void sweep() {
+        final long nanos = System.nanoTime();
+        int count = 0;
+        for (Map.Entry<String, NearEntry> e : nearCache.entrySet()) {
+            final NearEntry nearEntry = e.getValue();
+            if (nearEntry.local) {
+                if (isLocalExpired(nearEntry, nanos)
+                    && nearCache.remove(e.getKey(), nearEntry))
+                {
+                    ++count;
+                }
+            } else if (nanos - nearEntry.loadedNanos >= nearCacheTimeoutNanos)
+            {
+                nearCache.remove(e.getKey(), nearEntry);
+            }
+        }
+        if (idleTimeoutMillis <= 0) {
+            evictionCount.addAndGet(count);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        lock();
+        try {
+            for (int index = 0; index < slotCount; index++) {
+                final int position = slotPosition(index);
+                if (buffer.getInt(position + STATE_OFFSET) == STATE_USED
+                    && isExpired(
+                        buffer.getLong(position + LAST_ACCESS_OFFSET), now))
+                {
+                    buffer.putInt(position + STATE_OFFSET, STATE_DELETED);
+                    ++count;
+                }
+            }
+        } finally {
+            unlock();
+        }
+        evictionCount.addAndGet(count);
+        if (count > 0 && LOGGER.isDebugEnabled()) {
+            LOGGER.debug(
+                "Evicted " + count + " idle session(s) from shared store; "
+                + evictionCount.get() + " evicted in total");
+        }
+    }
+
+    /**
+     * Takes the write lock, first within this JVM (a JVM cannot hold
+     * overlapping file locks), then across JVMs.
+     */
+    private void lock() {
+        WRITE_LOCK.lock();
+        try {
+            fileLock = channel.lock(0, HEADER_SIZE, false);
+        } catch (IOException e) {
+            WRITE_LOCK.unlock();
+            throw new RuntimeException(
+                "Cannot lock session store file", e);
+        }
+    }
+
+    private void unlock() {
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            LOGGER.warn("Error while unlocking session store file", e);
+        } finally {
+            fileLock = null;
+            WRITE_LOCK.unlock();
+        }
+    }
+
+    private boolean isExpired(long lastAccessMillis, long now) {
+        return idleTimeoutMillis > 0
+            && now - lastAccessMillis > idleTimeoutMillis;
+    }
+
+    private boolean isLocalExpired(NearEntry nearEntry, long nanos) {
+        return idleTimeoutMillis > 0
+            && TimeUnit.NANOSECONDS.toMillis(nanos - nearEntry.loadedNanos)
+            > idleTimeoutMillis;
+    }
+
+    private int home(String sessionId) {
+        return (sessionId.hashCode() & 0x7fffffff) % slotCount;
+    }
+
+    private static int slotPosition(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    /**
+     * Finds the slot of a session that has not expired, or returns null.
+     */
+    private Slot find(String sessionId) {
+        final long now = System.currentTimeMillis();
+        final int home = home(sessionId);
+        for (int probe = 0; probe < MAX_PROBE; probe++) {
+            final int index = (home + probe) % slotCount;
+            final int position = slotPosition(index);
+            final int state = buffer.getInt(position + STATE_OFFSET);
+            if (state == STATE_FREE) {
+                return null;
+            }
+            if (state == STATE_USED) {
+                final Slot slot = read(index);
+                if (slot != null && slot.sessionId.equals(sessionId)) {
+                    if (isExpired(
+                            buffer.getLong(position + LAST_ACCESS_OFFSET),
+                            now))
+                    {
+                        return null;
+                    }
+                    return slot;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a slot, retrying while another JVM is writing it. Returns null
+     * if the slot is not in use, or stays inconsistent.
+     */
+    private Slot read(int index) {
+        final ByteBuffer slotBuffer = buffer.duplicate();
+        final int position = slotPosition(index);
+        final byte[] payload = new byte[MAX_PAYLOAD];
+        final CRC32 crc = new CRC32();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            if (slotBuffer.getInt(position + STATE_OFFSET) != STATE_USED) {
+                return null;
+            }
+            final int expectedCrc = slotBuffer.getInt(position + CRC_OFFSET);
+            final int length =
+                slotBuffer.getShort(position + PAYLOAD_LENGTH_OFFSET);
+            if (length >= 0 && length <= MAX_PAYLOAD) {
+                slotBuffer.position(position + PAYLOAD_OFFSET);
+                slotBuffer.get(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() == expectedCrc) {
+                    return decode(key, index, payload, length);
+                }
+            }
+            Thread.yield();
+        }
+        return null;
+    }
+
+    private void write(int index, byte[] payload, long now) {
+        final int position = slotPosition(index);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteBuffer slotBuffer = buffer.duplicate();
+        slotBuffer.putInt(position + STATE_OFFSET, STATE_USED);
+        slotBuffer.putInt(position + CRC_OFFSET, (int) crc.getValue());
+        slotBuffer.putLong(position + LAST_ACCESS_OFFSET, now);
+        slotBuffer.putShort(
+            position + PAYLOAD_LENGTH_OFFSET, (short) payload.length);
+        slotBuffer.position(position + PAYLOAD_OFFSET);
+        slotBuffer.put(payload);
+    }
+
+    private static SecretKeySpec deriveKey(String secret) throws IOException {
+        try {
+            final byte[] digest =
+                MessageDigest.getInstance("SHA-256").digest(
+                    secret.getBytes(UTF8));
+            return new SecretKeySpec(digest, 0, 16, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot derive session store key: " + e);
+        }
+    }
+
+    private static byte[] encode(
+        SecretKeySpec key,
+        String sessionId,
+        SessionInfo sessionInfo)
+    {
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(baos);
+            writeString(out, sessionId);
+            writeString(out, sessionInfo.getUser());
+            final String password = sessionInfo.getPassword();
+            if (password == null) {
+                out.writeShort(-1);
+            } else {
+                final byte[] iv = new byte[IV_SIZE];
+                IV_RANDOM.nextBytes(iv);
+                final Cipher cipher = Cipher.getInstance(CIPHER);
+                cipher.init(
+                    Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                final byte[] encrypted =
+                    cipher.doFinal(password.getBytes(UTF8));
+                out.writeShort(iv.length + encrypted.length);
+                out.write(iv);
+                out.write(encrypted);
+            }
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Cannot encrypt password", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        if (s == null) {
+            out.writeShort(-1);
+        } else {
+            final byte[] bytes = s.getBytes(UTF8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Slot decode(
+        SecretKeySpec key,
+        int index,
+        byte[] payload,
+        int length)
+    {
+        try {
+            final DataInputStream in =
+                new DataInputStream(
+                    new ByteArrayInputStream(payload, 0, length));
+            final String sessionId = readString(in);
+            final String user = readString(in);
+            final String password;
+            final int passwordLength = in.readShort();
+            if (passwordLength < 0) {
+                password = null;
+            } else {
+                final byte[] bytes = new byte[passwordLength];
+                in.readFully(bytes);
+                final Cipher cipher = Cipher.getInstance(CIPHER);
+                cipher.init(
+                    Cipher.DECRYPT_MODE,
+                    key,
+                    new IvParameterSpec(bytes, 0, IV_SIZE));
+                password =
+                    new String(
+                        cipher.doFinal(
+                            bytes, IV_SIZE, passwordLength - IV_SIZE),
+                        UTF8);
+            }
+            return new Slot(index, sessionId, new SessionInfo(user, password));
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            // Written with a different key, or corrupt.
+            return null;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readShort();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Session read from a slot of the file.
+     */
+    private static class Slot {
+        final int index;
+        final String sessionId;
+        final SessionInfo sessionInfo;
+
+        Slot(int index, String sessionId, SessionInfo sessionInfo) {
+            this.index = index;
+            this.sessionId = sessionId;
+            this.sessionInfo = sessionInfo;
+        }
+    }
+
+    /**
+     * Session in the near-cache, and when it was read from the file (or, if
+     * it is local, last used).
+     */
+    private static class NearEntry {
+        final SessionInfo sessionInfo;
+        volatile long loadedNanos;
+        /** Whether the session is only in this JVM, because it did not fit
+         * in the file. */
+        final boolean local;
+
+        NearEntry(SessionInfo sessionInfo, long loadedNanos, boolean local) {
+            this.sessionInfo = sessionInfo;
+            this.loadedNanos = loadedNanos;
+            this.local = local;
+        }
+    }
+}
+
+// End MappedSessionStore.java
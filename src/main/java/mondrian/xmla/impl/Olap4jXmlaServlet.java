@@ -22,9 +22,10 @@ import org.olap4j.OlapConnection;
 import org.olap4j.OlapWrapper;
 
 import java.lang.reflect.*;
-import java.sql.Connection;
-import java.sql.SQLException;
+import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
@@ -205,18 +206,21 @@ public class Olap4jXmlaServlet extends DefaultXmlaServlet {
     }
 
     private static class Olap4jPoolingConnectionFactory
-        implements XmlaHandler.ConnectionFactory
+        implements XmlaHandler.ConnectionFactory, XmlaHandler.RequestCanceler
     {
         private final String olap4jDriverConnectionString;
         private final Properties connProperties;
         private final Map<String, Object> discoverDatasourcesResponse;
         private final String olap4jDriverClassName;
-        private final Map<String, BasicDataSource> datasourcesPool =
-            new HashMap<String, BasicDataSource>();
+        private final ConcurrentMap<String, PooledDataSource> datasourcesPool =
+            new ConcurrentHashMap<String, PooledDataSource>();
         private final int idleConnectionsCleanupTimeoutMs;
         private final int maxPerUserConnectionCount;
         private final XmlaHandler.XmlaExtra extra =
             new XmlaHandler.XmlaExtraImpl();
+        private final ConcurrentMap<InFlightRequest, Boolean>
+            inFlightRequests =
+                new ConcurrentHashMap<InFlightRequest, Boolean>();
 
         /**
          * Creates an Olap4jPoolingConnectionFactory.
@@ -266,59 +270,102 @@ public class Olap4jXmlaServlet extends DefaultXmlaServlet {
             // simply all be created by the same BasicDataSource object
             final String dataSourceKey = user + "_" + pwd;
 
-            BasicDataSource bds;
-            synchronized (datasourcesPool) {
-                bds = datasourcesPool.get(dataSourceKey);
-                if (bds == null) {
-                    bds = new BasicDataSource();
-                    for (Map.Entry entry : connProperties.entrySet()) {
-                        bds.addConnectionProperty(
-                            (String) entry.getKey(),
-                            (String) entry.getValue());
-                    }
-                    bds.setDefaultReadOnly(true);
-                    bds.setDriverClassName(olap4jDriverClassName);
-                    bds.setPassword(pwd);
-                    bds.setUsername(user);
-                    bds.setUrl(olap4jDriverConnectionString);
-                    bds.setPoolPreparedStatements(false);
-                    bds.setMaxIdle(maxPerUserConnectionCount);
-                    bds.setMaxActive(maxPerUserConnectionCount);
-                    bds.setMinEvictableIdleTimeMillis(
-                        idleConnectionsCleanupTimeoutMs);
-                    bds.setAccessToUnderlyingConnectionAllowed(true);
-                    bds.setInitialSize(1);
-                    bds.setTimeBetweenEvictionRunsMillis(60000);
-                    if (catalog != null) {
-                        bds.setDefaultCatalog(catalog);
-                    }
-                    datasourcesPool.put(dataSourceKey, bds);
+            PooledDataSource pds = datasourcesPool.get(dataSourceKey);
+            if (pds == null) {
+                // A data source creates no connections until asked, so if
+                // another thread wins the race, just discard this one.
+                final PooledDataSource newPds =
+                    new PooledDataSource(createDataSource(catalog, user, pwd));
+                pds = datasourcesPool.putIfAbsent(dataSourceKey, newPds);
+                if (pds == null) {
+                    pds = newPds;
                 }
             }
 
-            Connection connection = bds.getConnection();
-            DelegatingConnection dc = (DelegatingConnection) connection;
-            Connection underlyingOlapConnection = dc.getInnermostDelegate();
-            OlapConnection olapConnection =
-                unwrap(underlyingOlapConnection, OlapConnection.class);
-
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(
-                    "Obtained connection object [" + olapConnection
-                    + "] (ext pool wrapper " + connection + ") for key "
-                    + dataSourceKey);
+            // Wait for a free connection here, rather than inside DBCP's
+            // synchronized pool, so that a virtual thread that is waiting
+            // does not pin its carrier thread. The permit is released when
+            // the connection is closed.
+            try {
+                pds.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw (SQLException) new SQLException(
+                    "Interrupted while waiting for connection").initCause(e);
             }
-            if (catalog != null) {
-                olapConnection.setCatalog(catalog);
+            Connection connection = null;
+            boolean success = false;
+            try {
+                connection = pds.dataSource.getConnection();
+                DelegatingConnection dc = (DelegatingConnection) connection;
+                Connection underlyingOlapConnection =
+                    dc.getInnermostDelegate();
+                OlapConnection olapConnection =
+                    unwrap(underlyingOlapConnection, OlapConnection.class);
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(
+                        "Obtained connection object [" + olapConnection
+                        + "] (ext pool wrapper " + connection + ") for key "
+                        + dataSourceKey);
+                }
+                if (catalog != null) {
+                    olapConnection.setCatalog(catalog);
+                }
+                if (schema != null) {
+                    olapConnection.setSchema(schema);
+                }
+                if (roleName != null) {
+                    olapConnection.setRoleName(roleName);
+                }
+
+                final OlapConnection result =
+                    createDelegatingOlapConnection(
+                        connection, olapConnection, pds.permits);
+                success = true;
+                return result;
+            } finally {
+                if (!success) {
+                    pds.permits.release();
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (SQLException e) {
+                            // ignore
+                        }
+                    }
+                }
             }
-            if (schema != null) {
-                olapConnection.setSchema(schema);
+        }
+
+        private BasicDataSource createDataSource(
+            String catalog,
+            String user,
+            String pwd)
+        {
+            final BasicDataSource bds = new BasicDataSource();
+            for (Map.Entry entry : connProperties.entrySet()) {
+                bds.addConnectionProperty(
+                    (String) entry.getKey(),
+                    (String) entry.getValue());
             }
-            if (roleName != null) {
-                olapConnection.setRoleName(roleName);
+            bds.setDefaultReadOnly(true);
+            bds.setDriverClassName(olap4jDriverClassName);
+            bds.setPassword(pwd);
+            bds.setUsername(user);
+            bds.setUrl(olap4jDriverConnectionString);
+            bds.setPoolPreparedStatements(false);
+            bds.setMaxIdle(maxPerUserConnectionCount);
+            bds.setMaxActive(maxPerUserConnectionCount);
+            bds.setMinEvictableIdleTimeMillis(
+                idleConnectionsCleanupTimeoutMs);
+            bds.setAccessToUnderlyingConnectionAllowed(true);
+            bds.setInitialSize(1);
+            bds.setTimeBetweenEvictionRunsMillis(60000);
+            if (catalog != null) {
+                bds.setDefaultCatalog(catalog);
             }
-
-            return createDelegatingOlapConnection(connection, olapConnection);
+            return bds;
         }
 
         public Map<String, Object> getPreConfiguredDiscoverDatasourcesResponse()
@@ -330,12 +377,38 @@ public class Olap4jXmlaServlet extends DefaultXmlaServlet {
             XmlaRequest request,
             OlapConnection connection)
         {
-            // This XMLA server implementation does not track requests.
-            return null;
+            // Only requests in a session can be canceled, so only they are
+            // tracked.
+            final String sessionId = request.getSessionId();
+            if (sessionId == null || connection == null) {
+                return null;
+            }
+            final InFlightRequest inFlightRequest =
+                new InFlightRequest(sessionId, connection);
+            inFlightRequests.put(inFlightRequest, Boolean.TRUE);
+            return inFlightRequest;
         }
 
         public void endRequest(XmlaHandler.Request request) {
-            // This XMLA server implementation does not track requests.
+            if (request != null) {
+                inFlightRequests.remove(request);
+            }
+        }
+
+        public int cancelRequests(String sessionId) {
+            int count = 0;
+            for (InFlightRequest inFlightRequest : inFlightRequests.keySet()) {
+                if (inFlightRequest.sessionId.equals(sessionId)) {
+                    final DelegatingConnectionHandler handler =
+                        DelegatingConnectionHandler.of(
+                            inFlightRequest.connection);
+                    if (handler != null) {
+                        handler.cancelStatements();
+                        ++count;
+                    }
+                }
+            }
+            return count;
         }
 
         public XmlaHandler.XmlaExtra getExtra() {
@@ -414,35 +487,147 @@ public class Olap4jXmlaServlet extends DefaultXmlaServlet {
      * Returns something that implements {@link OlapConnection} but still
      * behaves as the wrapper returned by the connection pool.
      *
-     * <p>In other words we want the "close" method to play nice and do all the
-     * pooling actions while we want all the olap methods to execute directly on
-     * the un-wrapped OlapConnection object.
+     * <p>In other words we want the "close" method to play nice and do all
+     * the pooling actions (returning the connection to the pool) while we
+     * want all the olap methods to execute directly on the un-wrapped
+     * OlapConnection object.
+     *
+     * @param connection Connection from pool
+     * @param olapConnection Underlying OlapConnection
+     * @param permits Permits of the pool; one is released when the
+     *     connection is first closed
      */
     private static OlapConnection createDelegatingOlapConnection(
         final Connection connection,
-        final OlapConnection olapConnection)
+        final OlapConnection olapConnection,
+        final Semaphore permits)
     {
         return (OlapConnection) Proxy.newProxyInstance(
             olapConnection.getClass().getClassLoader(),
             new Class[] {OlapConnection.class},
-            new InvocationHandler() {
-                public Object invoke(
-                    Object proxy,
-                    Method method,
-                    Object[] args)
-                    throws Throwable
-                {
-                    if ("unwrap".equals(method.getName())
-                        || OlapConnection.class
-                        .isAssignableFrom(method.getDeclaringClass()))
-                    {
-                        return method.invoke(olapConnection, args);
-                    } else {
-                        return method.invoke(connection, args);
+            new DelegatingConnectionHandler(
+                connection, olapConnection, permits));
+    }
+
+    /**
+     * Handler of the proxy that {@link #createDelegatingOlapConnection}
+     * returns. Remembers the statements created on the connection, so that
+     * a Cancel command can cancel them.
+     */
+    private static class DelegatingConnectionHandler
+        implements InvocationHandler
+    {
+        private final Connection connection;
+        private final OlapConnection olapConnection;
+        private final Semaphore permits;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Queue<Statement> statements =
+            new ConcurrentLinkedQueue<Statement>();
+
+        DelegatingConnectionHandler(
+            Connection connection,
+            OlapConnection olapConnection,
+            Semaphore permits)
+        {
+            this.connection = connection;
+            this.olapConnection = olapConnection;
+            this.permits = permits;
+        }
+
+        /**
+         * Returns the handler of a connection created by this factory, or
+         * null.
+         */
+        static DelegatingConnectionHandler of(OlapConnection connection) {
+            if (Proxy.isProxyClass(connection.getClass())) {
+                final InvocationHandler handler =
+                    Proxy.getInvocationHandler(connection);
+                if (handler instanceof DelegatingConnectionHandler) {
+                    return (DelegatingConnectionHandler) handler;
+                }
+            }
+            return null;
+        }
+
+        public Object invoke(
+            Object proxy,
+            Method method,
+            Object[] args)
+            throws Throwable
+        {
+            if ("unwrap".equals(method.getName())
+                || OlapConnection.class
+                .isAssignableFrom(method.getDeclaringClass()))
+            {
+                return track(method.invoke(olapConnection, args));
+            } else if ("close".equals(method.getName())) {
+                try {
+                    return method.invoke(connection, args);
+                } finally {
+                    statements.clear();
+                    if (closed.compareAndSet(false, true)) {
+                        permits.release();
                     }
                 }
+            } else {
+                return track(method.invoke(connection, args));
+            }
+        }
+
+        private Object track(Object o) {
+            if (o instanceof Statement) {
+                statements.add((Statement) o);
             }
-        );
+            return o;
+        }
+
+        /**
+         * Cancels the statements created on this connection. The thread
+         * running each statement sees it fail, and closes the connection,
+         * which returns it to the pool.
+         */
+        void cancelStatements() {
+            for (Statement statement : statements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    LOGGER.warn("Error while canceling statement", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pooled data source for one set of credentials, and permits that limit
+     * how many of its connections may be in use.
+     */
+    private static class PooledDataSource {
+        final BasicDataSource dataSource;
+        final Semaphore permits;
+
+        PooledDataSource(BasicDataSource dataSource) {
+            this.dataSource = dataSource;
+            // DBCP treats a non-positive limit as no limit.
+            final int maxActive = dataSource.getMaxActive();
+            this.permits =
+                new Semaphore(
+                    maxActive > 0 ? maxActive : Integer.MAX_VALUE, true);
+        }
+    }
+
+    /**
+     * Request of a session that is running on a connection, between
+     * {@link Olap4jPoolingConnectionFactory#startRequest} and
+     * {@link Olap4jPoolingConnectionFactory#endRequest}.
+     */
+    private static class InFlightRequest implements XmlaHandler.Request {
+        final String sessionId;
+        final OlapConnection connection;
+
+        InFlightRequest(String sessionId, OlapConnection connection) {
+            this.sessionId = sessionId;
+            this.connection = connection;
+        }
     }
 }
 
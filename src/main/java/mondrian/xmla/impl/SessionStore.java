@@ -0,0 +1,104 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Stores the credentials of XML/A sessions, keyed by session id.
+ *
+ * <p>{@link DefaultXmlaServlet} creates the store named by its
+ * {@link DefaultXmlaServlet#PARAM_SESSION_STORE SessionStore} init
+ * parameter (by default, {@link ExpiringSessionStore}), calls
+ * {@link #init(ServletConfig)}, and calls {@link #destroy()} when the servlet
+ * is destroyed. Implementations must have a public no-argument constructor
+ * and be safe for use by concurrent requests.
+ */
+public interface SessionStore {
+    /**
+     * Initializes the store.
+     *
+     * @param servletConfig Configuration of the servlet
+     * @throws ServletException on error
+     */
+    void init(ServletConfig servletConfig) throws ServletException;
+
+    /**
+     * Returns the credentials of a session, or null if the session is
+     * unknown or has expired. Counts as an access to the session.
+     *
+     * @param sessionId Session id
+     * @return Credentials, or null
+     */
+    SessionInfo get(String sessionId);
+
+    /**
+     * Stores the credentials of a session, replacing any that were stored
+     * before.
+     *
+     * @param sessionId Session id
+     * @param sessionInfo Credentials
+     */
+    void put(String sessionId, SessionInfo sessionInfo);
+
+    /**
+     * Removes a session, for example because the client has ended it.
+     *
+     * @param sessionId Session id
+     */
+    void remove(String sessionId);
+
+    /**
+     * Returns the number of sessions in the store.
+     */
+    int size();
+
+    /**
+     * Returns the number of sessions that the store has evicted (because
+     * they were idle for too long, or because the store was full) since it
+     * was created.
+     */
+    long getEvictionCount();
+
+    /**
+     * Releases the resources of the store.
+     */
+    void destroy();
+
+    /**
+     * Credentials of an XML/A session.
+     */
+    public static final class SessionInfo {
+        private final String user;
+        private final String password;
+
+        /**
+         * Creates a SessionInfo.
+         *
+         * @param user User name
+         * @param password Password
+         */
+        public SessionInfo(String user, String password) {
+            this.user = user;
+            this.password = password;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+    }
+}
+
+// End SessionStore.java
@@ -0,0 +1,647 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import mondrian.xmla.XmlaConstants;
+import mondrian.xmla.XmlaUtil;
+
+import org.olap4j.xmla.server.impl.Util;
+
+import org.w3c.dom.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.xml.parsers.*;
+
+/**
+ * Parses a SOAP request in a single pass over a stream of SAX events,
+ * collecting just what {@link DefaultXmlaServlet} and
+ * {@link DefaultXmlaRequest} need, without building a DOM tree.
+ *
+ * <p>The parser counts elements rather than rejecting unexpected ones on
+ * the spot, so that an invalid request is reported with the same fault, in
+ * the same phase, as it would be by the DOM-based code.
+ *
+ * <p>Code that still wants the request as DOM {@link Element}s (callbacks,
+ * say) can have them: {@link #lazyElement} returns an element that parses
+ * the request into a DOM tree the first time one of its methods is called.
+ */
+class SoapMessageParser implements XmlaConstants {
+    private static final int MAX_POOLED_READERS = 16;
+
+    private final SAXParserFactory saxFactory;
+    private final DocumentBuilderFactory domFactory;
+    private static final DefaultHandler NULL_HANDLER = new DefaultHandler();
+
+    /** Idle readers. A SAX reader may be reused once a parse is complete. */
+    private final Queue<XMLReader> readers =
+        new ConcurrentLinkedQueue<XMLReader>();
+
+    /**
+     * Creates a SoapMessageParser.
+     *
+     * @param domFactory Factory for DOM builders, used if someone asks for
+     *   the request as DOM elements
+     */
+    SoapMessageParser(DocumentBuilderFactory domFactory) {
+        this.domFactory = domFactory;
+        this.saxFactory = SAXParserFactory.newInstance();
+        saxFactory.setNamespaceAware(true);
+        try {
+            // A SOAP message must not contain a document type declaration.
+            saxFactory.setFeature(
+                "http://apache.org/xml/features/disallow-doctype-decl",
+                true);
+        } catch (Exception e) {
+            // Not supported by this parser; carry on without.
+        }
+    }
+
+    /**
+     * Parses a SOAP message.
+     *
+     * @param bytes Content of the request
+     * @return Parsed message
+     */
+    SoapMessage parse(byte[] bytes)
+        throws ParserConfigurationException, SAXException, IOException
+    {
+        XMLReader reader = readers.poll();
+        if (reader == null) {
+            reader = saxFactory.newSAXParser().getXMLReader();
+        }
+        final SoapMessage message = new SoapMessage(bytes);
+        final Handler handler = new Handler(message);
+        try {
+            reader.setContentHandler(handler);
+            reader.setErrorHandler(handler);
+            reader.parse(new InputSource(new ByteArrayInputStream(bytes)));
+        } finally {
+            reader.setContentHandler(NULL_HANDLER);
+            reader.setErrorHandler(NULL_HANDLER);
+            if (readers.size() < MAX_POOLED_READERS) {
+                readers.offer(reader);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Returns an element that stands for the SOAP Header (part 0) or Body
+     * (part 1) of a parsed message. It becomes a real DOM element when it is
+     * first used.
+     */
+    Element lazyElement(SoapMessage message, int part) {
+        return (Element) Proxy.newProxyInstance(
+            SoapMessageParser.class.getClassLoader(),
+            new Class<?>[] {Element.class},
+            new LazyElementHandler(message, part));
+    }
+
+    /**
+     * Returns a parsed message as a DOM document.
+     */
+    Document toDocument(SoapMessage message) {
+        return message.toDocument(domFactory);
+    }
+
+    /**
+     * Returns the parsed message behind an element created by
+     * {@link #lazyElement}, or null if the element is an ordinary DOM element.
+     */
+    static SoapMessage getMessage(Element element) {
+        if (element != null && Proxy.isProxyClass(element.getClass())) {
+            final InvocationHandler handler =
+                Proxy.getInvocationHandler(element);
+            if (handler instanceof LazyElementHandler) {
+                return ((LazyElementHandler) handler).message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts the children of a DOM SOAP Header element into header
+     * entries.
+     */
+    static List<HeaderEntry> headerEntries(Element hdrElem) {
+        final List<HeaderEntry> entries = new ArrayList<HeaderEntry>();
+        NodeList nlst = hdrElem.getChildNodes();
+        for (int i = 0, nlen = nlst.getLength(); i < nlen; i++) {
+            Node n = nlst.item(i);
+            if (!(n instanceof Element)) {
+                continue;
+            }
+            Element e = (Element) n;
+            final HeaderEntry entry =
+                new HeaderEntry(e.getNamespaceURI(), e.getLocalName());
+            Attr attr = e.getAttributeNode(SOAP_MUST_UNDERSTAND_ATTR);
+            entry.mustUnderstand = attr == null ? null : attr.getValue();
+            attr = e.getAttributeNode(XMLA_SESSION_ID);
+            entry.sessionId = attr == null ? null : attr.getValue();
+            if (entry.isSecurity()) {
+                entry.username = firstText(e, "Username");
+                entry.password = firstText(e, "Password");
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static String firstText(Element e, String localName) {
+        final NodeList nodes = e.getElementsByTagNameNS("*", localName);
+        if (nodes.getLength() == 0) {
+            return null;
+        }
+        final Node child = nodes.item(0).getFirstChild();
+        return child == null ? null : child.getNodeValue();
+    }
+
+    /**
+     * What the parser has learned about a SOAP message.
+     */
+    static class SoapMessage {
+        /** Content of the request; kept in case someone asks for DOM. */
+        private final byte[] bytes;
+        private Document document;
+        private Element[] domParts;
+
+        String rootNamespace;
+        String rootLocalName;
+        int headerCount;
+        int bodyCount;
+        final List<HeaderEntry> headerEntries = new ArrayList<HeaderEntry>();
+        int discoverCount;
+        int executeCount;
+        /** First Discover or Execute element in the body, or null. */
+        MethodElement method;
+
+        SoapMessage(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns this message as a DOM document, parsing it the first time.
+         */
+        Document toDocument(DocumentBuilderFactory domFactory) {
+            if (document == null) {
+                try {
+                    document =
+                        domFactory.newDocumentBuilder().parse(
+                            new InputSource(new ByteArrayInputStream(bytes)));
+                } catch (Exception e) {
+                    // The SAX parser read this message; DOM should too.
+                    throw Util.newInternal(e, "While building DOM of request");
+                }
+            }
+            return document;
+        }
+
+        /**
+         * Returns the DOM Header and Body elements of this message.
+         */
+        Element[] toDom(DocumentBuilderFactory domFactory) {
+            if (domParts == null) {
+                final Element envElem =
+                    toDocument(domFactory).getDocumentElement();
+                final Element[] headers =
+                    XmlaUtil.filterChildElements(
+                        envElem, NS_SOAP_ENV_1_1, "Header");
+                final Element[] bodies =
+                    XmlaUtil.filterChildElements(
+                        envElem, NS_SOAP_ENV_1_1, "Body");
+                domParts = new Element[] {
+                    headers.length == 1 ? headers[0] : null,
+                    bodies.length == 1 ? bodies[0] : null
+                };
+            }
+            return domParts;
+        }
+    }
+
+    /**
+     * Child element of the SOAP Header.
+     */
+    static class HeaderEntry {
+        final String namespace;
+        final String localName;
+        /** Value of "mustUnderstand" attribute, or null. */
+        String mustUnderstand;
+        /** Value of "SessionId" attribute, or null. */
+        String sessionId;
+        /** Text of the Username element in a Security entry. */
+        String username;
+        /** Text of the Password element in a Security entry. */
+        String password;
+
+        HeaderEntry(String namespace, String localName) {
+            this.namespace = namespace;
+            this.localName = localName;
+        }
+
+        boolean isSecurity() {
+            return XMLA_SECURITY.equals(localName)
+                && NS_SOAP_SECEXT.equals(namespace);
+        }
+    }
+
+    /**
+     * Discover or Execute element in the SOAP Body, or a command inside an
+     * Execute element's Batch.
+     */
+    static class MethodElement {
+        /** True for Discover, false for Execute. */
+        final boolean discover;
+
+        int requestTypeCount;
+        String requestType;
+
+        int propertiesCount;
+        int propertyListCount;
+        final Map<String, String> properties = new HashMap<String, String>();
+
+        int restrictionsCount;
+        int restrictionListCount;
+        final Map<String, List<String>> restrictions =
+            new HashMap<String, List<String>>();
+
+        int commandCount;
+        int statementCount;
+        String statement;
+        int cancelCount;
+        String cancelSessionId;
+        int batchCount;
+        /** Statements (as Execute elements) and Discovers in Batch. */
+        final List<MethodElement> batch = new ArrayList<MethodElement>();
+
+        MethodElement(boolean discover) {
+            this.discover = discover;
+        }
+    }
+
+    /**
+     * Role of an element in the message.
+     */
+    private enum Kind {
+        OTHER,
+        ENVELOPE,
+        HEADER,
+        BODY,
+        HEADER_ENTRY,
+        SECURITY,
+        USERNAME,
+        PASSWORD,
+        METHOD,
+        REQUEST_TYPE,
+        PROPERTIES,
+        PROPERTY_LIST,
+        PROPERTY,
+        RESTRICTIONS,
+        RESTRICTION_LIST,
+        RESTRICTION,
+        COMMAND,
+        STATEMENT,
+        CANCEL,
+        CANCEL_SESSION_ID,
+        BATCH,
+        BATCH_STATEMENT
+    }
+
+    /**
+     * SAX handler that fills in a {@link SoapMessage}.
+     */
+    private static class Handler extends DefaultHandler {
+        private final SoapMessage message;
+        private final List<Kind> stack = new ArrayList<Kind>();
+        private HeaderEntry headerEntry;
+        /** Method element being filled in; null if none, or not first. */
+        private MethodElement method;
+        /** Execute element whose Batch is being read, or null. */
+        private MethodElement batchMethod;
+        /** Local name of current property or restriction. */
+        private String key;
+        /** Text of the element being captured, or null. */
+        private StringBuilder text;
+        /** Depth of the element whose text is being captured. */
+        private int textDepth;
+
+        Handler(SoapMessage message) {
+            this.message = message;
+        }
+
+        public void startElement(
+            String uri,
+            String localName,
+            String qName,
+            Attributes attributes)
+        {
+            final Kind parent =
+                stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            final Kind kind = classify(parent, uri, localName, attributes);
+            stack.add(kind);
+            switch (kind) {
+            case USERNAME:
+            case PASSWORD:
+            case REQUEST_TYPE:
+            case PROPERTY:
+            case RESTRICTION:
+            case STATEMENT:
+            case CANCEL_SESSION_ID:
+            case BATCH_STATEMENT:
+                text = new StringBuilder();
+                textDepth = stack.size();
+                break;
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            // Like XmlaUtil.textInElement, use only the text directly
+            // inside the element.
+            if (text != null && stack.size() == textDepth) {
+                text.append(ch, start, length);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            final Kind kind = stack.remove(stack.size() - 1);
+            final String s;
+            if (text != null && stack.size() + 1 == textDepth) {
+                s = text.toString();
+                text = null;
+            } else {
+                s = null;
+            }
+            switch (kind) {
+            case USERNAME:
+                if (headerEntry.username == null) {
+                    headerEntry.username = s;
+                }
+                break;
+            case PASSWORD:
+                if (headerEntry.password == null) {
+                    headerEntry.password = s;
+                }
+                break;
+            case REQUEST_TYPE:
+                if (method.requestType == null) {
+                    method.requestType = s;
+                }
+                break;
+            case PROPERTY:
+                method.properties.put(key, s);
+                break;
+            case RESTRICTION:
+                List<String> values = method.restrictions.get(key);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    method.restrictions.put(key, values);
+                }
+                values.add(s);
+                break;
+            case STATEMENT:
+                if (method.statement == null) {
+                    method.statement = s;
+                }
+                break;
+            case CANCEL_SESSION_ID:
+                if (method.cancelSessionId == null) {
+                    method.cancelSessionId = s;
+                }
+                break;
+            case BATCH_STATEMENT:
+                batchMethod.batch.get(batchMethod.batch.size() - 1)
+                    .statement = s;
+                break;
+            case BATCH:
+                batchMethod = null;
+                break;
+            case METHOD:
+                // After a Discover inside a Batch, carry on with the Execute
+                // that contains the Batch.
+                method = batchMethod;
+                break;
+            }
+        }
+
+        private Kind classify(
+            Kind parent,
+            String uri,
+            String localName,
+            Attributes attributes)
+        {
+            if (parent == null) {
+                message.rootNamespace = uri;
+                message.rootLocalName = localName;
+                return Kind.ENVELOPE;
+            }
+            switch (parent) {
+            case ENVELOPE:
+                if (NS_SOAP_ENV_1_1.equals(uri)) {
+                    if ("Header".equals(localName)) {
+                        return ++message.headerCount == 1
+                            ? Kind.HEADER
+                            : Kind.OTHER;
+                    }
+                    if ("Body".equals(localName)) {
+                        return ++message.bodyCount == 1
+                            ? Kind.BODY
+                            : Kind.OTHER;
+                    }
+                }
+                return Kind.OTHER;
+
+            case HEADER:
+                headerEntry = new HeaderEntry(uri, localName);
+                headerEntry.mustUnderstand =
+                    attributes.getValue(SOAP_MUST_UNDERSTAND_ATTR);
+                headerEntry.sessionId = attributes.getValue(XMLA_SESSION_ID);
+                message.headerEntries.add(headerEntry);
+                return headerEntry.isSecurity()
+                    ? Kind.SECURITY
+                    : Kind.HEADER_ENTRY;
+
+            case SECURITY:
+            case USERNAME:
+            case PASSWORD:
+                if ("Username".equals(localName)) {
+                    return Kind.USERNAME;
+                }
+                if ("Password".equals(localName)) {
+                    return Kind.PASSWORD;
+                }
+                return Kind.SECURITY;
+
+            case BODY:
+                if (NS_XMLA.equals(uri)) {
+                    if ("Discover".equals(localName)) {
+                        ++message.discoverCount;
+                        return startMethod(true);
+                    }
+                    if ("Execute".equals(localName)) {
+                        ++message.executeCount;
+                        return startMethod(false);
+                    }
+                }
+                return Kind.OTHER;
+
+            case METHOD:
+                if (method == null || !NS_XMLA.equals(uri)) {
+                    return Kind.OTHER;
+                }
+                if ("RequestType".equals(localName)) {
+                    ++method.requestTypeCount;
+                    return Kind.REQUEST_TYPE;
+                }
+                if ("Properties".equals(localName)) {
+                    ++method.propertiesCount;
+                    return Kind.PROPERTIES;
+                }
+                if ("Restrictions".equals(localName)) {
+                    ++method.restrictionsCount;
+                    return Kind.RESTRICTIONS;
+                }
+                if ("Command".equals(localName)) {
+                    ++method.commandCount;
+                    return Kind.COMMAND;
+                }
+                return Kind.OTHER;
+
+            case PROPERTIES:
+                if (NS_XMLA.equals(uri) && "PropertyList".equals(localName)) {
+                    ++method.propertyListCount;
+                    return Kind.PROPERTY_LIST;
+                }
+                return Kind.OTHER;
+
+            case RESTRICTIONS:
+                if (NS_XMLA.equals(uri)
+                    && "RestrictionList".equals(localName))
+                {
+                    ++method.restrictionListCount;
+                    return Kind.RESTRICTION_LIST;
+                }
+                return Kind.OTHER;
+
+            case COMMAND:
+                if (NS_XMLA.equals(uri) && "Statement".equals(localName)) {
+                    ++method.statementCount;
+                    return Kind.STATEMENT;
+                }
+                // Clients put Cancel in the engine namespace, but accept
+                // any, like DefaultXmlaRequest.
+                if ("Cancel".equals(localName)) {
+                    ++method.cancelCount;
+                    return Kind.CANCEL;
+                }
+                // Likewise Batch.
+                if ("Batch".equals(localName)
+                    && batchMethod == null
+                    && ++method.batchCount == 1)
+                {
+                    batchMethod = method;
+                    return Kind.BATCH;
+                }
+                return Kind.OTHER;
+
+            case BATCH:
+                if ("Statement".equals(localName)) {
+                    final MethodElement statement = new MethodElement(false);
+                    statement.commandCount = 1;
+                    statement.statementCount = 1;
+                    batchMethod.batch.add(statement);
+                    return Kind.BATCH_STATEMENT;
+                }
+                if (NS_XMLA.equals(uri) && "Discover".equals(localName)) {
+                    method = new MethodElement(true);
+                    batchMethod.batch.add(method);
+                    return Kind.METHOD;
+                }
+                return Kind.OTHER;
+
+            case CANCEL:
+                if ("SessionID".equals(localName)) {
+                    return Kind.CANCEL_SESSION_ID;
+                }
+                return Kind.OTHER;
+
+            case PROPERTY_LIST:
+                if (NS_XMLA.equals(uri)) {
+                    key = localName;
+                    return Kind.PROPERTY;
+                }
+                return Kind.OTHER;
+
+            case RESTRICTION_LIST:
+                if (NS_XMLA.equals(uri)) {
+                    key = localName;
+                    return Kind.RESTRICTION;
+                }
+                return Kind.OTHER;
+
+            default:
+                return Kind.OTHER;
+            }
+        }
+
+        private Kind startMethod(boolean discover) {
+            if (message.method != null) {
+                // Only the first method is of interest. Having more than
+                // one is an error, which the servlet will report.
+                return Kind.OTHER;
+            }
+            method = message.method = new MethodElement(discover);
+            return Kind.METHOD;
+        }
+    }
+
+    /**
+     * Handler for an element created by {@link #lazyElement}. Parses the
+     * message into DOM on first use.
+     */
+    private class LazyElementHandler implements InvocationHandler {
+        private final SoapMessage message;
+        private final int part;
+
+        LazyElementHandler(SoapMessage message, int part) {
+            this.message = message;
+            this.part = part;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class) {
+                // Don't parse just to be put in a hash map.
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+            }
+            final Element element = message.toDom(domFactory)[part];
+            try {
+                return method.invoke(element, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
+
+// End SoapMessageParser.java
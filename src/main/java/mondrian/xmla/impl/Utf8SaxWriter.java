@@ -0,0 +1,591 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package mondrian.xmla.impl;
+
+import mondrian.xmla.SaxWriter;
+
+import org.olap4j.xmla.server.impl.ArrayStack;
+import org.olap4j.xmla.server.impl.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implementation of {@link SaxWriter} that writes XML in UTF-8 straight
+ * into a byte buffer.
+ *
+ * <p>It writes the same bytes as a {@link DefaultSaxWriter} whose stream
+ * has encoding UTF-8, but does not go through a {@link java.io.Writer} and
+ * a charset encoder. (The one difference is in malformed text: each string
+ * is encoded on its own, so a high surrogate that ends one string is not
+ * joined to a low surrogate that starts the next; both become '?'.) Names
+ * of elements and attributes are encoded once per writer; runs of ASCII
+ * characters that need no escape are copied into the buffer in a tight
+ * loop; other characters are escaped or encoded inline.
+ * The buffer is allocated once, and is written to the stream whenever it
+ * is full, and on {@link #flush()}.
+ */
+public class Utf8SaxWriter implements SaxWriter {
+    /** Inside the tag of an element. */
+    private static final int STATE_IN_TAG = 0;
+    /** After the tag at the end of an element. */
+    private static final int STATE_END_ELEMENT = 1;
+    /** After the tag at the start of an element. */
+    private static final int STATE_AFTER_TAG = 2;
+    /** After a burst of character data. */
+    private static final int STATE_CHARACTERS = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Maximum number of names whose encoding is remembered. */
+    private static final int MAX_NAMES = 1024;
+
+    private static final byte[] NL = Util.nl.getBytes(UTF8);
+    private static final byte[] LONG_MIN_VALUE =
+        String.valueOf(Long.MIN_VALUE).getBytes(UTF8);
+    private static final byte[] INDENT = {' ', ' '};
+
+    /**
+     * Escape of each ASCII character, as {@link
+     * org.olap4j.xmla.server.impl.StringEscaper#XML_NUMERIC_ESCAPER} would
+     * write it; null if the character is written as is.
+     */
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        final String chars = "&\"'<>\t\n\r";
+        for (int i = 0; i < chars.length(); i++) {
+            final char c = chars.charAt(i);
+            ESCAPES[c] = ("&#" + (int) c + ";").getBytes(UTF8);
+        }
+    }
+
+    private final OutputStream out;
+    private final boolean compact;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+
+    private int indent;
+    private final ArrayStack<String> stack = new ArrayStack<String>();
+    private int state = STATE_END_ELEMENT;
+
+    /** Encoded names of elements and attributes. */
+    private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+
+    /**
+     * Creates a Utf8SaxWriter.
+     *
+     * @param out Output stream
+     */
+    public Utf8SaxWriter(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * Creates a Utf8SaxWriter.
+     *
+     * @param out Output stream
+     * @param compact Whether to omit line breaks and indentation
+     */
+    public Utf8SaxWriter(OutputStream out, boolean compact) {
+        this.out = out;
+        this.compact = compact;
+    }
+
+    /**
+     * Returns the current indent; that is, the number of elements that
+     * have been started and not ended.
+     */
+    public int getIndent() {
+        return indent;
+    }
+
+    /**
+     * Returns whether this writer omits line breaks and indentation.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    private void _startElement(String name, Object[] attributes)
+        throws IOException
+    {
+        _startTag(name);
+        if (attributes != null) {
+            for (int i = 0; i + 1 < attributes.length; i += 2) {
+                final Object value = attributes[i + 1];
+                if (value != null) {
+                    _attribute((String) attributes[i]);
+                    writeEscaped(value.toString(), false);
+                    write('"');
+                }
+            }
+        }
+        _endStartTag(name);
+    }
+
+    /**
+     * Writes the start of an element's tag, up to the first attribute.
+     */
+    private void _startTag(String name) throws IOException {
+        _checkTag();
+        if (!compact) {
+            if (indent > 0) {
+                write(NL);
+            }
+            for (int i = 0; i < indent; i++) {
+                write(INDENT);
+            }
+        }
+        indent++;
+        write('<');
+        write(encodeName(name));
+    }
+
+    /**
+     * Writes the name of an attribute and the opening quote of its value.
+     */
+    private void _attribute(String name) throws IOException {
+        write(' ');
+        write(encodeName(name));
+        write('=');
+        write('"');
+    }
+
+    /**
+     * Notes that an element's tag is open; it is closed by the next
+     * content or by the end of the element.
+     */
+    private void _endStartTag(String name) {
+        state = STATE_IN_TAG;
+        assert name != null;
+        stack.add(name);
+    }
+
+    private void _checkTag() throws IOException {
+        if (state == STATE_IN_TAG) {
+            state = STATE_AFTER_TAG;
+            write('>');
+        }
+    }
+
+    private void _endElement() throws IOException {
+        String name = stack.pop();
+        indent--;
+        if (state == STATE_IN_TAG) {
+            write('/');
+            write('>');
+        } else {
+            if (state != STATE_CHARACTERS && !compact) {
+                write(NL);
+                for (int i = 0; i < indent; i++) {
+                    write(INDENT);
+                }
+            }
+            write('<');
+            write('/');
+            write(encodeName(name));
+            write('>');
+        }
+        state = STATE_END_ELEMENT;
+    }
+
+    private void _characters(String s, boolean newlinesAsSpaces)
+        throws IOException
+    {
+        _checkTag();
+        writeEscaped(s, newlinesAsSpaces);
+        state = STATE_CHARACTERS;
+    }
+
+    //
+    // Simplifying methods
+
+    public void characters(String s) {
+        try {
+            _characters(s, false);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startSequence(String name, String subName) {
+        if (name != null) {
+            startElement(name);
+        } else {
+            stack.push(null);
+        }
+    }
+
+    public void endSequence() {
+        if (stack.peek() == null) {
+            stack.pop();
+        } else {
+            endElement();
+        }
+    }
+
+    public final void textElement(String name, Object data) {
+        try {
+            _startElement(name, null);
+            // Like DefaultSaxWriter, replace line endings with spaces.
+            _characters(data.toString(), true);
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void textElement(String name, long data) {
+        try {
+            _startTag(name);
+            _endStartTag(name);
+            _checkTag();
+            writeDigits(data);
+            state = STATE_CHARACTERS;
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void textElement(String name, double data) {
+        try {
+            _startTag(name);
+            _endStartTag(name);
+            _checkTag();
+            // Digits, '.', '-', 'E', "NaN" and "Infinity" need no escaping.
+            writeUtf8(Double.toString(data));
+            state = STATE_CHARACTERS;
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void textElement(String name, CharSequence data) {
+        textElement(name, (Object) data);
+    }
+
+    public void element(String tagName, Object... attributes) {
+        startElement(tagName, attributes);
+        endElement();
+    }
+
+    public void startElement(String tagName) {
+        try {
+            _startElement(tagName, null);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startElement(String tagName, Object... attributes) {
+        try {
+            _startElement(tagName, attributes);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startElement(String tagName, String attr, String value) {
+        try {
+            _startTag(tagName);
+            if (value != null) {
+                _attribute(attr);
+                writeEscaped(value, false);
+                write('"');
+            }
+            _endStartTag(tagName);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startElement(String tagName, String attr, int value) {
+        try {
+            _startTag(tagName);
+            _attribute(attr);
+            writeDigits(value);
+            write('"');
+            _endStartTag(tagName);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void endElement() {
+        try {
+            _endElement();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void startDocument() {
+        if (stack.size() != 0) {
+            throw new IllegalStateException("Document already started");
+        }
+    }
+
+    public void endDocument() {
+        if (stack.size() != 0) {
+            throw new IllegalStateException(
+                "Document may have unbalanced elements");
+        }
+        flush();
+    }
+
+    /**
+     * Ends all elements that have been started and not ended, as if
+     * processing had finished normally, and flushes. Call when processing
+     * has failed part-way, so that the output is well-formed.
+     */
+    public void endOpenElements() {
+        while (stack.size() > 0) {
+            if (stack.peek() == null) {
+                // Anonymous sequence; it has no tag to close.
+                stack.pop();
+                continue;
+            }
+            try {
+                _endElement();
+            } catch (IOException e) {
+                throw new RuntimeException("Error while appending XML", e);
+            }
+        }
+        flush();
+    }
+
+    public void completeBeforeElement(String tagName) {
+        if (stack.indexOf(tagName) == -1) {
+            return;
+        }
+
+        String currentTagName  = stack.peek();
+        while (!tagName.equals(currentTagName)) {
+            if (currentTagName == null) {
+                // Anonymous sequence; it has no tag to close.
+                stack.pop();
+                currentTagName = stack.peek();
+                continue;
+            }
+            try {
+                _endElement();
+            } catch (IOException e) {
+                throw new RuntimeException("Error while appending XML", e);
+            }
+            currentTagName = stack.peek();
+        }
+    }
+
+    public void verbatim(String text) {
+        try {
+            _checkTag();
+            writeUtf8(text);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while appending XML", e);
+        }
+    }
+
+    public void flush() {
+        try {
+            flushBuffer();
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while flushing XML", e);
+        }
+    }
+
+    //
+    // Encoding
+
+    private byte[] encodeName(String name) {
+        byte[] bytes = names.get(name);
+        if (bytes == null) {
+            bytes = name.getBytes(UTF8);
+            if (names.size() < MAX_NAMES) {
+                names.put(name, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void write(int b) throws IOException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length > buf.length - pos) {
+            flushBuffer();
+            if (bytes.length > buf.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * Writes the decimal digits of an integer straight into the buffer.
+     */
+    private void writeDigits(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            // Cannot be negated.
+            write(LONG_MIN_VALUE);
+            return;
+        }
+        if (pos + 20 > buf.length) {
+            flushBuffer();
+        }
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        // Write the digits backwards, then reverse them.
+        final int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            final byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+    }
+
+    /**
+     * Writes a string, escaping the characters that XML_NUMERIC_ESCAPER
+     * would escape.
+     *
+     * @param s String
+     * @param newlinesAsSpaces Whether to write each line ending (CR, LF or
+     *   CR LF) as a single space
+     */
+    private void writeEscaped(String s, boolean newlinesAsSpaces)
+        throws IOException
+    {
+        final int n = s.length();
+        int i = 0;
+        while (i < n) {
+            // Copy a run of plain ASCII characters, as long as there is room.
+            final int limit = Math.min(n, i + buf.length - pos);
+            char c = 0;
+            while (i < limit
+                && (c = s.charAt(i)) < 128
+                && ESCAPES[c] == null)
+            {
+                buf[pos++] = (byte) c;
+                ++i;
+            }
+            if (i == n) {
+                break;
+            }
+            if (i == limit) {
+                flushBuffer();
+                continue;
+            }
+            if (c >= 128) {
+                i = writeUtf8(s, i, c);
+            } else if (newlinesAsSpaces && (c == '\r' || c == '\n')) {
+                write(' ');
+                ++i;
+                if (c == '\r' && i < n && s.charAt(i) == '\n') {
+                    ++i;
+                }
+            } else {
+                write(ESCAPES[c]);
+                ++i;
+            }
+        }
+    }
+
+    /**
+     * Writes a string without escaping.
+     */
+    private void writeUtf8(String s) throws IOException {
+        final int n = s.length();
+        int i = 0;
+        while (i < n) {
+            final int limit = Math.min(n, i + buf.length - pos);
+            char c = 0;
+            while (i < limit && (c = s.charAt(i)) < 128) {
+                buf[pos++] = (byte) c;
+                ++i;
+            }
+            if (i == n) {
+                break;
+            }
+            if (i == limit) {
+                flushBuffer();
+                continue;
+            }
+            i = writeUtf8(s, i, c);
+        }
+    }
+
+    /**
+     * Writes a non-ASCII character, and the low surrogate that follows it
+     * if it is a high surrogate, in UTF-8. Like the JDK's encoder, writes
+     * '?' for an unpaired surrogate.
+     *
+     * @param s String
+     * @param i Index of character
+     * @param c Character
+     * @return Index of the next character
+     */
+    private int writeUtf8(String s, int i, char c) throws IOException {
+        if (pos + 4 > buf.length) {
+            flushBuffer();
+        }
+        if (c < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c < Character.MIN_SURROGATE
+            || c > Character.MAX_SURROGATE)
+        {
+            buf[pos++] = (byte) (0xE0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)
+            && i + 1 < s.length()
+            && Character.isLowSurrogate(s.charAt(i + 1)))
+        {
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            return i + 2;
+        } else {
+            buf[pos++] = '?';
+        }
+        return i + 1;
+    }
+}
+
+// End Utf8SaxWriter.java
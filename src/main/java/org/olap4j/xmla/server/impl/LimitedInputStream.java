@@ -0,0 +1,82 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package org.olap4j.xmla.server.impl;
+
+import java.io.*;
+
+/**
+ * Input stream that fails if more than a given number of bytes are read
+ * from it.
+ *
+ * <p>Use it to guard against a small compressed request that expands to an
+ * enormous one (a "zip bomb").
+ */
+public class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+    private boolean limitExceeded;
+
+    /**
+     * Creates a LimitedInputStream.
+     *
+     * @param in Underlying stream
+     * @param limit Maximum number of bytes that may be read
+     */
+    public LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    /**
+     * Returns whether a read failed because it would have exceeded the limit.
+     * Useful when the exception has been swallowed or wrapped by a consumer
+     * such as an XML parser.
+     */
+    public boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        final long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long n) throws IOException {
+        count += n;
+        if (count > limit) {
+            limitExceeded = true;
+            throw new IOException(
+                "Input exceeds limit of " + limit + " bytes");
+        }
+    }
+}
+
+// End LimitedInputStream.java
@@ -0,0 +1,356 @@
+/*
+// This software is subject to the terms of the Eclipse Public License v1.0
+// Agreement, available at the following URL:
+// http://www.eclipse.org/legal/epl-v10.html.
+// You must accept the terms of that agreement to use this software.
+//
+// Copyright (C) 2014 Pentaho
+// All Rights Reserved.
+*/
+package org.olap4j.xmla.server.impl;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Output stream that compresses data in the "gzip" (RFC 1952) or "zlib"
+ * (RFC 1950) format, compressing large inputs in parallel.
+ *
+ * <p>The input is cut into fixed-size blocks, and each block is compressed
+ * as an independent task in an {@link Executor}, primed with the last 32KB
+ * of the previous block as dictionary. Each block except the last ends with
+ * a sync flush, so the compressed blocks can simply be concatenated, in
+ * order, into a single deflate stream that any inflater can read. The
+ * checksum is computed by the writing thread as blocks are completed.
+ *
+ * <p>The number of blocks in flight is bounded, so memory use does not grow
+ * with the size of the input.
+ *
+ * <p>Sync flush requires JDK 1.7 or later; call {@link #isSupported()}
+ * before creating an instance.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+    /** Size of the deflate window, and hence of the useful dictionary. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int DEFLATER_SYNC_FLUSH = 2;
+
+    private static final Method DEFLATE_METHOD = deflateMethod();
+
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // magic
+        Deflater.DEFLATED,        // compression method
+        0,                        // flags
+        0, 0, 0, 0,               // modification time
+        0,                        // extra flags
+        (byte) 0xff               // operating system: unknown
+    };
+
+    private final OutputStream out;
+    private final Format format;
+    private final int level;
+    private final Executor executor;
+    private final int maxPending;
+    private final Checksum checksum;
+    private final LinkedList<FutureTask<byte[]>> pending =
+        new LinkedList<FutureTask<byte[]>>();
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+    private long totalLength;
+    private boolean headerWritten;
+    private boolean finished;
+
+    /**
+     * Creates a ParallelDeflaterOutputStream.
+     *
+     * @param out Underlying output stream
+     * @param format Format of compressed data
+     * @param level Compression level, 0 - 9 (or -1 for default)
+     * @param blockSize Size of each block of input
+     * @param executor Executor in which to compress blocks
+     * @param maxPending Maximum number of blocks being compressed at a time
+     */
+    public ParallelDeflaterOutputStream(
+        OutputStream out,
+        Format format,
+        int level,
+        int blockSize,
+        Executor executor,
+        int maxPending)
+    {
+        assert blockSize >= DICTIONARY_SIZE;
+        assert maxPending > 0;
+        this.out = out;
+        this.format = format;
+        this.level = level;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.checksum =
+            format == Format.GZIP ? new CRC32() : new Adler32();
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Returns whether this JVM can create parallel deflater streams.
+     */
+    public static boolean isSupported() {
+        return DEFLATE_METHOD != null;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+        while (len > 0) {
+            if (blockLength == block.length) {
+                submitBlock(false);
+            }
+            final int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes the blocks compressed so far to the underlying stream, and
+     * flushes it. Data in the current, incomplete, block is not flushed.
+     */
+    public void flush() throws IOException {
+        drain(false);
+        out.flush();
+    }
+
+    /**
+     * Compresses the remaining input and writes the end of the compressed
+     * data, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submitBlock(true);
+        finished = true;
+        while (!pending.isEmpty()) {
+            writeBlock(pending.removeFirst());
+        }
+        writeTrailer();
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Abandons the stream: cancels blocks that are being compressed, and
+     * releases buffers, without writing anything more to the underlying
+     * stream or closing it. Later writes fail.
+     */
+    public void abort() {
+        finished = true;
+        for (FutureTask<byte[]> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+        block = null;
+        blockLength = 0;
+        dictionary = null;
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        checksum.update(block, 0, blockLength);
+        totalLength += blockLength;
+        final FutureTask<byte[]> task =
+            new FutureTask<byte[]>(
+                new BlockCompressor(
+                    block, blockLength, dictionary, level, last));
+        if (last && pending.isEmpty()) {
+            // Nothing to overlap with; don't pay for a thread switch.
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        pending.add(task);
+
+        if (!last) {
+            // The next block starts with a fresh buffer (the task owns the
+            // old one) and the tail of this block as its dictionary.
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(
+                block, blockLength - DICTIONARY_SIZE,
+                dictionary, 0, DICTIONARY_SIZE);
+            block = new byte[block.length];
+            blockLength = 0;
+        }
+        drain(pending.size() >= maxPending);
+    }
+
+    /**
+     * Writes completed blocks from the head of the queue.
+     *
+     * @param wait Whether to wait for the first block if it is not complete
+     */
+    private void drain(boolean wait) throws IOException {
+        while (!pending.isEmpty()
+            && (wait || pending.getFirst().isDone()))
+        {
+            writeBlock(pending.removeFirst());
+            wait = false;
+        }
+    }
+
+    private void writeBlock(FutureTask<byte[]> task) throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = task.get();
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            throw (IOException)
+                new IOException("Error while compressing")
+                    .initCause(e.getCause());
+        }
+        if (!headerWritten) {
+            headerWritten = true;
+            switch (format) {
+            case GZIP:
+                out.write(GZIP_HEADER);
+                break;
+            case ZLIB:
+                // CMF: deflate with 32K window; FLG: default level, no
+                // dictionary, check bits so that CMF * 256 + FLG is a
+                // multiple of 31.
+                out.write(0x78);
+                out.write(0x9c);
+                break;
+            }
+        }
+        out.write(bytes);
+    }
+
+    private void writeTrailer() throws IOException {
+        final long value = checksum.getValue();
+        switch (format) {
+        case GZIP:
+            writeIntLittleEndian(value);
+            writeIntLittleEndian(totalLength);
+            break;
+        case ZLIB:
+            out.write((int) (value >>> 24) & 0xff);
+            out.write((int) (value >>> 16) & 0xff);
+            out.write((int) (value >>> 8) & 0xff);
+            out.write((int) value & 0xff);
+            break;
+        }
+    }
+
+    private void writeIntLittleEndian(long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >>> 8) & 0xff);
+        out.write((int) (value >>> 16) & 0xff);
+        out.write((int) (value >>> 24) & 0xff);
+    }
+
+    /**
+     * Looks up {@code Deflater.deflate(byte[], int, int, int)}. We use
+     * reflection so that this class compiles on JDK 1.5 and 1.6.
+     */
+    private static Method deflateMethod() {
+        try {
+            return Deflater.class.getMethod(
+                "deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Format of compressed data.
+     */
+    public enum Format {
+        /** The "gzip" format, RFC 1952. HTTP content-coding "gzip". */
+        GZIP,
+        /** The "zlib" format, RFC 1950. HTTP content-coding "deflate". */
+        ZLIB
+    }
+
+    /**
+     * Task that compresses one block of input into raw deflate data.
+     */
+    private static class BlockCompressor implements Callable<byte[]> {
+        private final byte[] block;
+        private final int length;
+        private final byte[] dictionary;
+        private final int level;
+        private final boolean last;
+
+        BlockCompressor(
+            byte[] block,
+            int length,
+            byte[] dictionary,
+            int level,
+            boolean last)
+        {
+            this.block = block;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.level = level;
+            this.last = last;
+        }
+
+        public byte[] call() throws Exception {
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block, 0, length);
+                final ByteArrayOutputStream baos =
+                    new ByteArrayOutputStream(length / 4 + 64);
+                final byte[] buf = new byte[Math.min(length + 64, 16384)];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buf);
+                        baos.write(buf, 0, n);
+                    }
+                } else {
+                    // Per the Deflater javadoc, keep calling until the
+                    // output buffer is not filled.
+                    int n;
+                    do {
+                        n = syncFlush(deflater, buf);
+                        baos.write(buf, 0, n);
+                    } while (n == buf.length);
+                }
+                return baos.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static int syncFlush(Deflater deflater, byte[] buf)
+            throws IllegalAccessException
+        {
+            try {
+                return (Integer) DEFLATE_METHOD.invoke(
+                    deflater, buf, 0, buf.length, DEFLATER_SYNC_FLUSH);
+            } catch (InvocationTargetException e) {
+                throw Util.newError(e.getCause(), "While compressing");
+            }
+        }
+    }
+}
+
+// End ParallelDeflaterOutputStream.java
@@ -18,6 +18,7 @@
 package org.olap4j.xmla.server.impl;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 /**
@@ -100,11 +101,15 @@ public class StringEscaper
 
     /**
      * Apply an immutable transformation to the given string.
+     *
+     * <p>Returns the string itself, without allocating, if no character
+     * needs to be escaped.
      */
     public String escapeString(String s)
     {
         StringBuilder sb = null;
         int n = s.length();
+        int start = 0;
         for (int i = 0; i < n; i++) {
             char c = s.charAt(i);
             String escape;
@@ -112,27 +117,24 @@ public class StringEscaper
             if (c > 127) {
                 escape = "&#" + Integer.toString(c) + ";";
             } else if (c >= translationTable.length) {
-                escape = null;
+                continue;
             } else {
                 escape = translationTable[c];
-            }
-            if (escape == null) {
-                if (sb != null) {
-                    sb.append(c);
-                }
-            } else {
-                if (sb == null) {
-                    sb = new StringBuilder(n * 2);
-                    sb.append(s.substring(0, i));
+                if (escape == null) {
+                    continue;
                 }
-                sb.append(escape);
             }
+            if (sb == null) {
+                sb = new StringBuilder(n * 2);
+            }
+            sb.append(s, start, i).append(escape);
+            start = i + 1;
         }
 
         if (sb == null) {
             return s;
         } else {
-            return sb.toString();
+            return sb.append(s, start, n).toString();
         }
     }
 
@@ -143,20 +145,18 @@ public class StringEscaper
     public void appendEscapedString(String s, StringBuffer sb)
     {
         int n = s.length();
+        int start = 0;
         for (int i = 0; i < n; i++) {
             char c = s.charAt(i);
-            String escape;
-            if (c >= translationTable.length) {
-                escape = null;
-            } else {
-                escape = translationTable[c];
-            }
-            if (escape == null) {
-                sb.append(c);
-            } else {
-                sb.append(escape);
+            if (c < translationTable.length) {
+                final String escape = translationTable[c];
+                if (escape != null) {
+                    sb.append(s, start, i).append(escape);
+                    start = i + 1;
+                }
             }
         }
+        sb.append(s, start, n);
     }
 
     /**
@@ -164,21 +164,72 @@ public class StringEscaper
      * results to an {@link Appendable} (such as a {@link StringBuilder}).
      */
     public void appendEscapedString(String s, Appendable sb) throws IOException
+    {
+        appendEscapedString(s, sb, false);
+    }
+
+    /**
+     * Applies an immutable transformation to the given string, writing the
+     * results to an {@link Appendable}, and optionally replacing each line
+     * ending (CR, LF or CR LF) with a space, in the same pass.
+     *
+     * <p>Runs of characters that need no escape are appended in one call;
+     * if the {@code Appendable} is a {@link Writer}, without creating a
+     * substring.
+     *
+     * @param s String
+     * @param sb Destination
+     * @param joinLines Whether to replace line endings with spaces; they
+     *   are replaced before escaping, so are not themselves escaped
+     * @throws IOException on error writing
+     */
+    public void appendEscapedString(String s, Appendable sb, boolean joinLines)
+        throws IOException
     {
         int n = s.length();
+        int start = 0;
         for (int i = 0; i < n; i++) {
             char c = s.charAt(i);
             String escape;
-            if (c >= translationTable.length) {
-                escape = null;
+            if (joinLines && (c == '\r' || c == '\n')) {
+                append(sb, s, start, i);
+                sb.append(' ');
+                if (c == '\r' && i + 1 < n && s.charAt(i + 1) == '\n') {
+                    ++i;
+                }
+                start = i + 1;
+                continue;
+            } else if (c >= translationTable.length) {
+                continue;
             } else {
                 escape = translationTable[c];
+                if (escape == null) {
+                    continue;
+                }
             }
-            if (escape == null) {
-                sb.append(c);
-            } else {
-                sb.append(escape);
-            }
+            append(sb, s, start, i);
+            sb.append(escape);
+            start = i + 1;
+        }
+        append(sb, s, start, n);
+    }
+
+    /**
+     * Appends a range of a string.
+     */
+    private static void append(Appendable sb, String s, int start, int end)
+        throws IOException
+    {
+        if (start == end) {
+            return;
+        }
+        if (sb instanceof Writer) {
+            // Writer.append(CharSequence, int, int) creates a substring.
+            ((Writer) sb).write(s, start, end - start);
+        } else if (start == 0 && end == s.length()) {
+            sb.append(s);
+        } else {
+            sb.append(s, start, end);
         }
     }
 